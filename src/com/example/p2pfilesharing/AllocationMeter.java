@@ -0,0 +1,74 @@
+package com.example.p2pfilesharing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures heap allocation per operation (bytes allocated by the current thread between
+ * {@link #start()} and {@link #stop(long)}), using the JVM's per-thread allocation counter.
+ * Reading the counter allocates nothing, so the meter does not disturb what it measures.
+ * Used to keep the request and transfer paths allocation-free in steady state; the averages
+ * appear in the stats output. -Dp2p.alloc.measure=false turns it off.
+ */
+class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final String label;
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    AllocationMeter(String label) {
+        this.label = label;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (!P2PConfig.getBoolean("p2p.alloc.measure", true)) {
+            return null;
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null; // Not a HotSpot-style JVM
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        try {
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            threads.setThreadAllocatedMemoryEnabled(true);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+        return threads;
+    }
+
+    /**
+     * Allocation counter of the current thread, or -1 when measuring is off.
+     */
+    long start() {
+        return (THREADS != null) ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /**
+     * Count one operation that began when {@link #start()} returned {@code startedAt}.
+     */
+    void stop(long startedAt) {
+        if (startedAt < 0) {
+            return;
+        }
+        bytes.add(THREADS.getCurrentThreadAllocatedBytes() - startedAt);
+        operations.increment();
+    }
+
+    /**
+     * One line for the stats output.
+     */
+    String describe() {
+        long count = operations.sum();
+        if (THREADS == null) {
+            return label + ": allocation measuring off";
+        }
+        return String.format("%s: %d operations, %d bytes allocated on average", label, count,
+                (count == 0) ? 0 : bytes.sum() / count);
+    }
+}
@@ -0,0 +1,358 @@
+package com.example.p2pfilesharing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Persistence in one append-only log file (-Dp2p.persistence=log): every change is one
+ * tab-separated line appended to the file, and the file is replayed into an
+ * {@link InMemoryPersistence} when the node starts, so reads cost what they cost in memory.
+ * Writes are a single sequential append, flushed to the OS (fsynced as well with
+ * -Dp2p.persistence.log.sync=true).
+ * The history keeps the newest -Dp2p.persistence.historyLimit downloads, as in memory.
+ * --- Compaction ---
+ * Repeated peer stats, replaced content hashes and downloads past the history limit pile up
+ * as superseded lines; when they outnumber the live records (checked at startup and while
+ * appending), or the last line was cut off by a crash, the log is rewritten with only the
+ * live records and atomically swapped in. The rewritten log keeps the rollups as R lines
+ * and the remaining history as C lines, so totals survive the history they came from.
+ * Record lines:
+ * <pre>
+ *   P ip port
+ *   S ip port rttMicros throughput successes failures reachable unreachable updatedAt
+ *   D epochMillis ip port fileSize durationNanos status fileName [transferredBytes]
+ *   C (as D; a download already counted in the R lines)
+ *   R period bucket ip port transfers successes bytes timedBytes durationNanos
+ *   H path size mtime sha256
+ *   X path
+ * </pre>
+ */
+class AppendLogPersistence extends InMemoryPersistence {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(AppendLogPersistence.class);
+    private static final int MIN_COMPACT_LINES = 1024;
+
+    private final Path file;
+    private final boolean sync;
+    private FileOutputStream stream;
+    private Writer writer;
+    private int lines; // In the log file
+    private int nextCompactCheck; // Line count at which to see whether compaction is due
+
+    public AppendLogPersistence(Path file, boolean sync, int historyLimit) {
+        super(historyLimit);
+        this.file = file;
+        this.sync = sync;
+        try {
+            boolean torn = endsWithTornLine();
+            lines = replay(torn);
+            if (torn || compactionDue()) {
+                compactAndLog();
+            }
+            open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open persistence log " + file + ": " + e.getMessage(), e);
+        }
+        LOG.info("Persistence log {} loaded.", file);
+    }
+
+    @Override
+    public synchronized void savePeer(String ip, int port) {
+        if (applyPeer(ip, port)) { // Known peers need no new line
+            append(line("P", ip, port));
+        }
+    }
+
+    @Override
+    public synchronized void savePeerStats(List<PeerStats> stats) {
+        if (stats.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (PeerStats peer : stats) {
+            lines.append(statsLine(peer));
+            applyPeerStats(peer);
+        }
+        append(lines.toString());
+    }
+
+    @Override
+    public synchronized void recordDownload(String fileName, String peerIp, int peerPort, long fileSize, String status,
+                                            long durationNanos, long transferredBytes) {
+        long now = System.currentTimeMillis();
+        applyDownload(fileName, peerIp, peerPort, fileSize, status, durationNanos, transferredBytes, now);
+        append(downloadLine(fileName, peerIp, peerPort, fileSize, status, durationNanos, transferredBytes, now));
+    }
+
+    @Override
+    public synchronized void saveContentHashes(List<ContentHashRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (ContentHashRecord record : records) {
+            lines.append(hashLine(record));
+            applyContentHash(record);
+        }
+        append(lines.toString());
+    }
+
+    @Override
+    public synchronized void deleteContentHash(String path) {
+        applyContentHashDeleted(path);
+        append(line("X", path));
+    }
+
+    // Called after the change is applied, so a compaction it triggers writes the change out too
+    private void append(String text) {
+        try {
+            writer.write(text);
+            writer.flush();
+            if (sync) {
+                stream.getChannel().force(false);
+            }
+        } catch (IOException e) {
+            LOG.error("Error appending to persistence log {}: {}", file, e.getMessage());
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        if (lines >= nextCompactCheck && compactionDue()) {
+            try {
+                writer.close();
+                compactAndLog();
+            } catch (IOException e) {
+                LOG.error("Error compacting persistence log {}: {}", file, e.getMessage());
+                nextCompactCheck = lines + MIN_COMPACT_LINES; // Not again on every append
+            }
+            try {
+                open();
+            } catch (IOException e) {
+                LOG.error("Error reopening persistence log {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        stream = new FileOutputStream(file.toFile(), true);
+        writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * True if superseded lines outnumber the live records (and a minimum); otherwise sets the
+     * line count of the next check, the earliest at which that could be the case.
+     */
+    private boolean compactionDue() {
+        int live = liveRecordCount();
+        int threshold = Math.max(MIN_COMPACT_LINES, live);
+        if (lines - live > threshold) {
+            return true;
+        }
+        nextCompactCheck = live + threshold + 1;
+        return false;
+    }
+
+    private void compactAndLog() throws IOException {
+        int before = lines;
+        lines = compact();
+        compactionDue(); // Schedules the next check
+        LOG.info("Compacted persistence log {}: {} lines dropped", file, (long) (before - lines));
+    }
+
+    /**
+     * Apply every line of the log, except a last line cut off by a crash ({@code torn});
+     * returns the number of lines read.
+     */
+    private int replay(boolean torn) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String text = reader.readLine();
+            while (text != null) {
+                String next = reader.readLine();
+                lines++;
+                if (next == null && torn) {
+                    LOG.warn("Dropping the incomplete last line of persistence log {}", file);
+                    break;
+                }
+                try {
+                    apply(split(text));
+                } catch (RuntimeException e) {
+                    LOG.warn("Skipping bad line {} of persistence log: {}", lines, e.getMessage());
+                }
+                text = next;
+            }
+        }
+        return lines;
+    }
+
+    private void apply(String[] f) {
+        switch (f[0]) {
+            case "P":
+                applyPeer(f[1], Integer.parseInt(f[2]));
+                break;
+            case "S":
+                PeerStats peer = new PeerStats(f[1], Integer.parseInt(f[2]));
+                peer.rttMicros = Double.parseDouble(f[3]);
+                peer.throughput = Double.parseDouble(f[4]);
+                peer.successes = Double.parseDouble(f[5]);
+                peer.failures = Double.parseDouble(f[6]);
+                peer.reachable = Double.parseDouble(f[7]);
+                peer.unreachable = Double.parseDouble(f[8]);
+                peer.updatedAt = Long.parseLong(f[9]);
+                applyPeerStats(peer);
+                break;
+            case "D":
+                applyDownload(f[7], f[2], Integer.parseInt(f[3]), Long.parseLong(f[4]), f[6], Long.parseLong(f[5]),
+                        (f.length > 8) ? Long.parseLong(f[8]) : -1, Long.parseLong(f[1])); // Older lines end at the name
+                break;
+            case "C":
+                applyHistory(f[7], f[2], Integer.parseInt(f[3]), Long.parseLong(f[4]), f[6], Long.parseLong(f[5]),
+                        Long.parseLong(f[8]), Long.parseLong(f[1]));
+                break;
+            case "R":
+                applyRollup(RollupPeriod.valueOf(f[1]), new TransferRollup(f[3], Integer.parseInt(f[4]),
+                        Long.parseLong(f[2]), Long.parseLong(f[5]), Long.parseLong(f[6]), Long.parseLong(f[7]),
+                        Long.parseLong(f[8]), Long.parseLong(f[9])));
+                break;
+            case "H":
+                applyContentHash(new ContentHashRecord(f[1], Long.parseLong(f[2]), Long.parseLong(f[3]), f[4]));
+                break;
+            case "X":
+                applyContentHashDeleted(f[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown record type " + f[0]);
+        }
+    }
+
+    private boolean endsWithTornLine() throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            if (raf.length() == 0) {
+                return false;
+            }
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        }
+    }
+
+    /**
+     * Rewrite the log with only the live records, then swap it in; returns the number of lines
+     * written.
+     */
+    private int compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        int written = 0;
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (String key : peerKeys()) {
+                int colon = key.lastIndexOf(':');
+                out.write(line("P", key.substring(0, colon), key.substring(colon + 1)));
+                written++;
+            }
+            for (PeerStats peer : peerStatsView()) {
+                out.write(statsLine(peer));
+                written++;
+            }
+            for (ContentHashRecord record : contentHashView()) {
+                out.write(hashLine(record));
+                written++;
+            }
+            for (RollupPeriod period : RollupPeriod.values()) {
+                for (TransferRollup r : rollupSnapshot(period)) {
+                    out.write(line("R", period, r.bucket, r.peerIp, r.peerPort, r.transfers, r.successes, r.bytes,
+                            r.timedBytes, r.durationNanos));
+                    written++;
+                }
+            }
+            for (Iterator<HistoryEntry> it = historyOldestFirst(); it.hasNext(); ) {
+                HistoryEntry entry = it.next();
+                DownloadRecord r = entry.record;
+                out.write(line("C", entry.epochMillis, r.peerIp, r.peerPort, r.fileSize, entry.durationNanos, r.status,
+                        r.fileName, entry.transferredBytes));
+                written++;
+            }
+        }
+        try (FileOutputStream flushed = new FileOutputStream(temp.toFile(), true)) {
+            flushed.getChannel().force(true); // On disk before it replaces the old log
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+
+    private static String statsLine(PeerStats p) {
+        return line("S", p.ip, p.port, p.rttMicros, p.throughput, p.successes, p.failures, p.reachable, p.unreachable,
+                p.updatedAt);
+    }
+
+    private static String hashLine(ContentHashRecord r) {
+        return line("H", r.path, r.size, r.mtime, r.sha256);
+    }
+
+    private static String downloadLine(String fileName, String peerIp, int peerPort, long fileSize, String status,
+                                       long durationNanos, long transferredBytes, long epochMillis) {
+        if (transferredBytes < 0) {
+            return line("D", epochMillis, peerIp, peerPort, fileSize, durationNanos, status, fileName);
+        }
+        return line("D", epochMillis, peerIp, peerPort, fileSize, durationNanos, status, fileName, transferredBytes);
+    }
+
+    // One record: fields separated by tabs, with backslash, tab and line breaks escaped
+    private static String line(Object... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            String field = String.valueOf(fields[i]);
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                switch (c) {
+                    case '\\': sb.append("\\\\"); break;
+                    case '\t': sb.append("\\t"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    default: sb.append(c);
+                }
+            }
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static String[] split(String text) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+}
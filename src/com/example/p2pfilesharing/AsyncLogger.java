@@ -0,0 +1,290 @@
+package com.example.p2pfilesharing;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured, asynchronous logger for the request path.
+ * --- Design Pattern: Producer/Consumer ---
+ * Calling threads only copy the template and its arguments into a pre-allocated slot of a
+ * lock-free ring buffer; a single background thread formats the entries and writes them to
+ * System.out (which the GUI redirects into its output area).
+ * Nothing is allocated when a level is disabled, and primitive arguments (file sizes, byte
+ * counts) have dedicated overloads so they are not boxed on the caller's thread.
+ * The level is configured with -Dp2p.log.level (DEBUG, INFO, WARN, ERROR, OFF).
+ */
+final class AsyncLogger {
+
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final LogRing RING = new LogRing(P2PConfig.getInt("p2p.log.bufferSize", 8192));
+    private static volatile Level threshold = parseLevel(P2PConfig.getString("p2p.log.level", "INFO"));
+
+    private final String name;
+
+    private AsyncLogger(String name) {
+        this.name = name;
+    }
+
+    public static AsyncLogger getLogger(Class<?> owner) {
+        return new AsyncLogger(owner.getSimpleName());
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static Level getLevel() {
+        return threshold;
+    }
+
+    /**
+     * Block (briefly) until everything logged so far has been written out.
+     */
+    public static void flush() {
+        RING.flush();
+    }
+
+    /**
+     * Number of entries dropped because the ring buffer was full.
+     */
+    public static long getDroppedCount() {
+        return RING.dropped.get();
+    }
+
+    private static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level '" + value + "', using INFO.");
+            return Level.INFO;
+        }
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold.ordinal() && level != Level.OFF;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    // --- Level-specific convenience methods ---
+
+    public void debug(String template) { log(Level.DEBUG, template, 0, 0, null, null, null, 0, 0, 0); }
+    public void debug(String template, Object a0) { log(Level.DEBUG, template, 1, 0, a0, null, null, 0, 0, 0); }
+    public void debug(String template, Object a0, Object a1) { log(Level.DEBUG, template, 2, 0, a0, a1, null, 0, 0, 0); }
+    public void debug(String template, Object a0, Object a1, Object a2) { log(Level.DEBUG, template, 3, 0, a0, a1, a2, 0, 0, 0); }
+    public void debug(String template, Object a0, long n1) { log(Level.DEBUG, template, 2, 0b010, a0, null, null, 0, n1, 0); }
+    public void debug(String template, Object a0, long n1, long n2) { log(Level.DEBUG, template, 3, 0b110, a0, null, null, 0, n1, n2); }
+    public void debug(String template, long n0) { log(Level.DEBUG, template, 1, 0b001, null, null, null, n0, 0, 0); }
+    public void debug(String template, long n0, long n1) { log(Level.DEBUG, template, 2, 0b011, null, null, null, n0, n1, 0); }
+    public void debug(String template, long n0, long n1, long n2) { log(Level.DEBUG, template, 3, 0b111, null, null, null, n0, n1, n2); }
+
+    public void info(String template) { log(Level.INFO, template, 0, 0, null, null, null, 0, 0, 0); }
+    public void info(String template, Object a0) { log(Level.INFO, template, 1, 0, a0, null, null, 0, 0, 0); }
+    public void info(String template, Object a0, Object a1) { log(Level.INFO, template, 2, 0, a0, a1, null, 0, 0, 0); }
+    public void info(String template, Object a0, Object a1, Object a2) { log(Level.INFO, template, 3, 0, a0, a1, a2, 0, 0, 0); }
+    public void info(String template, Object a0, long n1) { log(Level.INFO, template, 2, 0b010, a0, null, null, 0, n1, 0); }
+    public void info(String template, Object a0, long n1, long n2) { log(Level.INFO, template, 3, 0b110, a0, null, null, 0, n1, n2); }
+    public void info(String template, long n0) { log(Level.INFO, template, 1, 0b001, null, null, null, n0, 0, 0); }
+    public void info(String template, long n0, long n1) { log(Level.INFO, template, 2, 0b011, null, null, null, n0, n1, 0); }
+    public void info(String template, long n0, long n1, long n2) { log(Level.INFO, template, 3, 0b111, null, null, null, n0, n1, n2); }
+
+    public void warn(String template) { log(Level.WARN, template, 0, 0, null, null, null, 0, 0, 0); }
+    public void warn(String template, Object a0) { log(Level.WARN, template, 1, 0, a0, null, null, 0, 0, 0); }
+    public void warn(String template, Object a0, Object a1) { log(Level.WARN, template, 2, 0, a0, a1, null, 0, 0, 0); }
+    public void warn(String template, Object a0, Object a1, Object a2) { log(Level.WARN, template, 3, 0, a0, a1, a2, 0, 0, 0); }
+    public void warn(String template, Object a0, long n1) { log(Level.WARN, template, 2, 0b010, a0, null, null, 0, n1, 0); }
+    public void warn(String template, Object a0, long n1, long n2) { log(Level.WARN, template, 3, 0b110, a0, null, null, 0, n1, n2); }
+    public void warn(String template, long n0) { log(Level.WARN, template, 1, 0b001, null, null, null, n0, 0, 0); }
+    public void warn(String template, long n0, long n1) { log(Level.WARN, template, 2, 0b011, null, null, null, n0, n1, 0); }
+    public void warn(String template, long n0, long n1, long n2) { log(Level.WARN, template, 3, 0b111, null, null, null, n0, n1, n2); }
+
+    public void error(String template) { log(Level.ERROR, template, 0, 0, null, null, null, 0, 0, 0); }
+    public void error(String template, Object a0) { log(Level.ERROR, template, 1, 0, a0, null, null, 0, 0, 0); }
+    public void error(String template, Object a0, Object a1) { log(Level.ERROR, template, 2, 0, a0, a1, null, 0, 0, 0); }
+    public void error(String template, Object a0, Object a1, Object a2) { log(Level.ERROR, template, 3, 0, a0, a1, a2, 0, 0, 0); }
+
+    /**
+     * Core entry point. {@code primMask} marks which argument positions are carried in the
+     * long fields instead of the object fields (bit i -> n<i>).
+     */
+    private void log(Level level, String template, int argc, int primMask,
+                     Object a0, Object a1, Object a2, long n0, long n1, long n2) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        RING.publish(level, name, template, argc, primMask, a0, a1, a2, n0, n1, n2);
+    }
+
+    /**
+     * One pre-allocated ring entry. The volatile sequence publishes the plain fields.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        long timestamp;
+        Level level;
+        String logger;
+        String thread;
+        String template;
+        int argc;
+        int primMask;
+        Object a0;
+        Object a1;
+        Object a2;
+        long n0;
+        long n1;
+        long n2;
+
+        void clear() {
+            template = null;
+            a0 = null;
+            a1 = null;
+            a2 = null;
+        }
+    }
+
+    /**
+     * Bounded multi-producer / single-consumer ring (Vyukov-style sequence numbers).
+     * Producers never block: when the consumer falls behind, entries are dropped and counted.
+     */
+    private static final class LogRing implements Runnable {
+        private static final DateTimeFormatter TIME_FORMAT =
+                DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+        private final Slot[] slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long head; // Written only by the drain thread
+        private final StringBuilder line = new StringBuilder(256); // Reused by the drain thread
+        private final Thread drainThread;
+
+        LogRing(int requestedCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(64, requestedCapacity - 1) << 1);
+            this.slots = new Slot[capacity];
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot();
+                slots[i].sequence = i;
+            }
+            this.drainThread = new Thread(this, "p2p-log-drain");
+            drainThread.setDaemon(true);
+            drainThread.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "p2p-log-flush"));
+        }
+
+        void publish(Level level, String logger, String template, int argc, int primMask,
+                     Object a0, Object a1, Object a2, long n0, long n1, long n2) {
+            Slot slot;
+            long pos;
+            while (true) {
+                pos = tail.get();
+                slot = slots[(int) (pos & mask)];
+                long diff = slot.sequence - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        break;
+                    }
+                } else if (diff < 0) {
+                    dropped.incrementAndGet(); // Ring full
+                    return;
+                }
+                // Another producer claimed this position; retry
+            }
+            slot.timestamp = System.currentTimeMillis();
+            slot.level = level;
+            slot.logger = logger;
+            slot.thread = Thread.currentThread().getName();
+            slot.template = template;
+            slot.argc = argc;
+            slot.primMask = primMask;
+            slot.a0 = a0;
+            slot.a1 = a1;
+            slot.a2 = a2;
+            slot.n0 = n0;
+            slot.n1 = n1;
+            slot.n2 = n2;
+            slot.sequence = pos + 1; // Publish
+            LockSupport.unpark(drainThread);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (!drainAvailable()) {
+                    LockSupport.parkNanos(this, 50_000_000L);
+                }
+            }
+        }
+
+        /**
+         * Drain all published entries. Only ever called from the drain thread.
+         */
+        private boolean drainAvailable() {
+            boolean any = false;
+            PrintStream outStream = System.out; // Looked up each time: the GUI may redirect it
+            while (true) {
+                long pos = head;
+                Slot slot = slots[(int) (pos & mask)];
+                if (slot.sequence != pos + 1) {
+                    break;
+                }
+                format(slot);
+                slot.clear();
+                slot.sequence = pos + slots.length; // Hand the slot back to producers
+                head = pos + 1;
+                outStream.println(line);
+                any = true;
+            }
+            return any;
+        }
+
+        private void format(Slot slot) {
+            line.setLength(0);
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(slot.timestamp), line);
+            line.append(' ').append(slot.level);
+            if (slot.level.name().length() == 4) {
+                line.append(' ');
+            }
+            line.append(" [").append(slot.logger).append("] [").append(slot.thread).append("] ");
+            String template = slot.template;
+            int arg = 0;
+            int start = 0;
+            int idx;
+            while (arg < slot.argc && (idx = template.indexOf("{}", start)) >= 0) {
+                line.append(template, start, idx);
+                appendArg(slot, arg++);
+                start = idx + 2;
+            }
+            line.append(template, start, template.length());
+        }
+
+        private void appendArg(Slot slot, int arg) {
+            if ((slot.primMask & (1 << arg)) != 0) {
+                line.append(arg == 0 ? slot.n0 : arg == 1 ? slot.n1 : slot.n2);
+                return;
+            }
+            Object value = (arg == 0) ? slot.a0 : (arg == 1) ? slot.a1 : slot.a2;
+            line.append(value);
+        }
+
+        /**
+         * Wait until the drain thread has caught up with everything published so far.
+         */
+        void flush() {
+            long target = tail.get();
+            long deadline = System.nanoTime() + 2_000_000_000L;
+            while (head < target && System.nanoTime() < deadline) {
+                LockSupport.unpark(drainThread);
+                Thread.onSpinWait();
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking front end to a {@link Peer}: every operation returns at once with a
+ * {@link CompletableFuture} of its typed result, so callers (the GUI, scripts) can start
+ * many operations and compose them without a thread each.
+ * --- Design Pattern: Facade ---
+ * Operations queue on a small shared pool and run the blocking Peer methods there; the
+ * queue is unbounded, so thousands of pending operations cost a queue entry, not a thread.
+ * Downloads have a pool of their own: they take turns on the Peer, and a queue of them
+ * waiting there must not hold up connects, listings and the rest.
+ * Cancelling a future before it starts drops the operation; cancelling a running download
+ * interrupts it, which aborts the transfer ("Cancelled" in the history) and drops the
+ * connection, whose reply was only partly read.
+ * --- Design Pattern: Observer ---
+ * {@link Listener}s hear about connections, downloads and failures as they happen, on the
+ * pool thread that ran the operation.
+ * Settings: -Dp2p.async.threads, -Dp2p.async.downloadThreads.
+ */
+class AsyncPeer {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(AsyncPeer.class);
+    private static final int THREADS = Math.max(1, P2PConfig.getInt("p2p.async.threads", 4));
+    private static final int DOWNLOAD_THREADS = Math.max(1, P2PConfig.getInt("p2p.async.downloadThreads", 4));
+
+    /**
+     * Callbacks for operations started through this facade. All methods are optional.
+     */
+    interface Listener {
+        default void connected(PeerConnection connection) {
+        }
+
+        default void downloadStarted(String fileName) {
+        }
+
+        /**
+         * {@code status} is the status recorded in the download history, e.g. "Completed" or "Cancelled".
+         */
+        default void downloadFinished(String fileName, String status) {
+        }
+
+        default void failed(String operation, Throwable error) {
+        }
+    }
+
+    private final Peer peer;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor downloads;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    AsyncPeer(Peer peer) {
+        this.peer = peer;
+        this.executor = newPool(THREADS, "peer-async-");
+        this.downloads = newPool(DOWNLOAD_THREADS, "peer-download-");
+    }
+
+    private static ThreadPoolExecutor newPool(int threads, String namePrefix) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, namePrefix + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Connect to a peer and fetch its file list. Fails with an IOException if the peer
+     * cannot be reached.
+     */
+    public CompletableFuture<PeerConnection> connect(String ip, int port) {
+        return submit(executor, "connect " + ip + ":" + port, () -> {
+            PeerConnection connection = peer.connectToPeer(ip, port);
+            if (connection == null) {
+                throw new IOException("Could not connect to " + ip + ":" + port);
+            }
+            for (Listener listener : listeners) {
+                listener.connected(connection);
+            }
+            return connection;
+        });
+    }
+
+    /**
+     * Fetch a fresh file list from connected peer {@code peerId}.
+     */
+    public CompletableFuture<List<String>> listRemoteFiles(int peerId) {
+        return submit(executor, "list peer " + peerId, () -> {
+            List<String> files = peer.refreshFileList(peerId);
+            if (files == null) {
+                throw new IOException("Could not list the files of peer " + peerId);
+            }
+            return files;
+        });
+    }
+
+    /**
+     * Relative paths of the files in the local shared directory.
+     */
+    public CompletableFuture<List<String>> listLocalFiles() {
+        return submit(executor, "list local files", peer::getLocalFiles);
+    }
+
+    /**
+     * Download a file (see {@link Peer#downloadFile(int, String, int)}); completes with the
+     * status recorded in the history, which may be a failure status.
+     */
+    public CompletableFuture<String> download(int peerId, String fileName, int streams) {
+        return submit(downloads, "download " + fileName, () -> {
+            for (Listener listener : listeners) {
+                listener.downloadStarted(fileName);
+            }
+            String status = peer.downloadFile(peerId, fileName, streams);
+            for (Listener listener : listeners) {
+                listener.downloadFinished(fileName, status);
+            }
+            return status;
+        });
+    }
+
+    /**
+     * Run any other blocking Peer operation on the pool.
+     */
+    public CompletableFuture<Void> run(String operation, Runnable task) {
+        return submit(executor, operation, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Operations queued or running.
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size() + executor.getActiveCount()
+                + downloads.getQueue().size() + downloads.getActiveCount();
+    }
+
+    private <T> CompletableFuture<T> submit(ThreadPoolExecutor pool, String operation, Callable<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = pool.submit(() -> {
+            if (result.isDone()) {
+                return; // Cancelled while queued
+            }
+            try {
+                result.complete(work.call());
+            } catch (Exception e) {
+                LOG.warn("{} failed: {}", operation, e.getMessage());
+                for (Listener listener : listeners) {
+                    listener.failed(operation, e);
+                }
+                result.completeExceptionally(e);
+            } finally {
+                Thread.interrupted(); // A late cancel must not leak into the next operation
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                task.cancel(true); // Interrupts the operation if it is running
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stop taking operations; queued ones are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        downloads.shutdownNow();
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.p2pfilesharing;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Upload and download rate limits, global and per peer.
+ * Every chunk of a transfer is charged against the global bucket for its direction and
+ * against the bucket of the remote peer (keyed by IP address). Both reservations are
+ * taken at once and the caller sleeps for the longer of the two, so being limited by
+ * both never doubles the delay.
+ * Limits are in bytes per second (0 = unlimited) and can be changed while transfers run.
+ * Initial values: -Dp2p.limit.upload.global, -Dp2p.limit.download.global,
+ * -Dp2p.limit.upload.peer, -Dp2p.limit.download.peer.
+ */
+class BandwidthManager {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(BandwidthManager.class);
+    private static final long TARGET_CHUNK_MILLIS = 20; // Keep each throttled write around 20 ms
+
+    private final TokenBucket globalUpload;
+    private final TokenBucket globalDownload;
+    private final Map<String, PeerBuckets> peerBuckets = new ConcurrentHashMap<>();
+    private volatile long defaultPeerUploadRate;
+    private volatile long defaultPeerDownloadRate;
+
+    // Per-peer pair of buckets; overridden limits stick when the defaults change
+    private static final class PeerBuckets {
+        final TokenBucket upload;
+        final TokenBucket download;
+        volatile boolean overridden;
+        int connections; // Open connections with the peer; only changed inside peerBuckets.compute
+
+        PeerBuckets(long uploadRate, long downloadRate) {
+            this.upload = new TokenBucket(uploadRate);
+            this.download = new TokenBucket(downloadRate);
+        }
+    }
+
+    public BandwidthManager() {
+        this.globalUpload = new TokenBucket(P2PConfig.getLong("p2p.limit.upload.global", 0));
+        this.globalDownload = new TokenBucket(P2PConfig.getLong("p2p.limit.download.global", 0));
+        this.defaultPeerUploadRate = P2PConfig.getLong("p2p.limit.upload.peer", 0);
+        this.defaultPeerDownloadRate = P2PConfig.getLong("p2p.limit.download.peer", 0);
+    }
+
+    public void setGlobalLimits(long uploadBytesPerSec, long downloadBytesPerSec) {
+        globalUpload.setRate(uploadBytesPerSec);
+        globalDownload.setRate(downloadBytesPerSec);
+        LOG.info("Global bandwidth limits set: upload {} B/s, download {} B/s (0 = unlimited)",
+                uploadBytesPerSec, downloadBytesPerSec);
+    }
+
+    /**
+     * Set the limits applied to each peer that has no explicit override.
+     */
+    public void setDefaultPeerLimits(long uploadBytesPerSec, long downloadBytesPerSec) {
+        this.defaultPeerUploadRate = uploadBytesPerSec;
+        this.defaultPeerDownloadRate = downloadBytesPerSec;
+        for (PeerBuckets buckets : peerBuckets.values()) {
+            if (!buckets.overridden) {
+                buckets.upload.setRate(uploadBytesPerSec);
+                buckets.download.setRate(downloadBytesPerSec);
+            }
+        }
+        LOG.info("Per-peer bandwidth limits set: upload {} B/s, download {} B/s (0 = unlimited)",
+                uploadBytesPerSec, downloadBytesPerSec);
+    }
+
+    /**
+     * Override the limits for one peer.
+     */
+    public void setPeerLimits(String peerIp, long uploadBytesPerSec, long downloadBytesPerSec) {
+        PeerBuckets buckets = bucketsFor(peerIp);
+        buckets.overridden = true;
+        buckets.upload.setRate(uploadBytesPerSec);
+        buckets.download.setRate(downloadBytesPerSec);
+    }
+
+    /**
+     * A connection with {@code peerIp} was opened (either direction).
+     */
+    public void peerConnected(String peerIp) {
+        peerBuckets.compute(peerIp, (ip, buckets) -> {
+            PeerBuckets counted = (buckets != null) ? buckets : new PeerBuckets(defaultPeerUploadRate, defaultPeerDownloadRate);
+            counted.connections++;
+            return counted;
+        });
+    }
+
+    /**
+     * A connection with {@code peerIp} was closed. The peer's buckets are dropped with its
+     * last connection unless its limits were overridden, so the map only holds current peers.
+     */
+    public void peerDisconnected(String peerIp) {
+        peerBuckets.computeIfPresent(peerIp, (ip, buckets) ->
+                (--buckets.connections > 0 || buckets.overridden) ? buckets : null);
+    }
+
+    /**
+     * Peers that currently have buckets.
+     */
+    public int getTrackedPeerCount() {
+        return peerBuckets.size();
+    }
+
+    public long getGlobalUploadLimit() {
+        return globalUpload.getRate();
+    }
+
+    public long getGlobalDownloadLimit() {
+        return globalDownload.getRate();
+    }
+
+    public long getDefaultPeerUploadLimit() {
+        return defaultPeerUploadRate;
+    }
+
+    public long getDefaultPeerDownloadLimit() {
+        return defaultPeerDownloadRate;
+    }
+
+    /**
+     * Charge {@code bytes} sent to {@code peerIp}; blocks as long as the limits require.
+     */
+    public void throttleUpload(String peerIp, int bytes) {
+        throttle(globalUpload, bucketsFor(peerIp).upload, bytes);
+    }
+
+    /**
+     * Charge {@code bytes} received from {@code peerIp}; blocks as long as the limits require.
+     */
+    public void throttleDownload(String peerIp, int bytes) {
+        throttle(globalDownload, bucketsFor(peerIp).download, bytes);
+    }
+
+    /**
+     * Chunk size to use for the next read/write so that throttled transfers stay smooth:
+     * roughly 20 ms worth of the tightest applicable limit, bounded by {@code maxChunk}.
+     */
+    public int chunkSize(String peerIp, boolean upload, int maxChunk) {
+        PeerBuckets buckets = bucketsFor(peerIp);
+        long rate = tightest(upload ? globalUpload : globalDownload, upload ? buckets.upload : buckets.download);
+        if (rate == 0) {
+            return maxChunk;
+        }
+        long chunk = rate * TARGET_CHUNK_MILLIS / 1000;
+        return (int) Math.max(1024, Math.min(maxChunk, chunk));
+    }
+
+    private static long tightest(TokenBucket a, TokenBucket b) {
+        long ra = a.getRate();
+        long rb = b.getRate();
+        if (ra == 0) return rb;
+        if (rb == 0) return ra;
+        return Math.min(ra, rb);
+    }
+
+    private static void throttle(TokenBucket global, TokenBucket peer, int bytes) {
+        if (global.isUnlimited() && peer.isUnlimited()) {
+            return;
+        }
+        long wait = Math.max(global.reserve(bytes), peer.reserve(bytes));
+        TokenBucket.sleepNanos(wait);
+    }
+
+    private PeerBuckets bucketsFor(String peerIp) {
+        PeerBuckets buckets = peerBuckets.get(peerIp);
+        if (buckets == null) {
+            buckets = peerBuckets.computeIfAbsent(peerIp,
+                    ip -> new PeerBuckets(defaultPeerUploadRate, defaultPeerDownloadRate));
+        }
+        return buckets;
+    }
+}
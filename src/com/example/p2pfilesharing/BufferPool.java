@@ -0,0 +1,109 @@
+package com.example.p2pfilesharing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide pool of transfer buffers, so the send and receive loops do not allocate a
+ * fresh array per file, range or bundle.
+ * Buffers come in power-of-two size classes from 1 KB up to {@link #MAX_POOLED}; a request is
+ * rounded up to its class and callers use the whole array. Each class keeps a small stack of
+ * free arrays (a plain array under a lock, so returning a buffer allocates nothing either),
+ * and the total retained is capped by -Dp2p.pool.maxBytes.
+ * The pool holds heap arrays rather than direct buffers: peers talk over stream sockets,
+ * which only accept byte[], so a direct buffer would add a copy on every write.
+ */
+final class BufferPool {
+    private static final int MIN_SHIFT = 10; // 1 KB
+    private static final int MAX_SHIFT = 24; // 16 MB
+    static final int MAX_POOLED = 1 << MAX_SHIFT;
+    private static final long MAX_RETAINED = P2PConfig.getLong("p2p.pool.maxBytes", 64L * 1024 * 1024);
+    private static final int MAX_PER_CLASS = 64;
+
+    private static final SizeClass[] CLASSES = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+    private static final AtomicLong retained = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    static {
+        for (int i = 0; i < CLASSES.length; i++) {
+            CLASSES[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+    }
+
+    private static final class SizeClass {
+        final int size;
+        final byte[][] free;
+        int count;
+
+        SizeClass(int size) {
+            this.size = size;
+            this.free = new byte[(int) Math.max(1, Math.min(MAX_PER_CLASS, MAX_RETAINED / size))][];
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * A buffer of at least {@code minSize} bytes (its exact length is the size class).
+     * Return it with {@link #release} when done.
+     */
+    static byte[] acquire(int minSize) {
+        SizeClass sizeClass = classFor(minSize);
+        if (sizeClass == null) {
+            misses.incrementAndGet();
+            return new byte[minSize]; // Larger than any class; not worth keeping
+        }
+        synchronized (sizeClass) {
+            if (sizeClass.count > 0) {
+                byte[] buffer = sizeClass.free[--sizeClass.count];
+                sizeClass.free[sizeClass.count] = null;
+                retained.addAndGet(-buffer.length);
+                hits.incrementAndGet();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return new byte[sizeClass.size];
+    }
+
+    /**
+     * Hand a buffer back. The caller must not touch it afterwards. Null is ignored.
+     */
+    static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        SizeClass sizeClass = classFor(buffer.length);
+        if (sizeClass == null || sizeClass.size != buffer.length) {
+            return; // Not one of ours; let the GC have it
+        }
+        if (retained.addAndGet(buffer.length) > MAX_RETAINED) {
+            retained.addAndGet(-buffer.length);
+            return;
+        }
+        synchronized (sizeClass) {
+            if (sizeClass.count < sizeClass.free.length) {
+                sizeClass.free[sizeClass.count++] = buffer;
+                return;
+            }
+        }
+        retained.addAndGet(-buffer.length);
+    }
+
+    private static SizeClass classFor(int size) {
+        if (size > MAX_POOLED) {
+            return null;
+        }
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return CLASSES[shift - MIN_SHIFT];
+    }
+
+    /**
+     * One line for the stats output.
+     */
+    static String describe() {
+        return String.format("Buffer pool: %d KB retained, %d reused, %d allocated",
+                retained.get() / 1024, hits.get(), misses.get());
+    }
+}
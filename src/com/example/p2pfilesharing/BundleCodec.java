@@ -0,0 +1,321 @@
+package com.example.p2pfilesharing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Wire format for directory bundles (BUNDLE request).
+ * A bundle is a sequence of records carried inside length-prefixed frames:
+ * <pre>
+ *   frame  := int length, byte[length]      (length 0 terminates the bundle)
+ *   record := 'F' path, long mtime, long size, byte[size]
+ *           | 'E'                            (end of records)
+ *   path   := int length, byte[length]      (UTF-8)
+ * </pre>
+ * The frames make the bundle self-delimiting even when the record stream is gzip-compressed,
+ * so the connection can carry ordinary requests again afterwards. Records are written and
+ * read incrementally: the receiver unpacks each file while the rest is still arriving.
+ */
+final class BundleCodec {
+    static final int FRAME_SIZE = 64 * 1024;
+    private static final int RECORD_FILE = 'F';
+    private static final int RECORD_END = 'E';
+    // Far beyond any real path, but keeps a corrupt length from allocating gigabytes
+    private static final int MAX_PATH_BYTES = 1024 * 1024;
+
+    private BundleCodec() {
+        // Static helpers only
+    }
+
+    /**
+     * Called before each frame goes out (used for bandwidth shaping and upload slots).
+     */
+    interface FrameHook {
+        void beforeFrame(int length) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Writes bundle records; {@link #finish()} ends the bundle but leaves the socket open.
+     */
+    static final class Writer {
+        private final DataOutputStream data;
+        private final ChunkedOutputStream frames;
+        private final GZIPOutputStream gzip;
+
+        Writer(OutputStream socketOut, boolean compress, FrameHook hook) throws IOException {
+            this.frames = new ChunkedOutputStream(socketOut, hook);
+            if (compress) {
+                // Fast compression level: the goal is line rate, not the smallest stream
+                this.gzip = new GZIPOutputStream(frames, FRAME_SIZE) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+                this.data = new DataOutputStream(gzip);
+            } else {
+                this.gzip = null;
+                this.data = new DataOutputStream(frames);
+            }
+        }
+
+        void beginFile(String relativePath, long mtime, long size) throws IOException {
+            data.writeByte(RECORD_FILE);
+            // Not writeUTF: its 64 KB limit is reachable with deep trees of long names
+            byte[] path = relativePath.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(path.length);
+            data.write(path);
+            data.writeLong(mtime);
+            data.writeLong(size);
+        }
+
+        void write(byte[] buffer, int offset, int length) throws IOException {
+            data.write(buffer, offset, length);
+        }
+
+        void finish() throws IOException {
+            data.writeByte(RECORD_END);
+            data.flush();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            frames.finish();
+        }
+    }
+
+    /**
+     * Reads bundle records as they arrive.
+     */
+    static final class Reader {
+        private final ChunkedInputStream frames;
+        private final DataInputStream data;
+        private long remainingInFile;
+
+        Reader(InputStream socketIn, boolean compressed) throws IOException {
+            this.frames = new ChunkedInputStream(socketIn);
+            this.data = new DataInputStream(compressed ? new GZIPInputStream(frames, FRAME_SIZE) : frames);
+        }
+
+        /**
+         * Advance to the next file. Returns null at the end of the bundle (after consuming
+         * the terminating frame, so the connection is ready for the next request).
+         */
+        Entry nextFile() throws IOException {
+            if (remainingInFile > 0) {
+                throw new IOException("Previous bundle entry was not fully read");
+            }
+            int type = data.readUnsignedByte();
+            if (type == RECORD_END) {
+                frames.drain();
+                return null;
+            }
+            if (type != RECORD_FILE) {
+                throw new IOException("Corrupt bundle stream (record type " + type + ")");
+            }
+            int pathLength = data.readInt();
+            if (pathLength < 0 || pathLength > MAX_PATH_BYTES) {
+                throw new IOException("Corrupt bundle stream (path length " + pathLength + ")");
+            }
+            byte[] pathBytes = new byte[pathLength];
+            data.readFully(pathBytes);
+            String path = new String(pathBytes, StandardCharsets.UTF_8);
+            long mtime = data.readLong();
+            long size = data.readLong();
+            if (size < 0) {
+                throw new IOException("Corrupt bundle stream (negative size)");
+            }
+            remainingInFile = size;
+            return new Entry(path, mtime, size);
+        }
+
+        /**
+         * Read part of the current file's contents; -1 once it has been fully read.
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remainingInFile == 0) {
+                return -1;
+            }
+            int n = data.read(buffer, offset, (int) Math.min(length, remainingInFile));
+            if (n < 0) {
+                throw new EOFException("Bundle ended in the middle of a file");
+            }
+            remainingInFile -= n;
+            return n;
+        }
+    }
+
+    static final class Entry {
+        final String path;
+        final long mtime;
+        final long size;
+
+        Entry(String path, long mtime, long size) {
+            this.path = path;
+            this.mtime = mtime;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Buffers writes into frames of up to FRAME_SIZE bytes. The 4-byte length prefix lives
+     * in the same array, so each frame is a single write to the socket.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+        private static final int HEADER = 4;
+        private final byte[] frame = new byte[HEADER + FRAME_SIZE];
+        private final FrameHook hook;
+        private int used;
+
+        ChunkedOutputStream(OutputStream out, FrameHook hook) {
+            super(out);
+            this.hook = hook;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (used == FRAME_SIZE) {
+                emit();
+            }
+            frame[HEADER + used++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (used == FRAME_SIZE) {
+                    emit();
+                }
+                int n = Math.min(len, FRAME_SIZE - used);
+                System.arraycopy(b, off, frame, HEADER + used, n);
+                used += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Frames go out when full or at finish(); flushing partial frames would only add overhead
+        }
+
+        void finish() throws IOException {
+            emit();
+            putLength(0);
+            out.write(frame, 0, HEADER);
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            // The socket stream belongs to the connection
+        }
+
+        private void emit() throws IOException {
+            if (used == 0) {
+                return;
+            }
+            try {
+                if (hook != null) {
+                    hook.beforeFrame(used);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending bundle");
+            }
+            putLength(used);
+            out.write(frame, 0, HEADER + used);
+            used = 0;
+        }
+
+        private void putLength(int length) {
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        }
+    }
+
+    /**
+     * Reassembles the frame payloads; returns -1 after the terminating empty frame.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] single = new byte[1];
+        private int remainingInFrame;
+        private boolean finished;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextFrameIfNeeded()) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remainingInFrame));
+            if (n < 0) {
+                throw new EOFException("Connection closed in the middle of a bundle");
+            }
+            remainingInFrame -= n;
+            return n;
+        }
+
+        /**
+         * Skip to the end of the bundle (e.g. trailing gzip bytes the decoder did not need).
+         */
+        void drain() throws IOException {
+            byte[] scratch = new byte[4096];
+            while (read(scratch, 0, scratch.length) != -1) {
+                // Discard
+            }
+        }
+
+        @Override
+        public void close() {
+            // The socket stream belongs to the connection
+        }
+
+        private boolean nextFrameIfNeeded() throws IOException {
+            while (remainingInFrame == 0) {
+                if (finished) {
+                    return false;
+                }
+                int length = 0;
+                for (int i = 0; i < 4; i++) {
+                    int b = in.read();
+                    if (b < 0) {
+                        throw new EOFException("Connection closed in the middle of a bundle");
+                    }
+                    length = (length << 8) | b;
+                }
+                if (length < 0 || length > FRAME_SIZE) {
+                    throw new IOException("Corrupt bundle frame length: " + length);
+                }
+                if (length == 0) {
+                    finished = true;
+                    return false;
+                }
+                remainingInFrame = length;
+            }
+            return true;
+        }
+    }
+}
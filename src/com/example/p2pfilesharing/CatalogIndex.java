@@ -0,0 +1,461 @@
+package com.example.p2pfilesharing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Searchable index over the file lists of all connected peers.
+ * Every distinct path gets an id; a path offered by several peers is stored once with all
+ * of them as sources. Lookups go through:
+ * <ul>
+ *   <li>a trigram index (every distinct 3-character sequence of the lower-cased path maps to
+ *       the ids containing it, in ascending order): substring and prefix queries intersect
+ *       the lists of the query's trigrams and check only the survivors,</li>
+ *   <li>an extension index for "*.ext" queries, holding every compound extension
+ *       ("tar.gz" as well as "gz").</li>
+ * </ul>
+ * Queries of one or two characters merge the lists of all trigrams containing them (plus the
+ * few paths too short to have a trigram) and stop at the result limit.
+ * Updates are incremental: {@link #update} applies only the difference between a peer's old
+ * and new list. Removed paths are marked dead and skipped; the index is rebuilt once dead
+ * ids outnumber live ones.
+ * Query syntax: "text" (substring of the path), "text*" (prefix of the file name or path),
+ * "*.ext" (extension). Matching ignores case.
+ */
+class CatalogIndex {
+    private static final int COMPACT_MIN_DEAD = 10000;
+    private static final int TRIM_AFTER_ADDS = 10000; // Bulk loads release the lists' spare capacity
+
+    /**
+     * One search result: a path and the peers offering it.
+     */
+    static final class Match {
+        final String path;
+        final List<PeerConnection> sources;
+
+        Match(String path, List<PeerConnection> sources) {
+            this.path = path;
+            this.sources = sources;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private String[] names = new String[1024]; // By id; null once removed
+    private PeerConnection[][] sources = new PeerConnection[1024][];
+    private int nextId;
+    private int live;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final TrigramMap trigrams = new TrigramMap();
+    private final IntList shortIds = new IntList(); // Paths shorter than three characters
+    private final Map<String, IntList> extensions = new HashMap<>();
+
+    /**
+     * Replace {@code source}'s list {@code oldFiles} with {@code newFiles} (either may be null).
+     */
+    void update(PeerConnection source, List<String> oldFiles, List<String> newFiles) {
+        Set<String> before = (oldFiles == null) ? Collections.emptySet() : new HashSet<>(oldFiles);
+        Set<String> after = (newFiles == null) ? Collections.emptySet() : new HashSet<>(newFiles);
+        lock.writeLock().lock();
+        try {
+            for (String name : before) {
+                if (!after.contains(name)) {
+                    removeSource(name, source);
+                }
+            }
+            int firstNew = nextId;
+            for (String name : after) {
+                if (!before.contains(name)) {
+                    addSource(name, source);
+                }
+            }
+            if (nextId - live >= COMPACT_MIN_DEAD && nextId - live > live) {
+                compact();
+            } else if (nextId - firstNew >= TRIM_AFTER_ADDS) {
+                trigrams.trim();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Up to {@code limit} matches for {@code query}, in index order.
+     */
+    List<Match> search(String query, int limit) {
+        String needle = query.trim().toLowerCase(Locale.ROOT);
+        List<Match> matches = new ArrayList<>();
+        if (needle.isEmpty() || limit <= 0) {
+            return matches;
+        }
+        lock.readLock().lock();
+        try {
+            if (needle.startsWith("*.") && needle.indexOf('*', 1) < 0) {
+                IntList candidates = extensions.get(needle.substring(2));
+                for (int i = 0; candidates != null && i < candidates.size && matches.size() < limit; i++) {
+                    addMatch(candidates.values[i], matches);
+                }
+                return matches;
+            }
+            boolean prefix = needle.endsWith("*");
+            if (prefix) {
+                needle = needle.substring(0, needle.length() - 1);
+            }
+            if (needle.isEmpty()) {
+                return matches;
+            }
+            if (needle.length() >= 3) {
+                matchTrigrams(needle, prefix, limit, matches);
+            } else {
+                // Every occurrence sits inside some trigram, so the union of those lists
+                // covers all matches; walk it in id order and stop at the limit
+                List<IntList> lists = trigrams.listsContaining(needle);
+                lists.add(shortIds);
+                PriorityQueue<int[]> cursors = new PriorityQueue<>((a, b) ->
+                        Integer.compare(lists.get(a[0]).values[a[1]], lists.get(b[0]).values[b[1]]));
+                for (int i = 0; i < lists.size(); i++) {
+                    if (lists.get(i).size > 0) {
+                        cursors.add(new int[] {i, 0}); // {list, position}
+                    }
+                }
+                int last = -1;
+                while (!cursors.isEmpty() && matches.size() < limit) {
+                    int[] cursor = cursors.poll();
+                    IntList list = lists.get(cursor[0]);
+                    int id = list.values[cursor[1]];
+                    if (id != last) {
+                        check(id, needle, prefix, matches);
+                        last = id;
+                    }
+                    if (++cursor[1] < list.size) {
+                        cursors.add(cursor);
+                    }
+                }
+            }
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of distinct paths currently offered by at least one peer.
+     */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The peers offering exactly {@code path} (empty if none does).
+     */
+    List<PeerConnection> sourcesOf(String path) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(path);
+            return (id == null) ? Collections.emptyList() : Arrays.asList(sources[id].clone());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void check(int id, String needle, boolean prefix, List<Match> matches) {
+        String name = names[id];
+        if (name != null && (prefix ? startsWithIgnoreCase(name, needle) : containsIgnoreCase(name, needle))) {
+            addMatch(id, matches);
+        }
+    }
+
+    private void addMatch(int id, List<Match> matches) {
+        if (names[id] != null) {
+            matches.add(new Match(names[id], Arrays.asList(sources[id].clone())));
+        }
+    }
+
+    /**
+     * Walk the ids containing every trigram of {@code needle} (a superset of the real matches)
+     * in ascending order, checking each, until {@code limit} matches are found. The shortest
+     * list drives the walk; the others are searched from where the last lookup ended, so a
+     * query costs roughly what it returns rather than the size of the lists.
+     */
+    private void matchTrigrams(String needle, boolean prefix, int limit, List<Match> matches) {
+        long[] keys = trigramsOf(needle);
+        IntList[] lists = new IntList[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            lists[i] = trigrams.get(keys[i], false);
+            if (lists[i] == null) {
+                return; // A trigram that occurs nowhere
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        int[] positions = new int[lists.length];
+        IntList driver = lists[0];
+        for (int i = 0; i < driver.size && matches.size() < limit; i++) {
+            int id = driver.values[i];
+            boolean inAll = true;
+            for (int k = 1; k < lists.length && inAll; k++) {
+                IntList list = lists[k];
+                int found = Arrays.binarySearch(list.values, positions[k], list.size, id);
+                positions[k] = (found >= 0) ? found + 1 : -found - 1;
+                inAll = found >= 0;
+            }
+            if (inAll) {
+                check(id, needle, prefix, matches);
+            }
+        }
+    }
+
+    private void addSource(String name, PeerConnection source) {
+        Integer existing = ids.get(name);
+        int id = (existing != null) ? existing : newId(name);
+        PeerConnection[] current = sources[id];
+        for (PeerConnection known : current) {
+            if (known == source) {
+                return;
+            }
+        }
+        PeerConnection[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = source;
+        sources[id] = grown;
+    }
+
+    private void removeSource(String name, PeerConnection source) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            return;
+        }
+        PeerConnection[] current = sources[id];
+        int index = Arrays.asList(current).indexOf(source);
+        if (index < 0) {
+            return;
+        }
+        if (current.length == 1) {
+            // Nobody offers it any more; its postings are skipped until the next compaction
+            names[id] = null;
+            sources[id] = null;
+            ids.remove(name);
+            live--;
+            return;
+        }
+        PeerConnection[] shrunk = new PeerConnection[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, index);
+        System.arraycopy(current, index + 1, shrunk, index, current.length - index - 1);
+        sources[id] = shrunk;
+    }
+
+    private int newId(String name) {
+        if (nextId == names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+            sources = Arrays.copyOf(sources, sources.length * 2);
+        }
+        int id = nextId++;
+        names[id] = name;
+        sources[id] = new PeerConnection[0];
+        ids.put(name, id);
+        live++;
+        String lower = name.toLowerCase(Locale.ROOT);
+        long[] keys = trigramsOf(lower);
+        for (long key : keys) {
+            trigrams.get(key, true).add(id);
+        }
+        if (keys.length == 0) {
+            shortIds.add(id);
+        }
+        // Every compound extension: "a.tar.gz" is found by "*.tar.gz" and by "*.gz"
+        for (int dot = lower.indexOf('.', lower.lastIndexOf('/') + 1); dot >= 0 && dot < lower.length() - 1;
+             dot = lower.indexOf('.', dot + 1)) {
+            extensions.computeIfAbsent(lower.substring(dot + 1), k -> new IntList()).add(id);
+        }
+        return id;
+    }
+
+    /**
+     * Rebuild without the dead ids; live ids keep their relative order.
+     */
+    private void compact() {
+        String[] oldNames = names;
+        PeerConnection[][] oldSources = sources;
+        int oldCount = nextId;
+        names = new String[Math.max(1024, Integer.highestOneBit(Math.max(1, live)) * 2)];
+        sources = new PeerConnection[names.length][];
+        nextId = 0;
+        live = 0;
+        ids.clear();
+        trigrams.clear();
+        shortIds.size = 0;
+        extensions.clear();
+        for (int id = 0; id < oldCount; id++) {
+            if (oldNames[id] != null) {
+                int newId = newId(oldNames[id]);
+                sources[newId] = oldSources[id];
+            }
+        }
+    }
+
+    /**
+     * The distinct trigrams of {@code lower}, each packed as three 16-bit chars.
+     */
+    private static long[] trigramsOf(String lower) {
+        if (lower.length() < 3) {
+            return new long[0];
+        }
+        long[] keys = new long[lower.length() - 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) lower.charAt(i) << 32) | ((long) lower.charAt(i + 1) << 16) | lower.charAt(i + 2);
+        }
+        Arrays.sort(keys);
+        int distinct = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[distinct++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    private static boolean containsIgnoreCase(String name, String lowerNeedle) {
+        char first = lowerNeedle.charAt(0);
+        for (int i = 0; i + lowerNeedle.length() <= name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c == first || Character.toLowerCase(c) == first)
+                    && name.regionMatches(true, i, lowerNeedle, 0, lowerNeedle.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWithIgnoreCase(String name, String lowerPrefix) {
+        int slash = name.lastIndexOf('/');
+        return name.regionMatches(true, 0, lowerPrefix, 0, lowerPrefix.length())
+                || name.regionMatches(true, slash + 1, lowerPrefix, 0, lowerPrefix.length());
+    }
+
+    /**
+     * Growable array of ids (no boxing).
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void trim() {
+            if (values.length > size + 4) {
+                values = Arrays.copyOf(values, Math.max(4, size));
+            }
+        }
+    }
+
+    /**
+     * Open-addressing map from packed trigram to its id list (no boxed keys; a million paths
+     * mean tens of millions of lookups while indexing).
+     */
+    private static final class TrigramMap {
+        private long[] keys = new long[1024];
+        private IntList[] lists = new IntList[1024];
+        private int count;
+
+        IntList get(long key, boolean create) {
+            int mask = keys.length - 1;
+            int slot = (int) (mix(key) & mask);
+            while (lists[slot] != null) {
+                if (keys[slot] == key) {
+                    return lists[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!create) {
+                return null;
+            }
+            if (count * 2 >= keys.length) {
+                grow();
+                return get(key, true);
+            }
+            keys[slot] = key;
+            lists[slot] = new IntList();
+            count++;
+            return lists[slot];
+        }
+
+        /**
+         * Id lists of every trigram containing {@code needle} (one or two characters).
+         */
+        List<IntList> listsContaining(String needle) {
+            List<IntList> result = new ArrayList<>();
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (lists[slot] != null && contains(keys[slot], needle)) {
+                    result.add(lists[slot]);
+                }
+            }
+            return result;
+        }
+
+        private static boolean contains(long key, String needle) {
+            char a = (char) (key >>> 32);
+            char b = (char) (key >>> 16);
+            char c = (char) key;
+            if (needle.length() == 1) {
+                char n = needle.charAt(0);
+                return a == n || b == n || c == n;
+            }
+            char n0 = needle.charAt(0);
+            char n1 = needle.charAt(1);
+            return (a == n0 && b == n1) || (b == n0 && c == n1);
+        }
+
+        void trim() {
+            for (IntList list : lists) {
+                if (list != null) {
+                    list.trim();
+                }
+            }
+        }
+
+        void clear() {
+            keys = new long[1024];
+            lists = new IntList[1024];
+            count = 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            IntList[] oldLists = lists;
+            keys = new long[oldKeys.length * 2];
+            lists = new IntList[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldLists[i] != null) {
+                    int slot = (int) (mix(oldKeys[i]) & mask);
+                    while (lists[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    lists[slot] = oldLists[i];
+                }
+            }
+        }
+
+        private static long mix(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return key ^ (key >>> 29);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chunks of a download in progress that have arrived and passed verification, so other
+ * peers can fetch them from us before the file is complete (partial seeding).
+ * A file is cut into fixed-size chunks, each with its own SHA-256. A chunk is marked as held
+ * only after its data matched that hash, and only held chunks are served.
+ * Every newly held chunk is appended to a log; the position in the log is the cursor peers
+ * pass to "HAVES" to receive just the chunks gained since their last look. Waiters on the
+ * map are woken when a chunk arrives or the download ends.
+ * Chunk hashes of complete local files are computed on request and kept in a small cache.
+ * Settings: -Dp2p.swarm.chunkBytes.
+ */
+class ChunkMap {
+    static final long CHUNK_BYTES = Math.max(64 * 1024, Math.min(16L * 1024 * 1024,
+            P2PConfig.getLong("p2p.swarm.chunkBytes", 1024 * 1024)));
+    private static final int HASH_CACHE_FILES = 64;
+    private static final Map<Path, CachedHashes> HASH_CACHE = new LinkedHashMap<Path, CachedHashes>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, CachedHashes> eldest) {
+            return size() > HASH_CACHE_FILES;
+        }
+    };
+
+    private final long size;
+    private final long chunkSize;
+    private final String[] hashes; // Hex SHA-256 per chunk
+    private final PartialFile partial;
+    private final BitSet have = new BitSet();
+    private int[] log = new int[16]; // Chunk indices in the order they were verified
+    private int logSize;
+    private boolean finished; // Committed or aborted: nothing more will be served from here
+
+    ChunkMap(long size, long chunkSize, String[] hashes, PartialFile partial) {
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.hashes = hashes;
+        this.partial = partial;
+    }
+
+    static int chunkCount(long size, long chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getChunkSize() {
+        return chunkSize;
+    }
+
+    int getChunkCount() {
+        return hashes.length;
+    }
+
+    String hash(int chunk) {
+        return hashes[chunk];
+    }
+
+    List<String> hashes() {
+        return Arrays.asList(hashes);
+    }
+
+    long offsetOf(int chunk) {
+        return chunk * chunkSize;
+    }
+
+    int lengthOf(int chunk) {
+        return (int) Math.min(chunkSize, size - offsetOf(chunk));
+    }
+
+    /**
+     * True if {@code data} (the first {@code length} bytes) is chunk {@code chunk}.
+     */
+    boolean verify(int chunk, byte[] data, int length) {
+        MessageDigest digest = ContentStore.newDigest();
+        digest.update(data, 0, length);
+        return ContentStore.toHex(digest.digest()).equals(hashes[chunk]);
+    }
+
+    synchronized void markHave(int chunk) {
+        if (have.get(chunk)) {
+            return;
+        }
+        have.set(chunk);
+        if (logSize == log.length) {
+            log = Arrays.copyOf(log, logSize * 2);
+        }
+        log[logSize++] = chunk;
+        notifyAll();
+    }
+
+    synchronized boolean has(int chunk) {
+        return have.get(chunk);
+    }
+
+    synchronized int heldCount() {
+        return have.cardinality();
+    }
+
+    synchronized boolean isComplete() {
+        return have.cardinality() == hashes.length;
+    }
+
+    /**
+     * True if every chunk overlapping {@code offset .. offset + length} is held.
+     */
+    synchronized boolean hasRange(long offset, long length) {
+        if (finished || offset < 0 || length <= 0 || offset + length > size) {
+            return false;
+        }
+        int first = (int) (offset / chunkSize);
+        int last = (int) ((offset + length - 1) / chunkSize);
+        return have.nextClearBit(first) > last;
+    }
+
+    /**
+     * Read held data back for another peer. Returns false if the download ended meanwhile.
+     */
+    boolean read(long offset, byte[] buffer, int length) throws IOException {
+        return hasRange(offset, length) && partial.read(offset, buffer, length);
+    }
+
+    /**
+     * The download was committed or aborted; wake anyone waiting for news.
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Current cursor: the number of chunks verified so far.
+     */
+    synchronized int cursor() {
+        return logSize;
+    }
+
+    /**
+     * Chunks verified after {@code cursor}, waiting up to {@code waitMillis} for at least one.
+     */
+    synchronized int[] changesSince(int cursor, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        long remaining = waitMillis;
+        while (logSize <= cursor && !finished && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        int from = Math.max(0, Math.min(cursor, logSize));
+        return Arrays.copyOfRange(log, from, logSize);
+    }
+
+    /**
+     * The held-chunk bitmap as hex (bit i of byte i / 8 is chunk i), "-" if empty.
+     */
+    synchronized String encodeBitmap() {
+        byte[] bytes = have.toByteArray();
+        return (bytes.length == 0) ? "-" : ContentStore.toHex(bytes);
+    }
+
+    static BitSet decodeBitmap(String hex) {
+        if (hex.equals("-")) {
+            return new BitSet();
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return BitSet.valueOf(bytes);
+    }
+
+    /**
+     * Chunk hashes of a complete local file, computed once per file version.
+     */
+    static String[] hashesOf(Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        synchronized (HASH_CACHE) {
+            CachedHashes cached = HASH_CACHE.get(file);
+            if (cached != null && cached.size == attrs.size() && cached.mtime == mtime) {
+                return cached.hashes;
+            }
+        }
+        String[] hashes = new String[chunkCount(attrs.size(), CHUNK_BYTES)];
+        MessageDigest digest = ContentStore.newDigest();
+        byte[] buffer = BufferPool.acquire((int) Math.min(CHUNK_BYTES, 256 * 1024));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int chunk = 0; chunk < hashes.length; chunk++) {
+                long position = chunk * CHUNK_BYTES;
+                long end = Math.min(attrs.size(), position + CHUNK_BYTES);
+                while (position < end) {
+                    ByteBuffer dst = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+                    int n = channel.read(dst, position);
+                    if (n < 0) {
+                        throw new IOException("File shrank while hashing chunks: " + file);
+                    }
+                    digest.update(buffer, 0, n);
+                    position += n;
+                }
+                hashes[chunk] = ContentStore.toHex(digest.digest());
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        synchronized (HASH_CACHE) {
+            HASH_CACHE.put(file, new CachedHashes(attrs.size(), mtime, hashes));
+        }
+        return hashes;
+    }
+
+    private static final class CachedHashes {
+        final long size;
+        final long mtime;
+        final String[] hashes;
+
+        CachedHashes(long size, long mtime, String[] hashes) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hashes = hashes;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.p2pfilesharing;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Per-connection transfer tuning from measured round-trip time and throughput.
+ * RTT comes from PING/PONG heartbeats (the client passes its estimate along, so the serving
+ * side knows it too); throughput from completed transfers. From their product, the
+ * bandwidth-delay product, the tuner derives:
+ * <ul>
+ *   <li>the application buffer used by the transfer loops (about a quarter of the BDP),</li>
+ *   <li>TCP_NODELAY: on while the connection mostly carries small request/response messages,
+ *       off once it carries bulk transfers and the kernel may coalesce segments,</li>
+ *   <li>optionally SO_SNDBUF (twice the BDP, only ever raised; -Dp2p.tune.socketBuffers=true).</li>
+ * </ul>
+ * Socket buffers are left to the kernel by default. On Linux any explicit SO_SNDBUF or
+ * SO_RCVBUF, larger or smaller, switches off autotuning of that buffer for the socket, and
+ * autotuning usually does better than a guess from a few samples. SO_RCVBUF is never
+ * changed on an open connection: the window scale is fixed in the SYN, so a receive buffer
+ * raised afterwards cannot be advertised in full. A fixed receive buffer can instead be
+ * set before connecting and on the listening socket with -Dp2p.tune.receiveBuffer (bytes).
+ * All values stay within configurable bounds: -Dp2p.tune.minBuffer, -Dp2p.tune.maxBuffer,
+ * -Dp2p.tune.maxSocketBuffer, -Dp2p.tune.nodelay (auto, true, false), -Dp2p.tune=false disables.
+ */
+class ConnectionTuner {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ConnectionTuner.class);
+    private static final boolean ENABLED = P2PConfig.getBoolean("p2p.tune", true);
+    static final int MIN_BUFFER = Math.max(1024, P2PConfig.getInt("p2p.tune.minBuffer", 8 * 1024));
+    static final int MAX_BUFFER = Math.max(MIN_BUFFER, P2PConfig.getInt("p2p.tune.maxBuffer", 1024 * 1024));
+    private static final int MAX_SOCKET_BUFFER = P2PConfig.getInt("p2p.tune.maxSocketBuffer", 8 * 1024 * 1024);
+    private static final boolean TUNE_SEND_BUFFER = P2PConfig.getBoolean("p2p.tune.socketBuffers", false);
+    private static final int RECEIVE_BUFFER = P2PConfig.getInt("p2p.tune.receiveBuffer", 0); // 0 = kernel autotuning
+    private static final String NODELAY_MODE = P2PConfig.getString("p2p.tune.nodelay", "auto");
+    private static final double ALPHA = 0.3; // Weight of the newest sample in the moving averages
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024; // Smaller transfers measure latency, not bandwidth
+    private static final double DEFAULT_RTT_SECONDS = 0.01; // Until the first heartbeat
+
+    private final String label;
+    private final Socket socket;
+    private double rttSeconds = -1;
+    private double bytesPerSecond = -1;
+    private double averageTransfer = -1;
+    private long totalBytes;
+    private long transfers;
+    private int bufferSize = MIN_BUFFER;
+    private int sendBuffer;
+    private int receiveBuffer;
+    private boolean noDelay;
+
+    ConnectionTuner(String label, Socket socket) {
+        this.label = label;
+        this.socket = socket;
+        try {
+            sendBuffer = socket.getSendBufferSize();
+            receiveBuffer = socket.getReceiveBufferSize();
+            // Requests and headers are written as complete lines, so Nagle only adds latency
+            noDelay = !NODELAY_MODE.equalsIgnoreCase("false");
+            socket.setTcpNoDelay(noDelay);
+        } catch (SocketException e) {
+            LOG.debug("Could not read socket options for {}: {}", label, e.getMessage());
+        }
+    }
+
+    /**
+     * Application buffer size for the next transfer.
+     */
+    public synchronized int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Buffer size for a transfer of {@code expectedBytes}: no larger than needed, so batches of
+     * small files don't tie up full-size buffers (see BufferPool).
+     */
+    public int bufferSizeFor(long expectedBytes) {
+        return (int) Math.max(1024, Math.min(bufferSize(), expectedBytes));
+    }
+
+    public synchronized void recordRtt(long nanos) {
+        double sample = nanos / 1e9;
+        rttSeconds = (rttSeconds < 0) ? sample : (1 - ALPHA) * rttSeconds + ALPHA * sample;
+        retune();
+    }
+
+    public synchronized long getRttMicros() {
+        return (rttSeconds < 0) ? -1 : (long) (rttSeconds * 1e6);
+    }
+
+    public synchronized void recordTransfer(long bytes, long nanos) {
+        transfers++;
+        totalBytes += bytes;
+        averageTransfer = (averageTransfer < 0) ? bytes : (1 - ALPHA) * averageTransfer + ALPHA * bytes;
+        if (bytes >= MIN_SAMPLE_BYTES && nanos > 0) {
+            double sample = bytes / (nanos / 1e9);
+            bytesPerSecond = (bytesPerSecond < 0) ? sample : (1 - ALPHA) * bytesPerSecond + ALPHA * sample;
+        }
+        retune();
+    }
+
+    private void retune() {
+        if (!ENABLED || socket.isClosed()) {
+            return;
+        }
+        if (bytesPerSecond > 0) {
+            double rtt = (rttSeconds > 0) ? rttSeconds : DEFAULT_RTT_SECONDS;
+            double bdp = bytesPerSecond * rtt;
+            bufferSize = clamp(Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, Math.max(1, bdp / 4))) * 2,
+                    MIN_BUFFER, MAX_BUFFER);
+            int socketTarget = clamp((long) (2 * bdp), 0, MAX_SOCKET_BUFFER);
+            // Only grow, and only on a significant change, to avoid churning the kernel
+            if (TUNE_SEND_BUFFER && socketTarget > sendBuffer * 5L / 4) {
+                try {
+                    socket.setSendBufferSize(socketTarget);
+                    sendBuffer = socket.getSendBufferSize();
+                } catch (SocketException e) {
+                    LOG.debug("Could not resize the send buffer for {}: {}", label, e.getMessage());
+                }
+            }
+        }
+        if (NODELAY_MODE.equalsIgnoreCase("auto") && averageTransfer >= 0) {
+            boolean chatty = averageTransfer < 4L * bufferSize;
+            if (chatty != noDelay) {
+                try {
+                    socket.setTcpNoDelay(chatty);
+                    noDelay = chatty;
+                } catch (SocketException e) {
+                    LOG.debug("Could not change TCP_NODELAY for {}: {}", label, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply -Dp2p.tune.receiveBuffer to a socket that is not connected yet, so the window
+     * scale offered in the SYN covers it.
+     */
+    static void presetReceiveBuffer(Socket unconnected) throws SocketException {
+        if (ENABLED && RECEIVE_BUFFER > 0) {
+            unconnected.setReceiveBufferSize(RECEIVE_BUFFER);
+        }
+    }
+
+    /**
+     * Same for a listening socket that is not bound yet; accepted sockets inherit it.
+     */
+    static void presetReceiveBuffer(ServerSocket unbound) throws SocketException {
+        if (ENABLED && RECEIVE_BUFFER > 0) {
+            unbound.setReceiveBufferSize(RECEIVE_BUFFER);
+        }
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * One line for the stats output.
+     */
+    public synchronized String describe() {
+        return String.format("%s  rtt=%s  throughput=%s  buffer=%d KB  sndbuf=%d KB  rcvbuf=%d KB  nodelay=%b  transfers=%d (%d bytes)",
+                label,
+                (rttSeconds < 0) ? "n/a" : String.format("%.2f ms", rttSeconds * 1e3),
+                (bytesPerSecond < 0) ? "n/a" : String.format("%.2f MB/s", bytesPerSecond / (1024 * 1024)),
+                bufferSize / 1024, sendBuffer / 1024, receiveBuffer / 1024, noDelay, transfers, totalBytes);
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.p2pfilesharing;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Scanner;
+
+// --- Design Principle: Single Responsibility Principle (SRP) ---
+// ConsoleView is responsible *only* for interacting with the console.
+class ConsoleView {
+    private final Scanner scanner = new Scanner(System.in); // Made final
+
+    public void displayWelcome() {
+        System.out.println("P2P File Sharing Application");
+        System.out.println("============================");
+    }
+
+    public int getPort() {
+        System.out.print("Enter your port number: ");
+        int port = scanner.nextInt();
+        scanner.nextLine(); // Consume newline
+        return port;
+    }
+
+    public String getSharedDirectory() {
+        System.out.print("Enter your shared directory path: ");
+        return scanner.nextLine();
+    }
+
+    public int getMenuChoice() {
+        System.out.println("\nMenu:");
+        System.out.println("1. Connect to a peer");
+        System.out.println("2. List available files from connected peers");
+        System.out.println("3. Download a file");
+        System.out.println("4. List local shared files");
+        System.out.println("5. List known peers (from DB)"); // Updated label
+        System.out.println("6. View Download History"); // New option
+        System.out.println("7. Download multiple files (list or glob)");
+        System.out.println("8. Download a folder (bundle)");
+        System.out.println("9. Sync a changed file (delta)");
+        System.out.println("10. Show transfer statistics");
+        System.out.println("11. Search files on connected peers");
+        System.out.println("12. Show transfer analytics");
+        System.out.println("13. Exit"); // Adjusted number
+        System.out.print("Select an option: ");
+        int choice = scanner.nextInt();
+        scanner.nextLine(); // Consume newline
+        return choice;
+    }
+
+    public String getPeerIp() {
+        System.out.print("Enter peer IP address: ");
+        return scanner.nextLine();
+    }
+
+    public int getPeerPort() {
+        System.out.print("Enter peer port: ");
+        int port = scanner.nextInt();
+        scanner.nextLine(); // Consume newline
+        return port;
+    }
+
+    public int getPeerIndex() {
+        return readPeerId("Enter peer ID: ", false);
+    }
+
+    // Blank means "let the node pick": -1
+    public int getSourceIndex() {
+        return readPeerId("Enter peer ID (Enter for the best source): ", true);
+    }
+
+    // Asks again until it gets a peer ID (or, if allowed, a blank line: -1)
+    private int readPeerId(String prompt, boolean blankAllowed) {
+        while (true) {
+            System.out.print(prompt);
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty() && blankAllowed) {
+                return -1;
+            }
+            try {
+                int id = Integer.parseInt(line);
+                if (id >= 0) {
+                    return id;
+                }
+            } catch (NumberFormatException e) {
+                // Asked again below
+            }
+            System.out.println("Not a peer ID: '" + line + "'");
+        }
+    }
+
+    public String getFileName() {
+        System.out.print("Enter file name to download: ");
+        return scanner.nextLine();
+    }
+
+    public int getStreamCount() {
+        System.out.print("Parallel streams (Enter for automatic): ");
+        String line = scanner.nextLine().trim();
+        try {
+            return line.isEmpty() ? 0 : Math.max(0, Integer.parseInt(line));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String getSearchQuery() {
+        System.out.print("Search (text, prefix*, or *.ext): ");
+        return scanner.nextLine();
+    }
+
+    public String getFolderName() {
+        System.out.print("Enter folder to download ('.' for everything): ");
+        return scanner.nextLine();
+    }
+
+    public boolean getYesNo(String question) {
+        System.out.print(question + " (y/n): ");
+        return scanner.nextLine().trim().toLowerCase().startsWith("y");
+    }
+
+    public String getFileNamesOrPattern() {
+        System.out.print("Enter file names separated by commas, or a glob pattern (e.g. docs/**.txt): ");
+        return scanner.nextLine();
+    }
+
+    public void showMessage(String message) {
+        System.out.println(message);
+    }
+
+    public void showPeers(List<PeerConnection> peers) {
+        if (peers.isEmpty()) {
+            showMessage("No peers connected.");
+            return;
+        }
+        for (PeerConnection peer : peers) {
+            showMessage("Peer " + peer.getId() + " (" + peer.getSocket().getInetAddress().getHostAddress() + ":" + peer.getSocket().getPort() + ")");
+            List<String> files = peer.getFiles();
+            if (files == null || files.isEmpty()) {
+                showMessage("  No files available (or list not retrieved yet)");
+            } else {
+                for (String file : files) {
+                    showMessage("  " + file);
+                }
+            }
+        }
+    }
+
+    public void showSearchResults(String query, List<CatalogIndex.Match> matches, int limit, long micros) {
+        if (matches.isEmpty()) {
+            showMessage("No files matching '" + query + "' on connected peers.");
+            return;
+        }
+        showMessage(matches.size() + (matches.size() >= limit ? "+" : "") + " files matching '" + query + "' ("
+                + micros / 1000.0 + " ms):");
+        StringBuilder line = new StringBuilder();
+        for (CatalogIndex.Match match : matches) {
+            line.setLength(0);
+            line.append("  [peer");
+            for (PeerConnection source : match.sources) {
+                line.append(' ').append(source.getId());
+            }
+            line.append("] ").append(match.path);
+            showMessage(line.toString());
+        }
+    }
+
+     public void showKnownPeers(List<String> knownPeers) {
+        if (knownPeers.isEmpty()) {
+            showMessage("No known peers found in database."); // Updated message
+            return;
+        }
+        showMessage("Known Peers (from Database):"); // Updated message
+        for (String peerInfo : knownPeers) {
+            showMessage("  " + peerInfo);
+        }
+    }
+
+    public void showLocalFiles(Path root, Iterator<String> relativePaths) {
+        if (!relativePaths.hasNext()) {
+            showMessage("No files in shared directory.");
+            return;
+        }
+        showMessage("Local shared files:");
+        while (relativePaths.hasNext()) {
+            String relativePath = relativePaths.next();
+            showMessage("  " + relativePath + " (" + root.resolve(relativePath).toFile().length() + " bytes)");
+        }
+    }
+
+    public void showDownloadProgress(long current, long total) {
+        int progress = (int) ((current * 100) / total);
+        System.out.print("\rDownloading: " + progress + "% complete");
+    }
+
+    public void showDownloadComplete(String fileName) {
+        System.out.println("\nDownload complete: " + fileName);
+    }
+
+    public void showStats(List<String> lines) {
+        System.out.println("\n--- Transfer Statistics ---");
+        for (String line : lines) {
+            System.out.println(line);
+        }
+        System.out.println("---------------------------");
+    }
+
+    public void showDownloadHistory(List<DownloadRecord> history) {
+        if (history.isEmpty()) {
+            showMessage("No download history found.");
+            return;
+        }
+        showMessage("Download History:");
+        for (DownloadRecord record : history) {
+            showMessage("  " + record.toString());
+        }
+    }
+
+    public void showTransferAnalytics(int days, List<TransferRollup> totals, List<TransferRollup> daily) {
+        if (totals.isEmpty()) {
+            showMessage("No transfers in the last " + days + " days.");
+            return;
+        }
+        showMessage("Transfers per peer, last " + days + " days:");
+        for (TransferRollup rollup : totals) {
+            showMessage("  " + rollup);
+        }
+        showMessage("Per day:");
+        for (TransferRollup rollup : daily) {
+            showMessage("  " + rollup);
+        }
+    }
+}
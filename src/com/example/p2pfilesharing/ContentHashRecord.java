@@ -0,0 +1,16 @@
+package com.example.p2pfilesharing;
+
+// --- Simple Record for the content hash index (see ContentStore) ---
+class ContentHashRecord {
+    final String path; // Absolute path of the local file
+    final long size;
+    final long mtime;
+    final String sha256;
+
+    ContentHashRecord(String path, long size, long mtime, String sha256) {
+        this.path = path;
+        this.size = size;
+        this.mtime = mtime;
+        this.sha256 = sha256;
+    }
+}
@@ -0,0 +1,428 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Content-addressed index of the local shared files (SHA-256 per file).
+ * Hashes are persisted in the content_hashes table next to download_history and keyed by
+ * (path, size, mtime), so they are computed incrementally: only new or modified files are
+ * ever re-read. Before a download, the remote file's hash is looked up here; identical
+ * content already on disk is hard-linked (or copied) into place instead of transferred.
+ * The scan hashes new files on a fork-join pool, one file per task, with the combined read
+ * rate limited by a token bucket so indexing does not starve transfers of disk bandwidth.
+ * Settings: -Dp2p.dedupe (false disables), -Dp2p.dedupe.link (false always copies),
+ * -Dp2p.hash.threads (default: all cores), -Dp2p.hash.ioRate (bytes/s, 0 = unlimited).
+ */
+class ContentStore {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ContentStore.class);
+    private static final int SAVE_BATCH = 500;
+    private static final int HASH_THREADS = Math.max(1,
+            P2PConfig.getInt("p2p.hash.threads", Runtime.getRuntime().availableProcessors()));
+
+    private final Path root;
+    private final PersistenceService persistenceService;
+    private final boolean enabled;
+    private final boolean hardLinks;
+    private final Map<String, ContentHashRecord> byPath = new HashMap<>();
+    private final Map<String, Set<String>> byHash = new HashMap<>();
+    private final TokenBucket ioLimit = new TokenBucket(P2PConfig.getLong("p2p.hash.ioRate", 0));
+    private final List<ContentHashRecord> pending = new ArrayList<>(); // Hashed, not yet saved
+    private final ExecutorService backgroundHasher; // Files peers asked about before the scan reached them
+    private final Set<String> queuedForHashing = ConcurrentHashMap.newKeySet();
+
+    public ContentStore(Path root, PersistenceService persistenceService) {
+        this.root = root;
+        this.persistenceService = persistenceService;
+        this.enabled = P2PConfig.getBoolean("p2p.dedupe", true);
+        this.hardLinks = P2PConfig.getBoolean("p2p.dedupe.link", true);
+        if (enabled) {
+            for (ContentHashRecord record : persistenceService.loadContentHashes()) {
+                // The table is shared by every node using this database; only our files qualify
+                if (isUnderRoot(record.path)) {
+                    index(record);
+                }
+            }
+        }
+        this.backgroundHasher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "content-hasher-requests");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    private boolean isUnderRoot(String key) {
+        try {
+            return root.getFileSystem().getPath(key).startsWith(root);
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Index the shared tree in the background, hashing only files that are new or changed
+     * since they were last seen.
+     */
+    public void startBackgroundScan() {
+        if (!enabled) {
+            return;
+        }
+        Thread scanner = new Thread(this::scan, "content-indexer");
+        scanner.setDaemon(true);
+        scanner.setPriority(Thread.MIN_PRIORITY);
+        scanner.start();
+    }
+
+    void scan() {
+        long started = System.nanoTime();
+        Set<String> seen = new HashSet<>();
+        List<Path> toHash = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        // Metadata only: cheap even for large trees, and tells us exactly which files changed
+        try (SharedTreeWalker walker = new SharedTreeWalker(root)) {
+            while (walker.hasNext()) {
+                Path file = root.resolve(walker.next());
+                String key = file.toString();
+                seen.add(key);
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (lookup(key, attrs) == null) {
+                        toHash.add(file);
+                        sizes.add(attrs.size());
+                    }
+                } catch (IOException e) {
+                    LOG.debug("Could not read {}: {}", file, e.getMessage());
+                }
+            }
+        }
+        if (!toHash.isEmpty()) {
+            // Largest first, so one big file picked up last does not leave the other cores idle
+            Integer[] order = new Integer[toHash.size()];
+            long totalBytes = 0;
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+                totalBytes += sizes.get(i);
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+            Path[] files = new Path[order.length];
+            for (int i = 0; i < order.length; i++) {
+                files[i] = toHash.get(order[i]);
+            }
+            LOG.info("Hashing {} new or changed files ({} bytes) on {} threads", toHash.size(), totalBytes, HASH_THREADS);
+            ForkJoinPool pool = new ForkJoinPool(HASH_THREADS, ContentStore::newHasherThread, null, false);
+            try {
+                pool.invoke(new HashTask(files, 0, files.length));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        flushPending(0);
+        // Forget files under this share that no longer exist
+        List<String> gone = new ArrayList<>();
+        synchronized (this) {
+            for (String key : byPath.keySet()) {
+                if (!seen.contains(key) && isUnderRoot(key)) {
+                    gone.add(key);
+                }
+            }
+            for (String key : gone) {
+                unindex(key);
+            }
+        }
+        for (String key : gone) {
+            persistenceService.deleteContentHash(key);
+        }
+        LOG.info("Content index up to date: {} files hashed in {} ms", toHash.size(),
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private static ForkJoinWorkerThread newHasherThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("content-hasher-" + thread.getPoolIndex());
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    }
+
+    /**
+     * Hashes files[from, to): splits in halves down to single files, so one large file never
+     * holds smaller ones hostage in the same task. Work stealing evens out the very different
+     * file sizes.
+     */
+    private final class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path[] files;
+        private final int from;
+        private final int to;
+
+        HashTask(Path[] files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(files, from, middle), new HashTask(files, middle, to));
+                return;
+            }
+            if (from < to) {
+                hashAndQueue(files[from]);
+            }
+        }
+    }
+
+    private void hashAndQueue(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            String hash = sha256(file, ioLimit);
+            // The file may have changed while it was read; then the next scan picks it up again
+            ContentHashRecord record = new ContentHashRecord(file.toString(), attrs.size(),
+                    attrs.lastModifiedTime().toMillis(), hash);
+            index(record);
+            synchronized (pending) {
+                pending.add(record);
+            }
+            flushPending(SAVE_BATCH);
+        } catch (IOException e) {
+            LOG.debug("Could not hash {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Save queued records once at least {@code threshold} are waiting (0 = save whatever is there).
+     */
+    private void flushPending(int threshold) {
+        List<ContentHashRecord> batch;
+        synchronized (pending) {
+            if (pending.isEmpty() || pending.size() < threshold) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        persistenceService.saveContentHashes(batch);
+    }
+
+    /**
+     * SHA-256 (hex) of a shared file if the index has it for the file's current version,
+     * otherwise null. The file is then hashed in the background, so a later request finds
+     * it; the caller never waits for a whole file to be read.
+     */
+    public String indexedHashOf(Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String key = file.toString();
+        String known = lookup(key, attrs);
+        if (known == null && enabled && queuedForHashing.add(key)) {
+            backgroundHasher.execute(() -> {
+                try {
+                    hashAndQueue(file);
+                    flushPending(0);
+                } finally {
+                    queuedForHashing.remove(key);
+                }
+            });
+        }
+        return known;
+    }
+
+    /**
+     * True if {@code text} looks like a SHA-256 as this class writes it (64 lowercase hex digits).
+     */
+    static boolean isHash(String text) {
+        if (text.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remember the hash of a file whose content is already known (e.g. just downloaded and
+     * verified), avoiding a second read.
+     */
+    public void record(Path file, long size, long mtime, String sha256) {
+        if (!enabled) {
+            return;
+        }
+        ContentHashRecord record = new ContentHashRecord(file.toString(), size, mtime, sha256);
+        index(record);
+        List<ContentHashRecord> single = new ArrayList<>(1);
+        single.add(record);
+        persistenceService.saveContentHashes(single);
+    }
+
+    /**
+     * A local file with exactly this content, or null; {@code preferred} (usually the download
+     * target itself) wins if it qualifies. Entries whose file changed or vanished since it was
+     * hashed are dropped rather than trusted.
+     */
+    public Path findLocal(String sha256, long size, Path preferred) {
+        List<String> candidates;
+        synchronized (this) {
+            Set<String> paths = byHash.get(sha256);
+            if (paths == null) {
+                return null;
+            }
+            candidates = new ArrayList<>(paths);
+        }
+        if (candidates.remove(preferred.toString())) {
+            candidates.add(0, preferred.toString());
+        }
+        for (String key : candidates) {
+            Path file = root.getFileSystem().getPath(key);
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attrs.isRegularFile() && attrs.size() == size && sha256.equals(lookup(key, attrs))) {
+                    return file;
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    unindex(key);
+                }
+                persistenceService.deleteContentHash(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Make {@code target} a copy of {@code source} (same content): a hard link when allowed
+     * and supported, otherwise a file copy. Staged in the incoming folder and moved into
+     * place atomically, like a normal download.
+     */
+    public void materialize(Path source, Path target) throws IOException {
+        Path incoming = root.resolve(PartialFile.INCOMING_DIR);
+        Files.createDirectories(incoming);
+        Path temp = incoming.resolve(UUID.randomUUID() + ".part");
+        boolean linked = false;
+        try {
+            if (hardLinks) {
+                try {
+                    Files.createLink(temp, source);
+                    linked = true;
+                } catch (IOException | UnsupportedOperationException e) {
+                    LOG.debug("Hard link not possible for {}: {}", source, e.getMessage());
+                }
+            }
+            if (!linked) {
+                Files.copy(source, temp, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            Path parent = target.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        BasicFileAttributes attrs = Files.readAttributes(target, BasicFileAttributes.class);
+        String hash = lookup(source.toString(), Files.readAttributes(source, BasicFileAttributes.class));
+        if (hash != null) {
+            record(target, attrs.size(), attrs.lastModifiedTime().toMillis(), hash);
+        }
+        LOG.debug("{} {} from {}", linked ? "Linked" : "Copied", target, source);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static String sha256(Path file) throws IOException {
+        return sha256(file, null);
+    }
+
+    private static String sha256(Path file, TokenBucket limit) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = BufferPool.acquire(64 * 1024);
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (limit != null) {
+                    limit.acquire(n);
+                }
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    private synchronized String lookup(String key, BasicFileAttributes attrs) {
+        ContentHashRecord record = byPath.get(key);
+        if (record != null && record.size == attrs.size()
+                && record.mtime == attrs.lastModifiedTime().toMillis()) {
+            return record.sha256;
+        }
+        return null;
+    }
+
+    private synchronized void index(ContentHashRecord record) {
+        unindex(record.path);
+        byPath.put(record.path, record);
+        byHash.computeIfAbsent(record.sha256, h -> new LinkedHashSet<>(2)).add(record.path);
+    }
+
+    private void unindex(String key) {
+        // Called with the lock held
+        ContentHashRecord old = byPath.remove(key);
+        if (old != null) {
+            Set<String> paths = byHash.get(old.sha256);
+            if (paths != null && paths.remove(key) && paths.isEmpty()) {
+                byHash.remove(old.sha256);
+            }
+        }
+    }
+}
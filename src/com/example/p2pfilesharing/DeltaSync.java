@@ -0,0 +1,378 @@
+package com.example.p2pfilesharing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta transfer (DELTA request).
+ * The downloader splits its old copy into fixed-size blocks and sends one signature per block:
+ * a weak rolling checksum plus an MD5. The serving side slides a window over the new version,
+ * rolling the weak checksum one byte at a time, and emits a COPY for every window that matches
+ * a block the downloader already has and LITERAL data for everything else:
+ * <pre>
+ *   op := 'C' int firstBlock, int count    (copy blocks from the old copy)
+ *       | 'L' int length, byte[length]     (new data)
+ *       | 'E' byte[32]                     (end, SHA-256 of the whole new file)
+ * </pre>
+ * The receiver rebuilds the file through a PartialFile and checks the final hash, so a wrong
+ * weak/strong match can never produce a silently corrupted file.
+ */
+final class DeltaSync {
+    static final int MIN_BLOCK = 1024;
+    static final int MAX_BLOCK = 128 * 1024;
+    static final int MAX_BLOCKS = 1 << 20;
+    private static final int MAX_LITERAL = 64 * 1024;
+    private static final int OP_COPY = 'C';
+    private static final int OP_LITERAL = 'L';
+    private static final int OP_END = 'E';
+
+    private DeltaSync() {
+        // Static helpers only
+    }
+
+    /**
+     * Block size for a file of {@code size} bytes: about sqrt(size), as rsync does, which
+     * balances signature size against match granularity.
+     */
+    static int blockSizeFor(long size) {
+        long root = (long) Math.sqrt((double) size);
+        long rounded = (root + MIN_BLOCK - 1) / MIN_BLOCK * MIN_BLOCK;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, Math.max(rounded, size / MAX_BLOCKS + 1)));
+    }
+
+    /**
+     * Signature lines ("<weak as 8 hex digits><md5 as 32 hex digits>") for every full block
+     * of {@code file}. A trailing partial block is simply sent again as literal data.
+     */
+    static List<String> signatures(Path file, int blockSize) throws IOException {
+        MessageDigest md5 = digest("MD5");
+        List<String> lines = new ArrayList<>();
+        byte[] block = new byte[blockSize];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            while (lines.size() < MAX_BLOCKS) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Fill the block
+                }
+                if (buffer.hasRemaining()) {
+                    break; // Partial (or empty) last block
+                }
+                StringBuilder line = new StringBuilder(40);
+                appendHex(line, weakChecksum(block, 0, blockSize), 8);
+                for (byte b : md5.digest(block)) {
+                    appendHex(line, b & 0xFF, 2);
+                }
+                lines.add(line.toString());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The downloader's block signatures, as parsed by the serving side.
+     */
+    static final class Signatures {
+        private final int blockSize;
+        private final Map<Integer, int[]> byWeak = new HashMap<>();
+        private final byte[][] strong;
+
+        Signatures(int blockSize, List<String> lines) {
+            this.blockSize = blockSize;
+            this.strong = new byte[lines.size()][];
+            Map<Integer, List<Integer>> grouped = new HashMap<>();
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                if (line.length() != 40) {
+                    throw new IllegalArgumentException("Malformed block signature: " + line);
+                }
+                int weak = (int) Long.parseLong(line.substring(0, 8), 16);
+                byte[] md5 = new byte[16];
+                for (int j = 0; j < 16; j++) {
+                    md5[j] = (byte) Integer.parseInt(line.substring(8 + 2 * j, 10 + 2 * j), 16);
+                }
+                strong[i] = md5;
+                grouped.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(i);
+            }
+            for (Map.Entry<Integer, List<Integer>> e : grouped.entrySet()) {
+                byWeak.put(e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+
+        int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * Index of a block equal to {@code data[offset..offset+blockSize)}, preferring
+         * {@code preferred} (the block after the last match), or -1.
+         */
+        int find(int weak, byte[] data, int offset, int preferred, MessageDigest md5) {
+            int[] candidates = byWeak.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            md5.update(data, offset, blockSize);
+            byte[] digest = md5.digest();
+            int found = -1;
+            for (int index : candidates) {
+                if (Arrays.equals(strong[index], digest)) {
+                    if (index == preferred) {
+                        return index;
+                    }
+                    if (found < 0) {
+                        found = index;
+                    }
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Serving side: stream the delta that turns the downloader's old copy into the
+     * {@code size} bytes read from {@code source}. {@code hook} is called before each
+     * literal goes out (bandwidth shaping, upload slots). Returns the number of literal bytes.
+     */
+    static long writeDelta(InputStream source, long size, Signatures signatures, DataOutputStream out,
+                           BundleCodec.FrameHook hook) throws IOException, InterruptedException {
+        return new Encoder(source, signatures, out, hook).run(size);
+    }
+
+    private static final class Encoder {
+        private final InputStream source;
+        private final Signatures signatures;
+        private final DataOutputStream out;
+        private final BundleCodec.FrameHook hook;
+        private final int blockSize;
+        private final byte[] data;
+        private final MessageDigest md5 = digest("MD5");
+        private final MessageDigest sha256 = digest("SHA-256");
+        private int length;     // Valid bytes in data
+        private int position;   // Start of the current window
+        private int literalStart;
+        private boolean eof;
+        private long totalRead;
+        private long literalBytes;
+        private int copyFirst = -1;
+        private int copyCount;
+
+        Encoder(InputStream source, Signatures signatures, DataOutputStream out, BundleCodec.FrameHook hook) {
+            this.source = source;
+            this.signatures = signatures;
+            this.out = out;
+            this.hook = hook;
+            this.blockSize = signatures.getBlockSize();
+            this.data = new byte[Math.max(4 * blockSize, 256 * 1024)];
+        }
+
+        long run(long size) throws IOException, InterruptedException {
+            int a = 0;
+            int b = 0;
+            boolean rolling = false;
+            while (true) {
+                fill();
+                if (length - position < blockSize) {
+                    break; // Fewer than one block left: the rest is literal
+                }
+                if (!rolling) {
+                    int weak = weakChecksum(data, position, blockSize);
+                    a = weak & 0xFFFF;
+                    b = weak >>> 16;
+                    rolling = true;
+                }
+                int match = signatures.find((b << 16) | a, data, position,
+                        (copyFirst < 0) ? -1 : copyFirst + copyCount, md5);
+                if (match >= 0) {
+                    flushLiteral(position);
+                    addCopy(match);
+                    position += blockSize;
+                    literalStart = position;
+                    rolling = false;
+                    continue;
+                }
+                if (position - literalStart >= MAX_LITERAL) {
+                    flushLiteral(position);
+                }
+                if (position + blockSize >= length) {
+                    break; // End of file reached
+                }
+                // Roll the window forward by one byte
+                int leaving = data[position] & 0xFF;
+                int entering = data[position + blockSize] & 0xFF;
+                a = (a - leaving + entering) & 0xFFFF;
+                b = (b - blockSize * leaving + a) & 0xFFFF;
+                position++;
+            }
+            position = length;
+            flushLiteral(length);
+            flushCopy();
+            if (totalRead != size) {
+                throw new IOException("File changed while computing delta (" + totalRead + " of " + size + " bytes)");
+            }
+            out.writeByte(OP_END);
+            out.write(sha256.digest());
+            out.flush();
+            return literalBytes;
+        }
+
+        /**
+         * Make sure at least one block plus one byte is buffered after the window, moving the
+         * unsent literal and the window to the front of the buffer if needed.
+         */
+        private void fill() throws IOException {
+            if (eof || length - position > blockSize) {
+                return;
+            }
+            // The pending literal is at most MAX_LITERAL bytes, so literal + window always fit
+            int keep = literalStart;
+            if (keep > 0) {
+                System.arraycopy(data, keep, data, 0, length - keep);
+                length -= keep;
+                position -= keep;
+                literalStart -= keep;
+            }
+            while (length < data.length) {
+                int n = source.read(data, length, data.length - length);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                sha256.update(data, length, n);
+                totalRead += n;
+                length += n;
+            }
+        }
+
+        private void addCopy(int block) throws IOException {
+            if (copyFirst >= 0 && block == copyFirst + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = block;
+            copyCount = 1;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyFirst >= 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyFirst);
+                out.writeInt(copyCount);
+                copyFirst = -1;
+                copyCount = 0;
+            }
+        }
+
+        private void flushLiteral(int end) throws IOException, InterruptedException {
+            while (literalStart < end) {
+                flushCopy();
+                int n = Math.min(MAX_LITERAL, end - literalStart);
+                if (hook != null) {
+                    hook.beforeFrame(n);
+                }
+                out.writeByte(OP_LITERAL);
+                out.writeInt(n);
+                out.write(data, literalStart, n);
+                literalStart += n;
+                literalBytes += n;
+            }
+        }
+    }
+
+    /**
+     * Receiving side: apply the delta from {@code in} on top of {@code oldCopy}, writing the
+     * result into {@code partial}. {@code literalHook} is called before each literal is read
+     * (download throttling). Returns false if the rebuilt file does not match the sender's hash.
+     */
+    static boolean applyDelta(DataInputStream in, Path oldCopy, int blockSize, PartialFile partial,
+                              BundleCodec.FrameHook literalHook) throws IOException, InterruptedException {
+        MessageDigest sha256 = digest("SHA-256");
+        byte[] buffer = new byte[Math.max(blockSize, MAX_LITERAL)];
+        long written = 0;
+        try (FileChannel old = FileChannel.open(oldCopy, StandardOpenOption.READ)) {
+            while (true) {
+                int op = in.readUnsignedByte();
+                if (op == OP_END) {
+                    byte[] expected = new byte[32];
+                    in.readFully(expected);
+                    return MessageDigest.isEqual(expected, sha256.digest());
+                }
+                if (op == OP_COPY) {
+                    long first = in.readInt();
+                    int count = in.readInt();
+                    if (first < 0 || count <= 0) {
+                        throw new IOException("Corrupt delta stream (copy " + first + "+" + count + ")");
+                    }
+                    for (long block = first; block < first + count; block++) {
+                        ByteBuffer view = ByteBuffer.wrap(buffer, 0, blockSize);
+                        long offset = block * blockSize;
+                        while (view.hasRemaining()) {
+                            if (old.read(view, offset + view.position()) < 0) {
+                                throw new IOException("Local copy changed during delta sync");
+                            }
+                        }
+                        sha256.update(buffer, 0, blockSize);
+                        partial.write(written, buffer, 0, blockSize);
+                        written += blockSize;
+                    }
+                } else if (op == OP_LITERAL) {
+                    int n = in.readInt();
+                    if (n <= 0 || n > MAX_LITERAL) {
+                        throw new IOException("Corrupt delta stream (literal of " + n + " bytes)");
+                    }
+                    if (literalHook != null) {
+                        literalHook.beforeFrame(n);
+                    }
+                    in.readFully(buffer, 0, n);
+                    sha256.update(buffer, 0, n);
+                    partial.write(written, buffer, 0, n);
+                    written += n;
+                } else {
+                    throw new IOException("Corrupt delta stream (op " + op + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * rsync's weak checksum: a = sum of bytes, b = sum of (len - i) * byte_i, both mod 2^16.
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private static void appendHex(StringBuilder sb, int value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((value >>> shift) & 0xF, 16));
+        }
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not available", e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.p2pfilesharing;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+// --- Simple Record for Download History ---
+class DownloadRecord {
+    final String fileName;
+    final String peerIp;
+    final int peerPort;
+    final long fileSize;
+    final String status;
+    final LocalDateTime timestamp;
+
+    DownloadRecord(String fileName, String peerIp, int peerPort, long fileSize, String status, LocalDateTime timestamp) {
+        this.fileName = fileName;
+        this.peerIp = peerIp;
+        this.peerPort = peerPort;
+        this.fileSize = fileSize;
+        this.status = status;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        return String.format("[%s] %s (%d bytes) from %s:%d - %s",
+                timestamp.format(formatter), fileName, fileSize, peerIp, peerPort, status);
+    }
+}
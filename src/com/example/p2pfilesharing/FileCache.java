@@ -0,0 +1,458 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap read cache for hot shared files (serving side).
+ * File contents are held in direct ByteBuffers, so serving the Nth request for a popular
+ * file is a memory copy instead of another disk read, and the data does not add to heap/GC
+ * pressure.
+ * --- Eviction: LRU with an LFU admission filter ---
+ * Entries live in an access-ordered map (LRU). A file is only admitted once it has been
+ * requested a few times, and only if it is requested more often than the LRU victims it
+ * would displace, so a one-off large download cannot flush the genuinely hot files.
+ * --- Invalidation ---
+ * Each hit re-checks the file's size and modification time (a metadata lookup only);
+ * changed or deleted files are dropped and re-read.
+ * --- Coalesced loads ---
+ * Requests that arrive while the same file is being loaded wait for that load and share its
+ * buffer instead of reading the file again.
+ * --- Freeing ---
+ * Readers get a {@link BufferInputStream} that holds a reference on the entry's buffer. An
+ * evicted or invalidated buffer is freed explicitly once its last reader closes, rather than
+ * whenever the GC gets round to it, so the budget bounds the direct memory actually held,
+ * apart from evicted buffers that are still being sent.
+ * If the JVM does not allow explicit freeing, evicted buffers fall back to the GC and stay
+ * allocated (outside the budget) until collected.
+ * Settings: -Dp2p.cache.maxBytes (0 disables), -Dp2p.cache.maxFileBytes, -Dp2p.cache.admitAfter.
+ */
+class FileCache {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(FileCache.class);
+
+    private final long budget;
+    private final long maxFileBytes;
+    private final int admitAfter;
+    private final FrequencySketch frequencies = new FrequencySketch();
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Path, CompletableFuture<Entry>> loading = new HashMap<>(); // Loads in progress
+    private long usedBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong freed = new AtomicLong();
+
+    private static final class Entry {
+        final ByteBuffer direct; // The allocated buffer; only this one can be freed
+        final ByteBuffer data; // Read-only view over it
+        final long size;
+        final long lastModified;
+        int refs = 1; // The cache's own reference plus open readers; guarded by the FileCache
+
+        Entry(ByteBuffer direct, long size, long lastModified) {
+            this.direct = direct;
+            this.data = direct.asReadOnlyBuffer();
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public FileCache() {
+        this(P2PConfig.getLong("p2p.cache.maxBytes", 256L * 1024 * 1024),
+             P2PConfig.getLong("p2p.cache.maxFileBytes", -1),
+             P2PConfig.getInt("p2p.cache.admitAfter", 2));
+    }
+
+    FileCache(long budget, long maxFileBytes, int admitAfter) {
+        this.budget = Math.max(0, budget);
+        long perFile = (maxFileBytes < 0) ? this.budget / 4 : Math.min(maxFileBytes, this.budget);
+        this.maxFileBytes = Math.min(perFile, Integer.MAX_VALUE); // One direct buffer per file
+        this.admitAfter = Math.max(1, admitAfter);
+    }
+
+    /**
+     * Open the cached contents of {@code path} for reading, loading them into the cache if
+     * the file is hot enough. Returns null when the file should be streamed from disk
+     * instead. The caller must close the stream, which lets an evicted buffer be freed.
+     */
+    public BufferInputStream open(Path path) {
+        if (budget == 0) {
+            return null;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            invalidate(path);
+            return null;
+        }
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+
+        CompletableFuture<Entry> pending;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                if (entry.size == size && entry.lastModified == lastModified) {
+                    hits.incrementAndGet();
+                    frequencies.increment(path);
+                    return reader(entry);
+                }
+                remove(path); // Stale: file changed on disk
+            }
+            pending = loading.get(path);
+        }
+        if (pending != null) {
+            return await(pending, size, lastModified);
+        }
+        misses.incrementAndGet();
+        int frequency = frequencies.increment(path);
+        if (size > maxFileBytes || frequency < admitAfter) {
+            return null;
+        }
+        CompletableFuture<Entry> load = new CompletableFuture<>();
+        synchronized (this) {
+            pending = loading.get(path);
+            if (pending == null) {
+                if (!makeRoom(size, frequency)) {
+                    return null;
+                }
+                usedBytes += size; // Reserve while loading outside the lock
+                loading.put(path, load);
+            }
+        }
+        if (pending != null) {
+            return await(pending, size, lastModified); // Another request started the load meanwhile
+        }
+        Entry loaded = null;
+        BufferInputStream reader = null;
+        try {
+            loaded = load(path, size, lastModified);
+        } catch (IOException e) {
+            LOG.warn("Could not cache {}: {}", path, e.getMessage());
+        } finally {
+            synchronized (this) {
+                usedBytes -= size;
+                loading.remove(path);
+                if (loaded != null && !entries.containsKey(path) && makeRoom(size, frequency)) {
+                    entries.put(path, loaded);
+                    usedBytes += size;
+                    LOG.debug("Cached hot file {} ({} bytes)", path, size);
+                } else if (loaded != null) {
+                    loaded.refs = 0; // Not kept: this request reads it once below, then it is freed
+                }
+                reader = (loaded != null) ? reader(loaded) : null;
+            }
+            load.complete(loaded);
+        }
+        return reader;
+    }
+
+    /**
+     * Share the result of another request's load of the same file version, or null (stream
+     * from disk) if that load failed or read a different version.
+     */
+    private BufferInputStream await(CompletableFuture<Entry> pending, long size, long lastModified) {
+        Entry entry = pending.join();
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            return null;
+        }
+        synchronized (this) {
+            if (entry.refs == 0) {
+                return null; // Already evicted and freed
+            }
+            coalesced.incrementAndGet();
+            return reader(entry);
+        }
+    }
+
+    /**
+     * A new reader holding a reference on {@code entry}. Called with the lock held.
+     */
+    private BufferInputStream reader(Entry entry) {
+        entry.refs++;
+        return new BufferInputStream(this, entry);
+    }
+
+    /**
+     * Drop one reference; the last one frees the buffer. Called with the lock held.
+     */
+    private void release(Entry entry) {
+        if (--entry.refs == 0) {
+            if (DirectMemory.free(entry.direct)) {
+                freed.addAndGet(entry.size);
+            }
+        }
+    }
+
+    /**
+     * Drop a file from the cache (e.g. after it was replaced locally).
+     */
+    public synchronized void invalidate(Path path) {
+        remove(path);
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Bytes of evicted buffers freed explicitly (rather than left to the GC).
+     */
+    public long getFreedBytes() {
+        return freed.get();
+    }
+
+    private Entry load(Path path, long size, long lastModified) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("File shrank while caching");
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                throw new IOException("File disappeared while caching", e);
+            }
+            // Make sure the file did not change while we were reading it
+            BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+            if (after.size() != size || after.lastModifiedTime().toMillis() != lastModified) {
+                throw new IOException("File changed while caching");
+            }
+        } catch (IOException e) {
+            DirectMemory.free(buffer); // Nobody else has seen it
+            throw e;
+        }
+        buffer.flip();
+        return new Entry(buffer, size, lastModified);
+    }
+
+    /**
+     * Evict LRU entries until {@code size} more bytes fit, but only victims requested less
+     * often than the candidate. Called with the lock held.
+     */
+    private boolean makeRoom(long size, int candidateFrequency) {
+        if (size > budget) {
+            return false;
+        }
+        long reclaimable = budget - usedBytes;
+        if (reclaimable >= size) {
+            return true;
+        }
+        // First check that enough colder victims exist, then evict them
+        for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+            if (frequencies.estimate(e.getKey()) >= candidateFrequency) {
+                continue;
+            }
+            reclaimable += e.getValue().size;
+            if (reclaimable >= size) {
+                break;
+            }
+        }
+        if (reclaimable < size) {
+            return false;
+        }
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (budget - usedBytes < size && it.hasNext()) {
+            Map.Entry<Path, Entry> e = it.next();
+            if (frequencies.estimate(e.getKey()) < candidateFrequency) {
+                usedBytes -= e.getValue().size;
+                it.remove();
+                release(e.getValue());
+            }
+        }
+        return true;
+    }
+
+    private void remove(Path path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            usedBytes -= removed.size;
+            release(removed);
+        }
+    }
+
+    /**
+     * InputStream view over a cached buffer, so the serving loop can treat cached and
+     * on-disk files the same way. Closing it releases the reader's reference.
+     */
+    static final class BufferInputStream extends InputStream {
+        private final FileCache cache;
+        private final Entry entry;
+        private final ByteBuffer buffer;
+        private boolean closed;
+
+        private BufferInputStream(FileCache cache, Entry entry) {
+            this.cache = cache;
+            this.entry = entry;
+            this.buffer = entry.data.duplicate();
+        }
+
+        /**
+         * Size of the cached file.
+         */
+        long size() {
+            return entry.size;
+        }
+
+        @Override
+        public void close() {
+            synchronized (cache) {
+                if (!closed) {
+                    closed = true;
+                    cache.release(entry);
+                }
+            }
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Small count-min sketch of request frequencies with periodic halving, so popularity
+     * reflects recent demand rather than all-time totals.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 4096; // Power of two
+        private static final int RESET_AFTER = WIDTH * 10;
+        private final int[][] table = new int[DEPTH][WIDTH];
+        private final int[] seeds = new int[DEPTH];
+        private int additions;
+
+        FrequencySketch() {
+            for (int i = 0; i < DEPTH; i++) {
+                seeds[i] = ThreadLocalRandom.current().nextInt() | 1;
+            }
+        }
+
+        synchronized int increment(Object key) {
+            int hash = spread(key.hashCode());
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                int idx = index(hash, i);
+                min = Math.min(min, ++table[i][idx]);
+            }
+            if (++additions >= RESET_AFTER) {
+                halve();
+            }
+            return min;
+        }
+
+        synchronized int estimate(Object key) {
+            int hash = spread(key.hashCode());
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * seeds[row];
+            return (h ^ (h >>> 16)) & (WIDTH - 1);
+        }
+
+        private void halve() {
+            for (int[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int h) {
+            h ^= (h >>> 16);
+            h *= 0x45d9f3b;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Frees direct buffers without waiting for the GC, through the JDK's
+     * {@code Unsafe.invokeCleaner}, looked up reflectively since it is not public API.
+     */
+    private static final class DirectMemory {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.warn("Cannot free cached buffers explicitly, leaving them to the GC: {}", e.toString());
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        /**
+         * Free {@code buffer} now; it must not be used afterwards. Returns false if it is left to the GC.
+         */
+        static boolean free(ByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return false;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.example.p2pfilesharing;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistence without any I/O: everything lives in concurrent collections and is gone when
+ * the process exits. Meant for ephemeral nodes, benchmarks and tests (-Dp2p.persistence=memory).
+ * Reads never block writers. The download history keeps the newest {@code historyLimit}
+ * entries; the rollups, like the SQLite ones, count every transfer.
+ * --- Design Pattern: Repository (Conceptual) ---
+ * Same contract as {@link SqlitePersistence}; the package-private apply methods are the
+ * state changes {@link AppendLogPersistence} logs and replays, and the snapshot methods what
+ * its compaction writes out.
+ */
+class InMemoryPersistence implements PersistenceService {
+    private static final Comparator<TransferRollup> BY_PEER =
+            Comparator.<TransferRollup, String>comparing(r -> r.peerIp).thenComparingInt(r -> r.peerPort);
+
+    /**
+     * One download history row with what the rollups and the log need besides the DownloadRecord.
+     */
+    static final class HistoryEntry {
+        final DownloadRecord record;
+        final long durationNanos;
+        final long transferredBytes;
+        final long epochMillis;
+
+        HistoryEntry(DownloadRecord record, long durationNanos, long transferredBytes, long epochMillis) {
+            this.record = record;
+            this.durationNanos = durationNanos;
+            this.transferredBytes = transferredBytes;
+            this.epochMillis = epochMillis;
+        }
+    }
+
+    // Running totals of one rollup row
+    private static final class Counters {
+        final String ip;
+        final int port;
+        private long transfers;
+        private long successes;
+        private long bytes;
+        private long timedBytes;
+        private long durationNanos;
+
+        Counters(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+
+        synchronized void add(long transfers, long successes, long bytes, long timedBytes, long durationNanos) {
+            this.transfers += transfers;
+            this.successes += successes;
+            this.bytes += bytes;
+            this.timedBytes += timedBytes;
+            this.durationNanos += durationNanos;
+        }
+
+        synchronized void addTo(long[] totals) {
+            totals[0] += transfers;
+            totals[1] += successes;
+            totals[2] += bytes;
+            totals[3] += timedBytes;
+            totals[4] += durationNanos;
+        }
+
+        synchronized TransferRollup snapshot(long bucket) {
+            return new TransferRollup(ip, port, bucket, transfers, successes, bytes, timedBytes, durationNanos);
+        }
+    }
+
+    private final int historyLimit;
+    private final Set<String> peers = ConcurrentHashMap.newKeySet(); // "ip:port"
+    private final Map<String, PeerStats> peerStats = new ConcurrentHashMap<>();
+    private final Map<String, ContentHashRecord> contentHashes = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<HistoryEntry> history = new ConcurrentLinkedDeque<>(); // Newest first
+    private final AtomicInteger historySize = new AtomicInteger();
+    // Per period: bucket start -> "ip:port" -> counters
+    private final Map<RollupPeriod, ConcurrentSkipListMap<Long, Map<String, Counters>>> rollups = new EnumMap<>(RollupPeriod.class);
+
+    public InMemoryPersistence(int historyLimit) {
+        this.historyLimit = Math.max(0, historyLimit);
+        for (RollupPeriod period : RollupPeriod.values()) {
+            rollups.put(period, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    @Override
+    public List<String> loadPeers() {
+        return new ArrayList<>(peers);
+    }
+
+    @Override
+    public void savePeer(String ip, int port) {
+        applyPeer(ip, port);
+    }
+
+    @Override
+    public List<PeerStats> loadPeerStats() {
+        List<PeerStats> stats = new ArrayList<>();
+        for (PeerStats peer : peerStats.values()) {
+            stats.add(copy(peer)); // Callers own and update what they load
+        }
+        return stats;
+    }
+
+    @Override
+    public void savePeerStats(List<PeerStats> stats) {
+        for (PeerStats peer : stats) {
+            applyPeerStats(peer);
+        }
+    }
+
+    @Override
+    public void recordDownload(String fileName, String peerIp, int peerPort, long fileSize, String status, long durationNanos,
+                               long transferredBytes) {
+        applyDownload(fileName, peerIp, peerPort, fileSize, status, durationNanos, transferredBytes,
+                System.currentTimeMillis());
+    }
+
+    @Override
+    public List<TransferRollup> getTransferRollups(RollupPeriod period, String peerIp, int peerPort, long sinceEpochSeconds) {
+        List<TransferRollup> result = new ArrayList<>();
+        String key = (peerIp != null) ? peerIp + ":" + peerPort : null;
+        for (Map.Entry<Long, Map<String, Counters>> bucket : rollups.get(period).tailMap(period.bucketOf(sinceEpochSeconds)).entrySet()) {
+            if (key != null) {
+                Counters counters = bucket.getValue().get(key);
+                if (counters != null) {
+                    result.add(counters.snapshot(bucket.getKey()));
+                }
+                continue;
+            }
+            List<TransferRollup> rows = new ArrayList<>();
+            for (Counters counters : bucket.getValue().values()) {
+                rows.add(counters.snapshot(bucket.getKey()));
+            }
+            rows.sort(BY_PEER);
+            result.addAll(rows);
+        }
+        return result;
+    }
+
+    @Override
+    public List<TransferRollup> getPeerTransferTotals(long sinceEpochSeconds) {
+        Map<String, long[]> sums = new LinkedHashMap<>();
+        Map<String, Counters> owners = new LinkedHashMap<>();
+        for (Map<String, Counters> bucket : rollups.get(RollupPeriod.DAY).tailMap(RollupPeriod.DAY.bucketOf(sinceEpochSeconds)).values()) {
+            for (Map.Entry<String, Counters> peer : bucket.entrySet()) {
+                peer.getValue().addTo(sums.computeIfAbsent(peer.getKey(), k -> new long[5]));
+                owners.putIfAbsent(peer.getKey(), peer.getValue());
+            }
+        }
+        List<TransferRollup> totals = new ArrayList<>();
+        for (Map.Entry<String, long[]> sum : sums.entrySet()) {
+            Counters peer = owners.get(sum.getKey());
+            long[] t = sum.getValue();
+            totals.add(new TransferRollup(peer.ip, peer.port, -1, t[0], t[1], t[2], t[3], t[4]));
+        }
+        totals.sort(Comparator.comparingLong((TransferRollup r) -> r.bytes).reversed());
+        return totals;
+    }
+
+    @Override
+    public List<ContentHashRecord> loadContentHashes() {
+        return new ArrayList<>(contentHashes.values());
+    }
+
+    @Override
+    public void saveContentHashes(List<ContentHashRecord> records) {
+        for (ContentHashRecord record : records) {
+            applyContentHash(record);
+        }
+    }
+
+    @Override
+    public void deleteContentHash(String path) {
+        applyContentHashDeleted(path);
+    }
+
+    @Override
+    public List<DownloadRecord> getDownloadHistory() {
+        List<DownloadRecord> records = new ArrayList<>();
+        for (HistoryEntry entry : history) {
+            records.add(entry.record);
+        }
+        return records;
+    }
+
+    // --- State changes, shared with AppendLogPersistence ---
+
+    /**
+     * Returns false if the peer was already known.
+     */
+    boolean applyPeer(String ip, int port) {
+        return peers.add(ip + ":" + port);
+    }
+
+    void applyPeerStats(PeerStats stats) {
+        applyPeer(stats.ip, stats.port); // As in the database, stats belong to a known peer
+        peerStats.put(stats.key(), copy(stats));
+    }
+
+    void applyDownload(String fileName, String peerIp, int peerPort, long fileSize, String status, long durationNanos,
+                       long transferredBytes, long epochMillis) {
+        applyHistory(fileName, peerIp, peerPort, fileSize, status, durationNanos, transferredBytes, epochMillis);
+        boolean success = TransferRollup.isSuccess(status);
+        long bytes = TransferRollup.bytesMoved(status, fileSize, transferredBytes);
+        long timed = (bytes > 0 && durationNanos > 0) ? durationNanos : 0;
+        long epochSeconds = Math.floorDiv(epochMillis, 1000L);
+        for (RollupPeriod period : RollupPeriod.values()) {
+            counters(period, period.bucketOf(epochSeconds), peerIp, peerPort)
+                    .add(1, success ? 1 : 0, bytes, (timed > 0) ? bytes : 0, timed);
+        }
+    }
+
+    /**
+     * Add a download to the history only, for one already counted in the rollups.
+     */
+    void applyHistory(String fileName, String peerIp, int peerPort, long fileSize, String status, long durationNanos,
+                      long transferredBytes, long epochMillis) {
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000L),
+                (int) Math.floorMod(epochMillis, 1000L) * 1_000_000, ZoneOffset.UTC); // UTC, as SQLite's CURRENT_TIMESTAMP
+        history.addFirst(new HistoryEntry(new DownloadRecord(fileName, peerIp, peerPort, fileSize, status, timestamp),
+                durationNanos, transferredBytes, epochMillis));
+        if (historySize.incrementAndGet() > historyLimit && history.pollLast() != null) {
+            historySize.decrementAndGet();
+        }
+    }
+
+    /**
+     * Add one rollup row, as taken by {@link #rollupSnapshot}, to the rollups.
+     */
+    void applyRollup(RollupPeriod period, TransferRollup row) {
+        counters(period, row.bucket, row.peerIp, row.peerPort)
+                .add(row.transfers, row.successes, row.bytes, row.timedBytes, row.durationNanos);
+    }
+
+    void applyContentHash(ContentHashRecord record) {
+        contentHashes.put(record.path, record);
+    }
+
+    void applyContentHashDeleted(String path) {
+        contentHashes.remove(path);
+    }
+
+    // --- Snapshots, for AppendLogPersistence's compaction ---
+
+    Iterable<String> peerKeys() {
+        return peers;
+    }
+
+    Iterable<PeerStats> peerStatsView() {
+        return peerStats.values();
+    }
+
+    Iterable<ContentHashRecord> contentHashView() {
+        return contentHashes.values();
+    }
+
+    Iterator<HistoryEntry> historyOldestFirst() {
+        return history.descendingIterator();
+    }
+
+    List<TransferRollup> rollupSnapshot(RollupPeriod period) {
+        List<TransferRollup> rows = new ArrayList<>();
+        for (Map.Entry<Long, Map<String, Counters>> bucket : rollups.get(period).entrySet()) {
+            for (Counters counters : bucket.getValue().values()) {
+                rows.add(counters.snapshot(bucket.getKey()));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Number of records the state is made of: peers, stats, hashes, history and rollup rows.
+     */
+    int liveRecordCount() {
+        int count = peers.size() + peerStats.size() + contentHashes.size() + historySize.get();
+        for (ConcurrentSkipListMap<Long, Map<String, Counters>> buckets : rollups.values()) {
+            for (Map<String, Counters> bucket : buckets.values()) {
+                count += bucket.size();
+            }
+        }
+        return count;
+    }
+
+    // The counters of one peer in one bucket; drops buckets past the period's retention
+    private Counters counters(RollupPeriod period, long bucket, String ip, int port) {
+        ConcurrentSkipListMap<Long, Map<String, Counters>> buckets = rollups.get(period);
+        Counters counters = buckets.computeIfAbsent(bucket, b -> new ConcurrentHashMap<>())
+                .computeIfAbsent(ip + ":" + port, k -> new Counters(ip, port));
+        if (period.retentionSeconds > 0) {
+            long cutoff = System.currentTimeMillis() / 1000 - period.retentionSeconds;
+            if (buckets.firstKey() < cutoff) {
+                buckets.headMap(cutoff).clear();
+            }
+        }
+        return counters;
+    }
+
+    private static PeerStats copy(PeerStats source) {
+        PeerStats peer = new PeerStats(source.ip, source.port);
+        peer.rttMicros = source.rttMicros;
+        peer.throughput = source.throughput;
+        peer.successes = source.successes;
+        peer.failures = source.failures;
+        peer.reachable = source.reachable;
+        peer.unreachable = source.unreachable;
+        peer.updatedAt = source.updatedAt;
+        return peer;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.p2pfilesharing;
+
+/**
+ * Central place for node configuration.
+ * Values come from JVM system properties (e.g. -Dp2p.log.level=DEBUG) so that the
+ * console and GUI front-ends share the same settings without extra wiring.
+ */
+final class P2PConfig {
+
+    private P2PConfig() {
+        // Static helper only
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid integer for " + key + ": " + value + " (using " + defaultValue + ")");
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for " + key + ": " + value + " (using " + defaultValue + ")");
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
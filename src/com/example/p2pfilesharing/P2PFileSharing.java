@@ -1,13 +1,15 @@
 // The main package for our P2P application
 package com.example.p2pfilesharing;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream; // Added for Singleton pattern
 import java.io.IOException; // Keep this import
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
@@ -15,28 +17,41 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet; // Import necessary SQL classes
-import java.sql.SQLException; // For timestamp
-import java.sql.Statement; // For formatting timestamp
-import java.sql.Timestamp;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator; // Added for Iterator pattern
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException; // Added for Iterator pattern
-import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.PatternSyntaxException;
 import javax.swing.SwingUtilities; // Import SwingUtilities
 
 // --- Design Principle: Interface Segregation (Conceptual) ---
@@ -63,161 +78,6 @@ public class P2PFileSharing {
     }
 }
 
-// --- Simple Record for Download History ---
-class DownloadRecord {
-    final String fileName;
-    final String peerIp;
-    final int peerPort;
-    final long fileSize;
-    final String status;
-    final LocalDateTime timestamp;
-
-    DownloadRecord(String fileName, String peerIp, int peerPort, long fileSize, String status, LocalDateTime timestamp) {
-        this.fileName = fileName;
-        this.peerIp = peerIp;
-        this.peerPort = peerPort;
-        this.fileSize = fileSize;
-        this.status = status;
-        this.timestamp = timestamp;
-    }
-
-    @Override
-    public String toString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return String.format("[%s] %s (%d bytes) from %s:%d - %s",
-                timestamp.format(formatter), fileName, fileSize, peerIp, peerPort, status);
-    }
-}
-
-// --- Design Principle: Single Responsibility Principle (SRP) ---
-// ConsoleView is responsible *only* for interacting with the console.
-class ConsoleView {
-    private final Scanner scanner = new Scanner(System.in); // Made final
-
-    public void displayWelcome() {
-        System.out.println("P2P File Sharing Application");
-        System.out.println("============================");
-    }
-
-    public int getPort() {
-        System.out.print("Enter your port number: ");
-        int port = scanner.nextInt();
-        scanner.nextLine(); // Consume newline
-        return port;
-    }
-
-    public String getSharedDirectory() {
-        System.out.print("Enter your shared directory path: ");
-        return scanner.nextLine();
-    }
-
-    public int getMenuChoice() {
-        System.out.println("\nMenu:");
-        System.out.println("1. Connect to a peer");
-        System.out.println("2. List available files from connected peers");
-        System.out.println("3. Download a file");
-        System.out.println("4. List local shared files");
-        System.out.println("5. List known peers (from DB)"); // Updated label
-        System.out.println("6. View Download History"); // New option
-        System.out.println("7. Exit"); // Adjusted number
-        System.out.print("Select an option: ");
-        int choice = scanner.nextInt();
-        scanner.nextLine(); // Consume newline
-        return choice;
-    }
-
-    public String getPeerIp() {
-        System.out.print("Enter peer IP address: ");
-        return scanner.nextLine();
-    }
-
-    public int getPeerPort() {
-        System.out.print("Enter peer port: ");
-        int port = scanner.nextInt();
-        scanner.nextLine(); // Consume newline
-        return port;
-    }
-
-    public int getPeerIndex() {
-        System.out.print("Enter peer index: ");
-        int index = scanner.nextInt();
-        scanner.nextLine(); // Consume newline
-        return index;
-    }
-
-    public String getFileName() {
-        System.out.print("Enter file name to download: ");
-        return scanner.nextLine();
-    }
-
-    public void showMessage(String message) {
-        System.out.println(message);
-    }
-
-    public void showPeers(List<PeerConnection> peers) {
-        if (peers.isEmpty()) {
-            showMessage("No peers connected.");
-            return;
-        }
-        for (int i = 0; i < peers.size(); i++) {
-            PeerConnection peer = peers.get(i);
-            showMessage("Peer " + i + " (" + peer.getSocket().getInetAddress().getHostAddress() + ":" + peer.getSocket().getPort() + ")");
-            List<String> files = peer.getFiles();
-            if (files == null || files.isEmpty()) {
-                showMessage("  No files available (or list not retrieved yet)");
-            } else {
-                for (String file : files) {
-                    showMessage("  " + file);
-                }
-            }
-        }
-    }
-
-     public void showKnownPeers(List<String> knownPeers) {
-        if (knownPeers.isEmpty()) {
-            showMessage("No known peers found in database."); // Updated message
-            return;
-        }
-        showMessage("Known Peers (from Database):"); // Updated message
-        for (String peerInfo : knownPeers) {
-            showMessage("  " + peerInfo);
-        }
-    }
-
-    public void showLocalFiles(File[] files) {
-        if (files == null || files.length == 0) {
-            showMessage("No files in shared directory.");
-            return;
-        }
-        showMessage("Local shared files:");
-        for (File file : files) {
-            if (file.isFile()) {
-                showMessage("  " + file.getName() + " (" + file.length() + " bytes)");
-            }
-        }
-    }
-
-    public void showDownloadProgress(long current, long total) {
-        int progress = (int) ((current * 100) / total);
-        System.out.print("\rDownloading: " + progress + "% complete");
-    }
-
-    public void showDownloadComplete(String fileName) {
-        System.out.println("\nDownload complete: " + fileName);
-    }
-
-    public void showDownloadHistory(List<DownloadRecord> history) {
-        if (history.isEmpty()) {
-            showMessage("No download history found.");
-            return;
-        }
-        showMessage("Download History:");
-        for (DownloadRecord record : history) {
-            showMessage("  " + record.toString());
-        }
-    }
-}
-
 // --- Design Principle: Single Responsibility Principle (SRP) ---
 // PeerController handles application flow, user commands, and coordinates View and Peer.
 // --- Design Pattern: Singleton ---
@@ -229,7 +89,8 @@ class ConsoleView {
 // just by adding a new Command implementation and mapping it.
 class PeerController {
     private static volatile PeerController instance; // Volatile for thread safety
-    private Peer peer; // Cannot be final, initialized later in start()
+    private volatile Peer peer; // Cannot be final, created by initialize()
+    private volatile AsyncPeer asyncPeer; // Non-blocking API over peer, for the GUI
     private final ConsoleView view; // Made final
     private Map<Integer, Command> commands; // Cannot be final, initialized later in start()
     private final PersistenceService persistenceService; // Made final
@@ -238,7 +99,7 @@ class PeerController {
     private PeerController() {
         this.view = new ConsoleView();
         // Use the DB-based PersistenceService
-        this.persistenceService = new PersistenceService();
+        this.persistenceService = PersistenceService.create();
     }
 
     // Double-checked locking for thread-safe Singleton initialization
@@ -253,14 +114,48 @@ class PeerController {
         return instance;
     }
 
+    /**
+     * Create the Peer model and start its server in the background. Used by {@link #start()}
+     * and by the GUI; later calls return the existing Peer.
+     */
+    public synchronized Peer initialize(int port, String sharedDir) {
+        if (peer == null) {
+            Peer created = new Peer(port, sharedDir, view, persistenceService); // Pass view for progress updates
+            this.asyncPeer = new AsyncPeer(created);
+            this.peer = created;
+            new Thread(created::startServer).start(); // Start listening in background
+        }
+        return peer;
+    }
+
+    /**
+     * The Peer model, or null before {@link #initialize}.
+     */
+    public Peer getPeer() {
+        return peer;
+    }
+
+    /**
+     * Non-blocking API over the Peer, or null before {@link #initialize}.
+     */
+    public AsyncPeer getAsyncPeer() {
+        return asyncPeer;
+    }
+
+    public PersistenceService getPersistenceService() {
+        return persistenceService;
+    }
+
+    public ConsoleView getView() {
+        return view;
+    }
+
     public void start() {
         view.displayWelcome();
         int port = view.getPort();
         String sharedDir = view.getSharedDirectory();
 
-        // Initialize the Peer model
-        this.peer = new Peer(port, sharedDir, view, persistenceService); // Pass view for progress updates
-        new Thread(peer::startServer).start(); // Start listening in background
+        initialize(port, sharedDir);
 
         // --- Design Pattern: Command ---
         // Initialize commands map
@@ -271,7 +166,13 @@ class PeerController {
         commands.put(4, new ListLocalFilesCommand(peer, view));
         commands.put(5, new ListKnownPeersCommand(persistenceService, view));
         commands.put(6, new ViewDownloadHistoryCommand(persistenceService, view)); // New command
-        commands.put(7, new ExitCommand()); // Adjusted number
+        commands.put(7, new BatchDownloadCommand(peer, view));
+        commands.put(8, new BundleDownloadCommand(peer, view));
+        commands.put(9, new DeltaSyncCommand(peer, view));
+        commands.put(10, new ShowStatsCommand(peer));
+        commands.put(11, new SearchFilesCommand(peer, view));
+        commands.put(12, new ShowTransferAnalyticsCommand(persistenceService, view));
+        commands.put(13, new ExitCommand()); // Adjusted number
 
         // Main application loop
         while (true) {
@@ -331,9 +232,108 @@ class DownloadFileCommand implements Command {
 
     @Override
     public void execute() {
-        int index = view.getPeerIndex();
+        int index = view.getSourceIndex();
         String file = view.getFileName();
-        peer.downloadFile(index, file);
+        int streams = view.getStreamCount();
+        peer.downloadFile(index, file, streams);
+    }
+}
+
+// Batch download: several names or a glob pattern in one request
+class BatchDownloadCommand implements Command {
+    private final Peer peer;
+    private final ConsoleView view;
+
+    public BatchDownloadCommand(Peer peer, ConsoleView view) {
+        this.peer = peer;
+        this.view = view;
+    }
+
+    static List<String> parseNames(String text) {
+        List<String> names = new ArrayList<>();
+        for (String name : text.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void execute() {
+        int index = view.getPeerIndex();
+        String input = view.getFileNamesOrPattern().trim();
+        // Asked rather than guessed: names may contain '[' or '{' too
+        if (view.getYesNo("Match it as a glob pattern?")) {
+            peer.downloadMatching(index, input);
+        } else {
+            peer.downloadFiles(index, parseNames(input));
+        }
+    }
+}
+
+// Folder download as a single bundle stream
+class BundleDownloadCommand implements Command {
+    private final Peer peer;
+    private final ConsoleView view;
+
+    public BundleDownloadCommand(Peer peer, ConsoleView view) {
+        this.peer = peer;
+        this.view = view;
+    }
+
+    @Override
+    public void execute() {
+        int index = view.getPeerIndex();
+        String folder = view.getFolderName().trim();
+        boolean compress = view.getYesNo("Compress while transferring?");
+        peer.downloadBundle(index, folder, compress);
+    }
+}
+
+// Re-fetch only the changed parts of a file we already have
+class DeltaSyncCommand implements Command {
+    private final Peer peer;
+    private final ConsoleView view;
+
+    public DeltaSyncCommand(Peer peer, ConsoleView view) {
+        this.peer = peer;
+        this.view = view;
+    }
+
+    @Override
+    public void execute() {
+        int index = view.getPeerIndex();
+        String fileName = view.getFileName();
+        peer.downloadDelta(index, fileName);
+    }
+}
+
+class ShowStatsCommand implements Command {
+    private final Peer peer;
+
+    public ShowStatsCommand(Peer peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public void execute() {
+        peer.showStats();
+    }
+}
+
+class SearchFilesCommand implements Command {
+    private final Peer peer;
+    private final ConsoleView view;
+
+    public SearchFilesCommand(Peer peer, ConsoleView view) {
+        this.peer = peer;
+        this.view = view;
+    }
+
+    @Override
+    public void execute() {
+        peer.searchFiles(view.getSearchQuery());
     }
 }
 
@@ -384,146 +384,34 @@ class ViewDownloadHistoryCommand implements Command {
     }
 }
 
-class ExitCommand implements Command {
-    @Override
-    public void execute() {
-        System.out.println("Exiting application...");
-        System.exit(0);
-    }
-}
-
-// --- Basic Persistence Service ---
-// --- Design Principle: Single Responsibility Principle (SRP) ---
-// Handles loading/saving peer data and download history.
-// --- Design Pattern: Repository (Conceptual) ---
-// Mediates between the domain (PeerController, Commands) and data mapping layers (JDBC/SQLite).
-// It provides a collection-like interface for accessing domain data (known peers, download history)
-// while abstracting the underlying data storage mechanism (SQLite database).
-class PersistenceService {
-    private static final String DB_URL = "jdbc:sqlite:p2p_data.db"; // Database file
-
-    public PersistenceService() {
-        initializeDatabase();
-    }
-
-    private void initializeDatabase() {
-        String createKnownPeersSQL = "CREATE TABLE IF NOT EXISTS known_peers (" +
-                                   "ip_address TEXT NOT NULL, " +
-                                   "port INTEGER NOT NULL, " +
-                                   "last_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                                   "PRIMARY KEY (ip_address, port)" +
-                                   ");";
-        // New table for download history
-        String createDownloadHistorySQL = "CREATE TABLE IF NOT EXISTS download_history (" +
-                                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                                        "file_name TEXT NOT NULL, " +
-                                        "peer_ip TEXT NOT NULL, " +
-                                        "peer_port INTEGER NOT NULL, " +
-                                        "file_size INTEGER, " +
-                                        "status TEXT, " + // e.g., 'Completed', 'Failed'
-                                        "download_timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
-                                        ");";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement()) {
-            stmt.execute(createKnownPeersSQL);
-            stmt.execute(createDownloadHistorySQL); // Execute creation for the new table
-            System.out.println("Database initialized/checked."); // Use view in real app
-        } catch (SQLException e) {
-            System.err.println("Error initializing database: " + e.getMessage());
-        }
-    }
-
-    public List<String> loadPeers() {
-        List<String> peers = new ArrayList<>();
-        String sql = "SELECT ip_address, port FROM known_peers";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            while (rs.next()) {
-                String ip = rs.getString("ip_address");
-                int port = rs.getInt("port");
-                peers.add(ip + ":" + port);
-            }
-        } catch (SQLException e) {
-            System.err.println("Error loading known peers from DB: " + e.getMessage());
-        }
-        return peers;
-    }
-
-    public void savePeer(String ip, int port) {
-        String sql = "INSERT OR IGNORE INTO known_peers(ip_address, port, last_seen) VALUES(?, ?, CURRENT_TIMESTAMP)";
-        // Update last_seen if already exists (SQLite specific)
-        String updateSql = "UPDATE known_peers SET last_seen = CURRENT_TIMESTAMP WHERE ip_address = ? AND port = ?";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement insertStmt = conn.prepareStatement(sql);
-             PreparedStatement updateStmt = conn.prepareStatement(updateSql)) {
-
-            insertStmt.setString(1, ip);
-            insertStmt.setInt(2, port);
-            int rowsAffected = insertStmt.executeUpdate();
-
-            if (rowsAffected == 0) { // If insert didn't happen (peer exists), update last_seen
-                updateStmt.setString(1, ip);
-                updateStmt.setInt(2, port);
-                updateStmt.executeUpdate();
-            }
+// Aggregates from the rollup tables; cheap however long the history is
+class ShowTransferAnalyticsCommand implements Command {
+    private static final int DAYS = Math.max(1, P2PConfig.getInt("p2p.analytics.days", 30));
+    private final PersistenceService persistenceService;
+    private final ConsoleView view;
 
-        } catch (SQLException e) {
-             System.err.println("Error saving/updating known peer to DB: " + e.getMessage());
-        }
+    public ShowTransferAnalyticsCommand(PersistenceService persistenceService, ConsoleView view) {
+        this.persistenceService = persistenceService;
+        this.view = view;
     }
 
-    // New method to record download attempt
-    public void recordDownload(String fileName, String peerIp, int peerPort, long fileSize, String status) {
-        String sql = "INSERT INTO download_history(file_name, peer_ip, peer_port, file_size, status, download_timestamp) VALUES(?, ?, ?, ?, ?, CURRENT_TIMESTAMP)";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, fileName);
-            pstmt.setString(2, peerIp);
-            pstmt.setInt(3, peerPort);
-            pstmt.setLong(4, fileSize);
-            pstmt.setString(5, status);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-             System.err.println("Error recording download history to DB: " + e.getMessage());
-        }
+    @Override
+    public void execute() {
+        long since = System.currentTimeMillis() / 1000 - DAYS * RollupPeriod.DAY.seconds;
+        List<TransferRollup> totals = persistenceService.getPeerTransferTotals(since);
+        List<TransferRollup> daily = persistenceService.getTransferRollups(RollupPeriod.DAY, null, 0, since);
+        view.showTransferAnalytics(DAYS, totals, daily);
     }
+}
 
-    // New method to get download history
-    public List<DownloadRecord> getDownloadHistory() {
-        List<DownloadRecord> history = new ArrayList<>();
-        // Order by most recent first
-        String sql = "SELECT file_name, peer_ip, peer_port, file_size, status, download_timestamp FROM download_history ORDER BY download_timestamp DESC";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-
-            while (rs.next()) {
-                String fileName = rs.getString("file_name");
-                String peerIp = rs.getString("peer_ip");
-                int peerPort = rs.getInt("peer_port");
-                long fileSize = rs.getLong("file_size");
-                String status = rs.getString("status");
-                // Retrieve timestamp and convert to LocalDateTime
-                Timestamp timestamp = rs.getTimestamp("download_timestamp");
-                LocalDateTime localDateTime = (timestamp != null) ? timestamp.toLocalDateTime() : null;
-
-                history.add(new DownloadRecord(fileName, peerIp, peerPort, fileSize, status, localDateTime));
-            }
-        } catch (SQLException e) {
-            System.err.println("Error loading download history from DB: " + e.getMessage());
-        }
-        return history;
+class ExitCommand implements Command {
+    @Override
+    public void execute() {
+        System.out.println("Exiting application...");
+        System.exit(0);
     }
 }
 
-
 /**
  * Represents a peer in the P2P network
  * --- Design Principle: Single Responsibility Principle (SRP) ---
@@ -539,26 +427,109 @@ class PersistenceService {
  */
 // Add Iterable<PeerConnection> to the class definition
 class Peer implements Iterable<PeerConnection> {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(Peer.class);
+    private static final int LIST_PAGE_SIZE = 1000; // Entries per LIST_PAGE round trip
+    // Connection lifetime settings; the heartbeat interval must stay below the idle timeout
+    static final int IDLE_TIMEOUT_MILLIS = P2PConfig.getInt("p2p.idle.timeoutMillis", 300_000);
+    private static final int READ_TIMEOUT_MILLIS = P2PConfig.getInt("p2p.read.timeoutMillis", 600_000);
+    private static final int CONNECT_TIMEOUT_MILLIS = P2PConfig.getInt("p2p.connect.timeoutMillis", 10_000);
+    private static final long HEARTBEAT_MILLIS = P2PConfig.getLong("p2p.heartbeat.intervalMillis", 60_000);
+    private static final int HEARTBEAT_TIMEOUT_MILLIS = P2PConfig.getInt("p2p.heartbeat.timeoutMillis", 10_000);
     private final int port; // Made final
     private final String sharedDirectory; // Made final
+    private final Path sharedRoot; // Absolute, normalized form of sharedDirectory
     private final List<PeerConnection> connectedPeers; // Made final and used by Iterator
+    private final AtomicInteger nextPeerId = new AtomicInteger(); // Stable IDs users address peers by
     private final ConsoleView view; // Made final
     private final PersistenceService persistenceService; // Made final
+    private final BandwidthManager bandwidthManager; // Upload/download rate limits
+    private final UploadScheduler uploadScheduler; // Upload slots shared by all PeerHandlers
+    private final RequestLanes requestLanes; // Control requests run ahead of bulk uploads
+    private final TransportSecurity transport; // Plaintext or TLS, for both directions
+    private final FileCache fileCache; // Off-heap cache of hot shared files
+    private final ContentStore contentStore; // Content hashes of local files, for dedupe
+    private final ScheduledExecutorService reaper; // Heartbeats and removal of dead connections
+    private final Set<ConnectionTuner> inboundTuners = ConcurrentHashMap.newKeySet(); // For the stats output
+    private final Map<String, ParallelDownloader.Advisor> streamAdvisors = new ConcurrentHashMap<>(); // Per "ip:port"
+    private final CatalogIndex catalog = new CatalogIndex(); // Searchable file lists of connected peers
+    private final Object membership = new Object(); // Orders catalog attach against removal of a peer
+    private final PeerScoreboard scoreboard; // Measured peer quality, for choosing download sources
+    private final Map<Path, CompletableFuture<String>> inFlightDownloads = new ConcurrentHashMap<>(); // Target -> status
+    private final Map<String, ChunkMap> partials = new ConcurrentHashMap<>(); // Swarm downloads others may fetch from
+    private static final long SCORE_FLUSH_MILLIS = P2PConfig.getLong("p2p.score.flushMillis", 30_000);
+    private static final int SEARCH_LIMIT = P2PConfig.getInt("p2p.search.limit", 200);
+    private final AllocationMeter requestAllocations = new AllocationMeter("Request handling (serving)");
+    private final AllocationMeter downloadAllocations = new AllocationMeter("Download bodies");
 
     // Updated constructor to accept dependencies
     public Peer(int port, String sharedDirectory, ConsoleView view, PersistenceService persistenceService) {
         this.port = port;
         this.sharedDirectory = sharedDirectory;
+        this.sharedRoot = Paths.get(sharedDirectory).toAbsolutePath().normalize();
         this.view = view; // Inject ConsoleView
         this.persistenceService = persistenceService; // Inject PersistenceService
         this.connectedPeers = new CopyOnWriteArrayList<>(); // Use thread-safe list
+        this.bandwidthManager = new BandwidthManager();
+        this.uploadScheduler = new UploadScheduler();
+        this.requestLanes = new RequestLanes();
+        this.transport = TransportSecurity.get(); // Fails early if TLS is on but misconfigured
+        this.fileCache = new FileCache();
+        this.scoreboard = new PeerScoreboard(persistenceService);
 
         // Create shared directory if it doesn't exist
         File dir = new File(sharedDirectory);
         if (!dir.exists()) {
             if (!dir.mkdirs()) {
-                 view.showMessage("Warning: Could not create shared directory: " + sharedDirectory);
+                 LOG.warn("Could not create shared directory: {}", sharedDirectory);
+            }
+        }
+        PartialFile.sweepStale(sharedRoot); // Leftovers of downloads cut off by a crash
+        this.contentStore = new ContentStore(sharedRoot, persistenceService);
+        contentStore.startBackgroundScan(); // Only new or changed files are hashed
+
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, HEARTBEAT_MILLIS / 2);
+        reaper.scheduleWithFixedDelay(this::reapConnections, period, period, TimeUnit.MILLISECONDS);
+        reaper.scheduleWithFixedDelay(scoreboard::flush, SCORE_FLUSH_MILLIS, SCORE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(scoreboard::flush, "peer-score-flush"));
+    }
+
+    /**
+     * Reaper task: heartbeat outgoing connections that have been idle for a while and drop
+     * those that are closed or no longer answer. Connections in the middle of a request are
+     * skipped; their own read timeout covers them. (Incoming connections are bounded by the
+     * idle timeout on their sockets.)
+     */
+    private void reapConnections() {
+        try {
+            long now = System.currentTimeMillis();
+            for (PeerConnection connection : connectedPeers) {
+                if (connection.isClosed()) {
+                    removePeerConnection(connection);
+                    continue;
+                }
+                if (now - connection.getLastActivity() < HEARTBEAT_MILLIS || !connection.tryBeginExchange()) {
+                    continue;
+                }
+                boolean alive;
+                try {
+                    alive = connection.ping(HEARTBEAT_TIMEOUT_MILLIS);
+                } finally {
+                    connection.endExchange();
+                }
+                recordPing(connection, alive);
+                if (!alive) {
+                    LOG.warn("Peer {} stopped answering heartbeats; closing the connection.",
+                            connection.getSocket().getInetAddress().getHostAddress());
+                    removePeerConnection(connection);
+                }
             }
+        } catch (RuntimeException e) {
+            LOG.error("Connection reaper error: {}", e.getMessage()); // Keep the schedule alive
         }
     }
 
@@ -600,84 +571,179 @@ class Peer implements Iterable<PeerConnection> {
     }
     // --- End of Iterator Pattern Implementation ---
 
-
     /**
      * Start the server to listen for incoming connections
      */
     public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            view.showMessage("Server started on port " + port);
+        try (ServerSocket serverSocket = transport.openServerSocket(port)) {
+            LOG.info("Server started on port {}", port);
 
             while (true) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    view.showMessage("New connection from: " + clientSocket.getInetAddress().getHostAddress());
+                    LOG.info("New connection from: {}", clientSocket.getInetAddress().getHostAddress());
+                    // Idle timeout: a peer that neither sends requests nor heartbeats is dropped
+                    clientSocket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                    clientSocket.setKeepAlive(true);
 
                     // Create a new thread to handle this connection
                     PeerHandler handler = new PeerHandler(clientSocket, this); // Pass Peer instance
                     new Thread(handler).start();
                 } catch (IOException e) {
-                    view.showMessage("Error accepting connection: " + e.getMessage());
+                    LOG.error("Error accepting connection: {}", e.getMessage());
                     // Continue listening for other connections
                 }
             }
         } catch (IOException e) {
-            view.showMessage("Server error: Could not bind to port " + port + ". " + e.getMessage());
+            LOG.error("Server error: Could not bind to port {}. {}", port, e.getMessage());
             // Consider exiting or prompting user if server can't start
+            AsyncLogger.flush(); // Make sure the reason is visible before exiting
              System.exit(1); // Exit if server fails critically
         }
     }
 
     /**
-     * Connect to another peer
+     * Connect to another peer. Returns the connection (the existing one if already
+     * connected), or null if the peer could not be reached or did not send its file list.
      */
-    public synchronized void connectToPeer(String ip, int port) { // Added synchronized
+    public synchronized PeerConnection connectToPeer(String ip, int port) { // Added synchronized
         // Avoid connecting to self
         try {
             InetAddress localAddress = InetAddress.getLocalHost();
             if (ip.equals(localAddress.getHostAddress()) || ip.equals("127.0.0.1") || ip.equals("localhost")) {
                 if (port == this.port) {
-                    view.showMessage("Cannot connect to yourself.");
-                    return;
+                    LOG.warn("Cannot connect to yourself.");
+                    return null;
                 }
             }
         } catch (UnknownHostException e) {
-             view.showMessage("Warning: Could not determine local host address for self-connection check.");
+             LOG.warn("Could not determine local host address for self-connection check.");
         }
 
-
         // Avoid duplicate connections - using the iterator pattern here for demonstration
         // for (PeerConnection existingConn : connectedPeers) { // Old way
         for (PeerConnection existingConn : this) { // Using the iterator implicitly via enhanced for-loop
             Socket existingSocket = existingConn.getSocket();
             if (existingSocket.getInetAddress().getHostAddress().equals(ip) && existingSocket.getPort() == port) {
-                view.showMessage("Already connected to " + ip + ":" + port);
-                return;
+                LOG.info("Already connected to {}:{}", ip, port);
+                return existingConn;
             }
         }
 
-
         try {
-            Socket socket = new Socket(ip, port);
-            PeerConnection connection = new PeerConnection(socket);
+            PeerConnection connection = openConnection(ip, port);
+            Socket socket = connection.getSocket();
+            connection.beginExchange(); // Before the reaper can see it
+            connection.assignId(nextPeerId.getAndIncrement());
             connectedPeers.add(connection);
+            bandwidthManager.peerConnected(ip);
 
             // Request file list from the peer
-            connection.sendMessage("LIST");
-            String response = connection.receiveMessage(); // Potential blocking call
-            if (response != null) {
-                 connection.setFiles(parseFileList(response));
-                 view.showMessage("Connected to peer at " + ip + ":" + port + " and retrieved file list.");
+            List<String> remoteFiles;
+            try {
+                connection.negotiateCapabilities();
+                // First RTT sample for buffer tuning and the peer's score
+                recordPing(connection, connection.ping(HEARTBEAT_TIMEOUT_MILLIS));
+                remoteFiles = fetchFileList(connection); // Potential blocking call
+            } finally {
+                connection.endExchange();
+            }
+            if (remoteFiles != null && !attachCatalog(connection)) {
+                 LOG.warn("Peer at {}:{} disconnected while connecting.", ip, port);
+                 return null; // Already removed and closed
+            }
+            if (remoteFiles != null) {
+                 connection.setFiles(remoteFiles);
+                 LOG.info("Connected to peer {} at {}:{} and retrieved file list.", connection.getId(), ip, port);
                  persistenceService.savePeer(ip, port); // Save successful connection
+                 return connection;
             } else {
-                 view.showMessage("Connected to peer at " + ip + ":" + port + " but failed to retrieve file list (peer might have disconnected).");
-                 connectedPeers.remove(connection); // Remove potentially problematic connection
+                 LOG.warn("Connected to peer at {}:{} but failed to retrieve file list (peer might have disconnected).", ip, port);
+                 if (connectedPeers.remove(connection)) { // Remove potentially problematic connection
+                     bandwidthManager.peerDisconnected(ip);
+                 }
                  socket.close();
             }
 
         } catch (IOException e) {
-            view.showMessage("Failed to connect to " + ip + ":" + port + ". " + e.getMessage());
+            LOG.error("Failed to connect to {}:{}. {}", ip, port, e.getMessage());
+            scoreboard.recordReachable(ip, port, false);
+        }
+        return null;
+    }
+
+    /**
+     * Publish the connection's files in the catalog, unless it was removed meanwhile; returns
+     * false then. Under the same lock as removal, so a dead peer's files are never published.
+     */
+    private boolean attachCatalog(PeerConnection connection) {
+        synchronized (membership) {
+            if (!connectedPeers.contains(connection)) {
+                return false;
+            }
+            connection.attachCatalog(catalog);
+            return true;
+        }
+    }
+
+    private void recordPing(PeerConnection connection, boolean alive) {
+        Socket socket = connection.getSocket();
+        String ip = socket.getInetAddress().getHostAddress();
+        scoreboard.recordReachable(ip, socket.getPort(), alive);
+        if (alive) {
+            scoreboard.recordRtt(ip, socket.getPort(), connection.getTuner().getRttMicros());
+        }
+    }
+
+    /**
+     * Feed a download's outcome into the peer's score. Deduplicated downloads moved no data
+     * and say nothing about the peer; a missing file is not the transfer's fault.
+     */
+    private void recordOutcome(String ip, int port, String status, long bytes, long nanos) {
+        if (status.equals("Completed") || status.equals(TransferRollup.DELTA)) {
+            scoreboard.recordTransfer(ip, port, bytes, nanos);
+        } else if (status.equals("Failed - Checksum Mismatch") || status.equals("Failed - Incomplete")
+                || status.equals("Failed - IO Error") || status.equals("Failed - Disconnected")
+                || status.equals("Failed - Invalid Hash")) {
+            scoreboard.recordFailure(ip, port);
+        }
+    }
+
+    /**
+     * Verified chunks of a swarm download of {@code fileName} in progress, or null.
+     */
+    public ChunkMap getPartial(String fileName) {
+        return partials.get(fileName);
+    }
+
+    /**
+     * ID of the best-scoring connected peer that lists {@code fileName}, or -1 if none does.
+     */
+    public int bestSourceFor(String fileName, long sizeHint) {
+        PeerConnection best = scoreboard.best(catalog.sourcesOf(fileName), sizeHint);
+        return (best == null) ? -1 : best.getId();
+    }
+
+    /**
+     * The connected peer with this ID, or null. IDs are handed out once per connection and
+     * never reused, so they stay valid while other peers disconnect (unlike list positions).
+     */
+    public PeerConnection findPeer(int peerId) {
+        for (PeerConnection connection : connectedPeers) {
+            if (connection.getId() == peerId) {
+                return connection;
+            }
         }
+        return null;
+    }
+
+    /**
+     * Search the file lists of all connected peers (see CatalogIndex for the query syntax)
+     */
+    public void searchFiles(String query) {
+        long started = System.nanoTime();
+        List<CatalogIndex.Match> matches = catalog.search(query, SEARCH_LIMIT);
+        view.showSearchResults(query, matches, SEARCH_LIMIT, (System.nanoTime() - started) / 1000);
     }
 
     /**
@@ -708,171 +774,1024 @@ class Peer implements Iterable<PeerConnection> {
         */
     }
 
+    /**
+     * Fetch a fresh file list from a connected peer and keep it for later downloads and
+     * searches. Returns null if no peer has that ID or the peer did not answer.
+     */
+    public List<String> refreshFileList(int peerId) {
+        PeerConnection connection = findPeer(peerId);
+        if (connection == null) {
+            LOG.warn("No connected peer with ID {}.", (long) peerId);
+            return null;
+        }
+        List<String> files;
+        connection.beginExchange();
+        try {
+            files = fetchFileList(connection);
+        } catch (IOException e) {
+            LOG.error("Could not refresh the file list of peer {}: {}", (long) peerId, e.getMessage());
+            files = null;
+        } finally {
+            connection.endExchange();
+        }
+        if (files != null) {
+            connection.setFiles(files);
+        }
+        return files;
+    }
+
     /**
      * List files in the local shared directory (uses view now)
      */
     public void listLocalFiles() {
-        File dir = new File(sharedDirectory);
-        File[] files = dir.listFiles();
-        view.showLocalFiles(files); // Delegate display to view
+        try (SharedTreeWalker walker = openSharedTree()) {
+            view.showLocalFiles(sharedRoot, walker); // Delegate display to view
+        }
     }
 
     /**
-     * Download a file from a connected peer
+     * Relative paths of all files in the local shared directory.
      */
-    public synchronized void downloadFile(int peerIndex, String fileName) { // Added synchronized
-        if (peerIndex < 0 || peerIndex >= connectedPeers.size()) {
-            view.showMessage("Invalid peer index.");
-            return;
+    public List<String> getLocalFiles() {
+        List<String> files = new ArrayList<>();
+        try (SharedTreeWalker walker = openSharedTree()) {
+            while (walker.hasNext()) {
+                files.add(walker.next());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Download a file from a connected peer, choosing the number of parallel streams automatically
+     */
+    public String downloadFile(int peerId, String fileName) {
+        return downloadFile(peerId, fileName, 0);
+    }
+
+    /**
+     * Download a file from a connected peer over {@code streams} parallel connections
+     * (0 = choose from the throughput gains seen for this peer; 1 = a single stream).
+     * A negative {@code peerId} picks the best-scoring peer that lists the file.
+     * A request for a file that is already being downloaded joins that transfer and shares
+     * its result instead of fetching the file a second time.
+     * Returns the status recorded in the download history. Interrupting the calling thread
+     * cancels the transfer ("Cancelled").
+     */
+    public String downloadFile(int peerId, String fileName, int streams) {
+        Path filePath = resolveSharedPath(fileName);
+        if (filePath == null) {
+             LOG.warn("Refusing to download to unsafe path: {}", fileName);
+             return "Failed - Invalid Path";
+        }
+        CompletableFuture<String> transfer = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlightDownloads.putIfAbsent(filePath, transfer);
+        if (running != null) {
+            LOG.info("{} is already being downloaded; waiting for that transfer.", fileName);
+            String shared = running.join();
+            LOG.info("Shared download of {} finished: {}", fileName, shared);
+            return shared;
+        }
+        String status = "Failed";
+        try {
+            status = transferFile(peerId, fileName, filePath, streams);
+        } finally {
+            inFlightDownloads.remove(filePath, transfer);
+            transfer.complete(status);
+        }
+        return status;
+    }
+
+    /**
+     * One file transfer (see downloadFile); returns the status recorded in the history.
+     * Transfers run one at a time.
+     */
+    private synchronized String transferFile(int peerId, String fileName, Path filePath, int streams) {
+        if (peerId < 0) {
+            peerId = bestSourceFor(fileName, -1);
+            if (peerId < 0) {
+                LOG.warn("No connected peer lists the file: {}", fileName);
+                return "Failed - Not Listed";
+            }
+            LOG.info("Downloading {} from peer {} (best score of the peers listing it)", fileName, (long) peerId);
+        }
+        PeerConnection peerConnection = findPeer(peerId);
+        if (peerConnection == null) {
+            LOG.warn("No connected peer with ID {}.", (long) peerId);
+            return "Failed - Invalid Peer";
         }
-
-        PeerConnection peerConnection = connectedPeers.get(peerIndex); // Direct access by index is still needed here
         Socket socket = peerConnection.getSocket();
         String peerIp = socket.getInetAddress().getHostAddress();
         int peerPort = socket.getPort();
         long fileSize = -1; // Initialize fileSize - KEEP THIS ONE
         String status = "Failed"; // Default status
-        Path filePath = Paths.get(sharedDirectory, fileName); // KEEP THIS ONE
 
         // Check if the peer actually has the file listed
         List<String> peerFiles = peerConnection.getFiles();
         if (peerFiles == null || !peerFiles.contains(fileName)) {
-             view.showMessage("Peer " + peerIndex + " does not list the file: " + fileName);
+             LOG.warn("Peer {} does not list the file: {}", peerId, fileName);
              // Record failed attempt (optional, but good for history)
              // persistenceService.recordDownload(fileName, peerIp, peerPort, -1, "Failed - Not Listed");
-             return;
+             return "Failed - Not Listed";
         }
 
-        FileOutputStream fos = null; // Declare outside try
+        PartialFile partial = null; // Declare outside try
+        SwarmDownloader swarm = null;
+        ChunkMap swarmChunks = null;
+        long began = System.nanoTime();
+        peerConnection.beginExchange(); // No heartbeat may interleave with this request
         try {
-            // Request the file
-            peerConnection.sendMessage("GET " + fileName);
-
-            // Use the connection's streams
-            String response = peerConnection.receiveMessage(); // Read size or error
-
-            if (response == null) {
-                 view.showMessage("Peer disconnected before sending file size.");
-                 status = "Failed - Disconnected";
-                 // persistenceService.recordDownload(fileName, peerIp, peerPort, -1, status);
-                 return;
-            }
-            if (response.equals("FILE_NOT_FOUND")) {
-                view.showMessage("File not found on peer (peer reported).");
-                status = "Failed - Not Found";
-                // persistenceService.recordDownload(fileName, peerIp, peerPort, -1, status);
-                return;
+            // Content-addressed dedupe: ask for the hash first and reuse identical local content
+            // (peers that predate HASH would never answer)
+            String expectedHash = null;
+            long knownSize = -1;
+            if (contentStore.isEnabled() && peerConnection.supports("HASH")) {
+                peerConnection.sendMessage("HASH " + fileName);
+                String hashResponse = peerConnection.receiveMessage();
+                if (hashResponse == null) {
+                    LOG.warn("Peer disconnected before sending file hash.");
+                    status = "Failed - Disconnected";
+                    return status;
+                }
+                String[] hashParts = hashResponse.split(" ");
+                if (hashParts[0].equals("HASH")) {
+                    knownSize = (hashParts.length == 3) ? parseSize(hashParts[1]) : -1;
+                    if (knownSize < 0 || !ContentStore.isHash(hashParts[2])) {
+                        LOG.warn("Invalid hash response from peer for {}: {}", fileName, hashResponse);
+                        status = "Failed - Invalid Hash";
+                        return status;
+                    }
+                    expectedHash = hashParts[2];
+                    Path existing = contentStore.findLocal(expectedHash, knownSize, filePath);
+                    if (existing != null) {
+                        fileSize = knownSize;
+                        if (!existing.equals(filePath)) {
+                            contentStore.materialize(existing, filePath);
+                            fileCache.invalidate(filePath);
+                        }
+                        LOG.info("Content of {} is already present locally ({}); skipped the transfer.", fileName, existing);
+                        view.showDownloadComplete(fileName);
+                        status = TransferRollup.DEDUPLICATED;
+                        return status;
+                    }
+                }
+                // Anything else (FILE_NOT_FOUND, or NO_HASH while the peer is still hashing the
+                // file) leaves it to the GET below
             }
 
-            try {
-                 fileSize = Long.parseLong(response);
-            } catch (NumberFormatException e) {
-                 view.showMessage("Invalid file size received from peer: " + response);
-                 status = "Failed - Invalid Size";
-                 // persistenceService.recordDownload(fileName, peerIp, peerPort, -1, status);
-                 return;
+            // Large files may be fetched over several parallel streams (an explicit count, or
+            // chosen per peer from the throughput gains seen so far)
+            ParallelDownloader.Advisor advisor = streamAdvisors.computeIfAbsent(peerIp + ":" + peerPort,
+                    key -> new ParallelDownloader.Advisor());
+            int streamCount = (streams > 0) ? Math.min(streams, ParallelDownloader.MAX_STREAMS) : advisor.choose();
+            // Large files on automatic are fetched from every peer holding them, partial holders
+            // included (see SwarmDownloader); an explicit stream count keeps to the chosen peer
+            boolean trySwarm = streams == 0 && SwarmDownloader.ENABLED;
+            if ((streamCount > 1 || trySwarm) && knownSize < 0) {
+                knownSize = statRemoteFile(peerConnection, fileName);
+            }
+            if (trySwarm && knownSize >= SwarmDownloader.MIN_SWARM_BYTES) {
+                swarm = new SwarmDownloader(fileName, knownSize, bandwidthManager, uploadScheduler, scoreboard, view);
+                if (!swarm.probe(peerConnection, connectedPeers)) {
+                    swarm.close();
+                    swarm = null;
+                    if (peerConnection.isClosed()) {
+                        throw new IOException("Connection lost while probing for " + fileName); // Out of step
+                    }
+                }
             }
+            long totalBytesRead;
+            String receivedHash;
+            long started = System.nanoTime();
+            if (swarm != null) {
+                fileSize = knownSize;
+                partial = new PartialFile(sharedRoot, filePath, fileSize);
+                swarmChunks = swarm.start(partial);
+                partials.put(fileName, swarmChunks); // Verified chunks are served while we download
+                if (streamCount > 1) {
+                    swarm.addStreams(() -> openConnection(peerIp, peerPort), streamCount - 1);
+                }
+                totalBytesRead = swarm.run();
+                receivedHash = (expectedHash != null && totalBytesRead == fileSize) ? partial.contentHash() : null;
+            } else if (streamCount > 1 && knownSize >= ParallelDownloader.MIN_PARALLEL_BYTES
+                    && peerConnection.supports("GETRANGE")) {
+                fileSize = knownSize;
+                LOG.info("Downloading file {} ({} bytes) over {} streams", fileName, fileSize, (long) streamCount);
+                partial = new PartialFile(sharedRoot, filePath, fileSize);
+                totalBytesRead = new ParallelDownloader(peerConnection, () -> openConnection(peerIp, peerPort), fileName,
+                        partial, bandwidthManager, uploadScheduler.creditFor(peerIp), peerIp, view).run(streamCount);
+                // Ranges arrive out of order, so the hash is taken over the finished file
+                receivedHash = (expectedHash != null && totalBytesRead == fileSize) ? partial.contentHash() : null;
+            } else {
+                streamCount = 1;
 
-            view.showMessage("Downloading file " + fileName + " (" + fileSize + " bytes)");
+                // Request the file
+                peerConnection.sendMessage("GET " + fileName);
 
-            // Create file output stream
-            fos = new FileOutputStream(filePath.toFile());
+                // Use the connection's streams
+                String response = peerConnection.receiveMessage(); // Read size or error
 
-            // Get input stream from the connection's socket
-            InputStream in = socket.getInputStream(); // Use socket's stream directly for binary data
+                if (response == null) {
+                     LOG.warn("Peer disconnected before sending file size.");
+                     status = "Failed - Disconnected";
+                     // persistenceService.recordDownload(fileName, peerIp, peerPort, -1, status);
+                     return status;
+                }
+                if (response.equals("FILE_NOT_FOUND")) {
+                    LOG.warn("File not found on peer (peer reported).");
+                    status = "Failed - Not Found";
+                    // persistenceService.recordDownload(fileName, peerIp, peerPort, -1, status);
+                    return status;
+                }
+                if (response.startsWith("BUSY")) {
+                    LOG.warn("Peer has no free upload slot for {}; try again later.", fileName);
+                    status = "Failed - Peer Busy";
+                    return status;
+                }
 
-            // Buffer for reading data
-            byte[] buffer = new byte[8192]; // Increased buffer size
-            int bytesRead;
-            long totalBytesRead = 0;
+                try {
+                     fileSize = Long.parseLong(response);
+                } catch (NumberFormatException e) {
+                     LOG.warn("Invalid file size received from peer: {}", response);
+                     status = "Failed - Invalid Size";
+                     // persistenceService.recordDownload(fileName, peerIp, peerPort, -1, status);
+                     return status;
+                }
 
-            // Read file data
-            while (totalBytesRead < fileSize && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
+                LOG.info("Downloading file {} ({} bytes)", fileName, fileSize);
+
+                // Write into a preallocated temporary file; it only appears in the shared
+                // directory once complete (see PartialFile)
+                partial = new PartialFile(sharedRoot, filePath, fileSize);
 
-                // Update progress using the view
-                view.showDownloadProgress(totalBytesRead, fileSize);
+                // Same buffered stream the size line was read from, so no file bytes are lost
+                MessageDigest digest = (expectedHash != null) ? ContentStore.newDigest() : null;
+                totalBytesRead = receiveBody(peerConnection, partial, peerIp, true, digest);
+                receivedHash = (digest != null) ? ContentStore.toHex(digest.digest()) : null;
+            }
+            if (Thread.interrupted()) {
+                // A cancelled swarm returns with its workers stopped; parallel streams throw instead
+                throw new InterruptedIOException("Download cancelled");
+            }
+            if ((swarm == null || swarm.isSinglePeer()) && totalBytesRead == fileSize
+                    && fileSize >= ParallelDownloader.MIN_PARALLEL_BYTES) {
+                advisor.record(streamCount, fileSize, System.nanoTime() - started);
             }
-            fos.flush(); // Ensure all data is written
 
-            if (totalBytesRead == fileSize) {
+            if (totalBytesRead == fileSize && receivedHash != null && !receivedHash.equals(expectedHash)) {
+                 LOG.warn("Downloaded content of {} does not match the peer's hash.", fileName);
+                 status = "Failed - Checksum Mismatch";
+            } else if (totalBytesRead == fileSize) {
+                 partial.commit(); // Verify, fsync per policy, atomically move into place
+                 partial = null;
+                 fileCache.invalidate(filePath);
+                 if (receivedHash != null) {
+                     // Index the new file without reading it back
+                     contentStore.record(filePath, fileSize, Files.getLastModifiedTime(filePath).toMillis(), receivedHash);
+                 }
                  view.showDownloadComplete(fileName); // Use view for completion message
                  status = "Completed"; // Update status on success
             } else {
-                 view.showMessage("\nDownload incomplete. Expected " + fileSize + " bytes, received " + totalBytesRead + " bytes.");
+                 LOG.warn("Download incomplete for {}. Expected {} bytes, received {} bytes.", fileName, fileSize, totalBytesRead);
                  status = "Failed - Incomplete";
-                 // Optionally delete the partial file
-                 Files.deleteIfExists(filePath);
             }
 
             // No need to refresh file list here, downloading doesn't change remote list
 
+        } catch (InterruptedIOException e) {
+            LOG.info("Download of {} cancelled.", fileName);
+            status = "Cancelled";
         } catch (IOException e) {
-            view.showMessage("\nDownload failed: " + e.getMessage());
+            LOG.error("Download failed: {}", e.getMessage());
             status = "Failed - IO Error";
-            // Clean up partial file if it exists
-             try {
-                 Files.deleteIfExists(filePath);
-             } catch (IOException ex) {
-                 view.showMessage("Could not delete partial file: " + ex.getMessage());
-             }
         } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    view.showMessage("Error closing file output stream: " + e.getMessage());
-                }
+            if (partial != null) {
+                partial.abort(); // Discard the temporary file; the shared directory is untouched
+            }
+            if (swarmChunks != null) {
+                partials.remove(fileName, swarmChunks);
+                swarmChunks.finish(); // Committed (served from disk from now on) or aborted
+            }
+            if (swarm != null) {
+                swarm.close();
             }
+            peerConnection.endExchange();
+            if (status.equals("Cancelled") || peerConnection.isClosed()) {
+                removePeerConnection(peerConnection); // The rest of the reply was never read
+            }
+            recordOutcome(peerIp, peerPort, status, fileSize, System.nanoTime() - began);
             // Record the download attempt regardless of success/failure
-            persistenceService.recordDownload(fileName, peerIp, peerPort, fileSize, status);
+            persistenceService.recordDownload(fileName, peerIp, peerPort, fileSize, status, System.nanoTime() - began);
             // Important: Do NOT close the main socket input stream here,
             // as it's needed for subsequent commands (like LIST).
             // The PeerConnection or PeerHandler should manage the socket lifecycle.
         }
+        if (status.equals("Cancelled")) {
+            Thread.currentThread().interrupt(); // Cleared while cleaning up; restore it for the caller
+        }
+        return status;
+    }
+
+    /**
+     * Size of a remote file ("STAT"), or -1 if the peer does not have it or predates STAT
+     * (then the file comes over a plain GET).
+     */
+    private long statRemoteFile(PeerConnection connection, String fileName) throws IOException {
+        if (!connection.supports("STAT")) {
+            return -1;
+        }
+        connection.sendMessage("STAT " + fileName);
+        String response = connection.receiveMessage();
+        if (response != null && response.startsWith("STAT ")) {
+            try {
+                return Long.parseLong(response.substring(5).trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid STAT response from peer: {}", response);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A size from a peer's reply, or -1 if the text is not a non-negative number.
+     */
+    private static long parseSize(String text) {
+        try {
+            long size = Long.parseLong(text);
+            return (size >= 0) ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Open a connection with the standard timeouts. Used for peers and for the extra streams
+     * of parallel downloads (which are not added to the peer list).
+     */
+    private PeerConnection openConnection(String ip, int port) throws IOException {
+        Socket socket = transport.connect(ip, port, CONNECT_TIMEOUT_MILLIS); // Handshake included with TLS
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS); // A silent peer cannot block a download forever
+            socket.setKeepAlive(true);
+            return new PeerConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read one file body of {@code partial.getSize()} bytes from the connection into the
+     * partial file, paced by the download limits, feeding {@code digest} if given. Returns
+     * the number of bytes received (less than the size only if the stream ended early).
+     * Large bodies go through a WritePipeline, so disk writes overlap with socket reads.
+     */
+    private long receiveBody(PeerConnection connection, PartialFile partial, String peerIp, boolean showProgress,
+                             MessageDigest digest) throws IOException {
+        long allocationStart = downloadAllocations.start();
+        InputStream in = connection.getInputStream();
+        long fileSize = partial.getSize();
+        // Pooled, and sized from measured RTT and throughput
+        int bufferSize = connection.getTuner().bufferSizeFor(fileSize);
+        WritePipeline pipeline = (fileSize >= WritePipeline.MIN_BYTES) ? new WritePipeline(partial, digest, bufferSize) : null;
+        byte[] buffer = (pipeline == null) ? BufferPool.acquire(bufferSize) : null;
+        long started = System.nanoTime();
+        int bytesRead;
+        long totalBytesRead = 0;
+        UploadScheduler.Credit credit = uploadScheduler.creditFor(peerIp); // Reciprocation credit for this peer
+
+        try {
+            // Read file data, sized and paced by the download limits
+            while (totalBytesRead < fileSize) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Download cancelled");
+                }
+                byte[] target = (pipeline != null) ? pipeline.buffer() : buffer;
+                int offset = (pipeline != null) ? pipeline.offset() : 0;
+                int chunk = bandwidthManager.chunkSize(peerIp, false, target.length - offset);
+                bytesRead = in.read(target, offset, (int) Math.min(chunk, fileSize - totalBytesRead));
+                if (bytesRead == -1) {
+                    break;
+                }
+                bandwidthManager.throttleDownload(peerIp, bytesRead);
+                if (pipeline != null) {
+                    pipeline.advance(bytesRead); // Written (and hashed) by the disk-writer thread
+                } else {
+                    partial.write(totalBytesRead, buffer, 0, bytesRead);
+                    if (digest != null) {
+                        digest.update(buffer, 0, bytesRead);
+                    }
+                }
+                credit.add(bytesRead);
+                totalBytesRead += bytesRead;
+
+                if (showProgress) {
+                    // Update progress using the view
+                    view.showDownloadProgress(totalBytesRead, fileSize);
+                }
+            }
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            BufferPool.release(buffer);
+        }
+        connection.getTuner().recordTransfer(totalBytesRead, System.nanoTime() - started);
+        downloadAllocations.stop(allocationStart);
+        return totalBytesRead;
+    }
+
+    /**
+     * Download several files from one peer in as few requests as possible (MGET, at most
+     * PeerHandler.MAX_BATCH_NAMES names each). The peer streams them back to back and each
+     * file is written out as soon as it arrives. Peers without MGET get one GET per file.
+     */
+    public void downloadFiles(int peerId, List<String> fileNames) {
+        if (fileNames.isEmpty()) {
+            LOG.warn("No file names given for batch download.");
+            return;
+        }
+        PeerConnection peerConnection = getPeerForBatch(peerId);
+        if (peerConnection == null) {
+            return;
+        }
+        if (!peerConnection.supports("MGET")) {
+            LOG.info("Peer {} does not support batch downloads; downloading the files one by one.", (long) peerId);
+            for (String name : fileNames) {
+                downloadFile(peerId, name.trim()); // Outside the lock, as in downloadDelta
+            }
+            return;
+        }
+        for (int from = 0; from < fileNames.size(); from += PeerHandler.MAX_BATCH_NAMES) {
+            int to = Math.min(fileNames.size(), from + PeerHandler.MAX_BATCH_NAMES);
+            if (!requestBatch(peerConnection, fileNames.subList(from, to))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One MGET request; returns false if the rest of the batch should not be requested.
+     */
+    private synchronized boolean requestBatch(PeerConnection peerConnection, List<String> fileNames) {
+        List<String> request = new ArrayList<>(fileNames.size() + 1);
+        Set<String> requested = new HashSet<>();
+        request.add("MGET " + fileNames.size());
+        for (String name : fileNames) {
+            request.add(name);
+            requested.add(name.trim()); // As the serving side reads them
+        }
+        peerConnection.beginExchange();
+        try {
+            peerConnection.sendMessages(request);
+            return receiveBatch(peerConnection, requested::remove); // Each name is answered once
+        } finally {
+            peerConnection.endExchange();
+        }
+    }
+
+    /**
+     * Download every file of a peer whose relative path matches a glob (MGET_GLOB),
+     * e.g. "*.txt" or "configs/**".
+     */
+    public synchronized void downloadMatching(int peerId, String globPattern) {
+        PathMatcher matcher;
+        try {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + globPattern.trim());
+        } catch (PatternSyntaxException e) {
+            LOG.warn("Invalid glob pattern {}: {}", globPattern, e.getDescription());
+            return;
+        }
+        PeerConnection peerConnection = getPeerForBatch(peerId);
+        if (peerConnection == null) {
+            return;
+        }
+        if (!peerConnection.supports("MGET_GLOB")) {
+            LOG.warn("Peer {} does not support pattern downloads.", (long) peerId);
+            return;
+        }
+        peerConnection.beginExchange();
+        try {
+            peerConnection.sendMessage("MGET_GLOB " + globPattern);
+            // Matched the way the serving side matches
+            receiveBatch(peerConnection, name -> {
+                try {
+                    return matcher.matches(Paths.get(name));
+                } catch (InvalidPathException e) {
+                    return false;
+                }
+            });
+        } finally {
+            peerConnection.endExchange();
+        }
+    }
+
+    private PeerConnection getPeerForBatch(int peerId) {
+        PeerConnection connection = findPeer(peerId);
+        if (connection == null) {
+            LOG.warn("No connected peer with ID {}.", (long) peerId);
+        }
+        return connection;
+    }
+
+    /**
+     * Consume a batch response: "FILE <size> <name>" + data, "MISSING <name>", ..., "END <n>".
+     * A name that was not asked for ({@code expected} rejects it) or any other protocol or
+     * I/O error leaves the stream in an unknown state, so the connection is dropped, as it is
+     * after a BAD_REQUEST. Returns true if the batch ended with END.
+     */
+    private boolean receiveBatch(PeerConnection peerConnection, Predicate<String> expected) {
+        Socket socket = peerConnection.getSocket();
+        String peerIp = socket.getInetAddress().getHostAddress();
+        int peerPort = socket.getPort();
+        InputStream in = peerConnection.getInputStream();
+        int completed = 0;
+        int failed = 0;
+        try {
+            String line;
+            while ((line = peerConnection.receiveMessage()) != null) {
+                if (line.startsWith("END")) {
+                    LOG.info("Batch download finished: {} completed, {} failed", completed, failed);
+                    return true;
+                }
+                if (line.startsWith("BUSY")) {
+                    LOG.warn("Peer has no free upload slot for the batch; try again later.");
+                    return false;
+                }
+                if (line.equals("BAD_REQUEST")) {
+                    LOG.warn("Peer rejected the batch request.");
+                    removePeerConnection(peerConnection); // The peer closes it too
+                    return false;
+                }
+                if (line.startsWith("MISSING ")) {
+                    String missing = line.substring(8);
+                    if (!expected.test(missing)) {
+                        throw new IOException("Peer reported a file that was not requested: " + missing);
+                    }
+                    LOG.warn("File not found on peer (peer reported): {}", missing);
+                    persistenceService.recordDownload(missing, peerIp, peerPort, -1, "Failed - Not Found");
+                    failed++;
+                    continue;
+                }
+                int sizeEnd = line.startsWith("FILE ") ? line.indexOf(' ', 5) : -1;
+                if (sizeEnd < 0) {
+                    throw new IOException("Unexpected batch response: " + line);
+                }
+                long fileSize;
+                try {
+                    fileSize = Long.parseLong(line.substring(5, sizeEnd));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid file size in batch response: " + line);
+                }
+                String fileName = line.substring(sizeEnd + 1);
+                if (!expected.test(fileName)) {
+                    throw new IOException("Peer sent a file that was not requested: " + fileName);
+                }
+                Path filePath = resolveSharedPath(fileName);
+                if (filePath == null) {
+                    LOG.warn("Refusing to download to unsafe path: {}", fileName);
+                    skipFully(in, fileSize);
+                    persistenceService.recordDownload(fileName, peerIp, peerPort, fileSize, "Failed - Unsafe Path");
+                    failed++;
+                    continue;
+                }
+                PartialFile partial = new PartialFile(sharedRoot, filePath, fileSize);
+                long started = System.nanoTime();
+                try {
+                    if (receiveBody(peerConnection, partial, peerIp, false, null) != fileSize) {
+                        throw new IOException("Peer disconnected in the middle of " + fileName);
+                    }
+                    partial.commit();
+                    partial = null;
+                    fileCache.invalidate(filePath);
+                    long elapsed = System.nanoTime() - started;
+                    recordOutcome(peerIp, peerPort, "Completed", fileSize, elapsed);
+                    persistenceService.recordDownload(fileName, peerIp, peerPort, fileSize, "Completed", elapsed);
+                    completed++;
+                    LOG.debug("Batch file complete: {} ({} bytes)", fileName, fileSize);
+                } finally {
+                    if (partial != null) {
+                        partial.abort();
+                        recordOutcome(peerIp, peerPort, "Failed - IO Error", fileSize, 0);
+                        persistenceService.recordDownload(fileName, peerIp, peerPort, fileSize, "Failed - IO Error");
+                    }
+                }
+            }
+            LOG.warn("Peer disconnected during batch download ({} completed).", completed);
+        } catch (IOException e) {
+            LOG.error("Batch download failed after {} files: {}", completed, e.getMessage());
+        }
+        removePeerConnection(peerConnection); // Only END or BUSY keeps the connection usable
+        return false;
+    }
+
+    /**
+     * Download a whole folder as one bundle stream ("." for the peer's whole share).
+     * Files are unpacked as they arrive, keep their relative paths and modification times,
+     * and each appears atomically once complete.
+     */
+    public synchronized void downloadBundle(int peerId, String directory, boolean compress) {
+        PeerConnection peerConnection = getPeerForBatch(peerId);
+        if (peerConnection == null) {
+            return;
+        }
+        if (!peerConnection.supports("BUNDLE")) {
+            LOG.warn("Peer {} does not support folder downloads.", (long) peerId);
+            return;
+        }
+        Socket socket = peerConnection.getSocket();
+        String peerIp = socket.getInetAddress().getHostAddress();
+        int peerPort = socket.getPort();
+        String folder = directory.trim(); // As the serving side reads it
+        int completed = 0;
+        int failed = 0;
+        long totalBytes = 0;
+        long started = System.nanoTime();
+        byte[] buffer = null;
+        peerConnection.beginExchange();
+        try {
+            peerConnection.sendMessage("BUNDLE " + (compress ? "gzip" : "raw") + " " + directory);
+            String response = peerConnection.receiveMessage();
+            if (response == null) {
+                LOG.warn("Peer disconnected before sending folder {}.", directory);
+                return;
+            }
+            if (!response.startsWith("BUNDLE_START ")) {
+                LOG.warn("Peer could not send folder {}: {}", directory, response);
+                return;
+            }
+            BundleCodec.Reader reader = new BundleCodec.Reader(peerConnection.getInputStream(), response.endsWith("gzip"));
+            UploadScheduler.Credit credit = uploadScheduler.creditFor(peerIp);
+            buffer = BufferPool.acquire(peerConnection.getTuner().bufferSize());
+            BundleCodec.Entry entry;
+            while ((entry = reader.nextFile()) != null) {
+                if (!folder.equals(".") && !entry.path.startsWith(folder + "/")) {
+                    throw new IOException("Peer sent a file outside folder " + folder + ": " + entry.path);
+                }
+                Path filePath = resolveSharedPath(entry.path);
+                PartialFile partial = (filePath != null) ? new PartialFile(sharedRoot, filePath, entry.size) : null;
+                try {
+                    long position = 0;
+                    int bytesRead;
+                    while ((bytesRead = reader.read(buffer, 0, bandwidthManager.chunkSize(peerIp, false, buffer.length))) != -1) {
+                        bandwidthManager.throttleDownload(peerIp, bytesRead);
+                        credit.add(bytesRead);
+                        if (partial != null) {
+                            partial.write(position, buffer, 0, bytesRead);
+                        }
+                        position += bytesRead;
+                    }
+                    totalBytes += position;
+                    if (partial == null) {
+                        LOG.warn("Refusing to download to unsafe path: {}", entry.path);
+                        failed++;
+                        continue;
+                    }
+                    partial.commit();
+                    partial = null;
+                    Files.setLastModifiedTime(filePath, FileTime.fromMillis(entry.mtime));
+                    fileCache.invalidate(filePath);
+                    persistenceService.recordDownload(entry.path, peerIp, peerPort, entry.size, "Completed");
+                    completed++;
+                } finally {
+                    if (partial != null) {
+                        partial.abort();
+                    }
+                }
+            }
+            peerConnection.getTuner().recordTransfer(totalBytes, System.nanoTime() - started);
+            recordOutcome(peerIp, peerPort, (failed == 0) ? "Completed" : "Failed - Incomplete", totalBytes,
+                    System.nanoTime() - started);
+            long millis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+            LOG.info("Folder {} downloaded: {} files, {} bytes", directory, completed, totalBytes);
+            LOG.info("Folder transfer took {} ms ({} failed)", millis, failed);
+        } catch (IOException e) {
+            LOG.error("Folder download failed after {} files: {}", completed, e.getMessage());
+            recordOutcome(peerIp, peerPort, "Failed - IO Error", totalBytes, 0);
+            removePeerConnection(peerConnection); // Stream position is unknown; drop the connection
+        } finally {
+            BufferPool.release(buffer);
+            peerConnection.endExchange();
+        }
+    }
+
+    /**
+     * Bring an existing local copy of {@code fileName} up to date with the peer's version,
+     * transferring only the parts that changed (rsync-style, see DeltaSync). Falls back to a
+     * full download when there is no local copy, the peer does not support or rejects DELTA,
+     * or the rebuilt file fails verification.
+     */
+    public void downloadDelta(int peerId, String fileName) {
+        PeerConnection peerConnection = getPeerForBatch(peerId);
+        if (peerConnection == null) {
+            return;
+        }
+        Path filePath = resolveSharedPath(fileName);
+        if (filePath == null) {
+            LOG.warn("Refusing to download to unsafe path: {}", fileName);
+            return;
+        }
+        if (!Files.isRegularFile(filePath)) {
+            LOG.info("No local copy of {}; downloading it in full.", fileName);
+            downloadFile(peerId, fileName);
+            return;
+        }
+        if (!peerConnection.supports("DELTA")) {
+            LOG.info("Peer {} does not support delta sync; downloading {} in full.", (long) peerId, fileName);
+            downloadFile(peerId, fileName);
+            return;
+        }
+        if (syncDelta(peerConnection, fileName, filePath)) {
+            downloadFile(peerId, fileName); // Outside the lock, so it can join a transfer already under way
+        }
+    }
+
+    /**
+     * The delta exchange itself; returns true if the peer rejected the request or the result
+     * failed verification, and the file should be downloaded in full.
+     */
+    private synchronized boolean syncDelta(PeerConnection peerConnection, String fileName, Path filePath) {
+        Socket socket = peerConnection.getSocket();
+        String peerIp = socket.getInetAddress().getHostAddress();
+        int peerPort = socket.getPort();
+        long fileSize = -1;
+        String status = "Failed";
+        boolean fallBack = false;
+        long[] literalBytes = {-1}; // New data the delta carried; -1 until it has been applied
+        PartialFile partial = null;
+        peerConnection.beginExchange();
+        try {
+            int blockSize = DeltaSync.blockSizeFor(Files.size(filePath));
+            List<String> signatures = DeltaSync.signatures(filePath, blockSize);
+            List<String> request = new ArrayList<>(signatures.size() + 1);
+            request.add("DELTA " + blockSize + " " + signatures.size() + " " + fileName);
+            request.addAll(signatures);
+            peerConnection.sendMessages(request);
+
+            String response = peerConnection.receiveMessage();
+            if (response == null) {
+                LOG.warn("Peer disconnected before sending delta.");
+                status = "Failed - Disconnected";
+                return fallBack;
+            }
+            if (!response.startsWith("DELTA_START ")) {
+                LOG.warn("Peer could not send delta for {}: {}", fileName, response);
+                status = response.equals("FILE_NOT_FOUND") ? "Failed - Not Found"
+                        : response.startsWith("BUSY") ? "Failed - Peer Busy" : "Failed - Rejected";
+                fallBack = status.equals("Failed - Rejected");
+                return fallBack;
+            }
+            fileSize = Long.parseLong(response.substring(12).trim());
+            partial = new PartialFile(sharedRoot, filePath, fileSize);
+            UploadScheduler.Credit credit = uploadScheduler.creditFor(peerIp);
+            literalBytes[0] = 0;
+            boolean verified = DeltaSync.applyDelta(new DataInputStream(peerConnection.getInputStream()),
+                    filePath, blockSize, partial, length -> {
+                        bandwidthManager.throttleDownload(peerIp, length);
+                        credit.add(length);
+                        literalBytes[0] += length;
+                    });
+            if (!verified) {
+                LOG.warn("Delta result for {} failed verification; downloading in full.", fileName);
+                status = "Failed - Checksum Mismatch";
+                fallBack = true;
+                return fallBack;
+            }
+            partial.commit();
+            partial = null;
+            fileCache.invalidate(filePath);
+            status = TransferRollup.DELTA;
+            LOG.info("Delta sync of {}: {} bytes, {} sent as new data", fileName, fileSize, literalBytes[0]);
+            view.showDownloadComplete(fileName);
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid delta response from peer for {}", fileName);
+            removePeerConnection(peerConnection);
+        } catch (IOException e) {
+            LOG.error("Delta sync failed: {}", e.getMessage());
+            status = "Failed - IO Error";
+            removePeerConnection(peerConnection); // Stream position is unknown; drop the connection
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            removePeerConnection(peerConnection);
+        } finally {
+            peerConnection.endExchange();
+            if (partial != null) {
+                partial.abort();
+            }
+            recordOutcome(peerIp, peerPort, status, 0, 0); // Mostly local data; not a throughput sample
+            persistenceService.recordDownload(fileName, peerIp, peerPort, fileSize, status, -1, literalBytes[0]);
+        }
+        return fallBack;
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("Stream ended while skipping data");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Retrieve a peer's whole catalog page by page (LIST_PAGE), so neither side has to
+     * build the full listing as one message; peers without LIST_PAGE send the single-line
+     * LIST instead. Returns null if the peer disconnected.
+     */
+    private List<String> fetchFileList(PeerConnection connection) throws IOException {
+        List<String> files = new ArrayList<>();
+        if (!connection.supports("LIST_PAGE")) {
+            connection.sendMessage("LIST");
+            String line = connection.receiveMessage();
+            if (line == null) {
+                return null;
+            }
+            for (String name : line.split(",")) {
+                if (!name.isEmpty()) {
+                    files.add(name);
+                }
+            }
+            return files;
+        }
+        String request = "LIST_PAGE " + LIST_PAGE_SIZE;
+        while (true) {
+            connection.sendMessage(request);
+            String line;
+            while ((line = connection.receiveMessage()) != null) {
+                if (line.startsWith("F ")) {
+                    files.add(line.substring(2));
+                } else if (line.equals("END")) {
+                    return files;
+                } else if (line.startsWith("MORE ")) {
+                    request = "LIST_PAGE " + LIST_PAGE_SIZE + " " + line.substring(5);
+                    break;
+                } else {
+                    LOG.warn("Unexpected listing response: {}", line);
+                    return files;
+                }
+            }
+            if (line == null) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Walk the shared tree lazily (relative, '/'-separated paths). Callers must close it.
+     */
+    public SharedTreeWalker openSharedTree() {
+        return new SharedTreeWalker(sharedRoot);
+    }
+
+    /**
+     * Walk one (already validated) subdirectory of the shared tree.
+     */
+    public SharedTreeWalker openSharedTree(String relativeDirectory) {
+        return new SharedTreeWalker(sharedRoot, relativeDirectory);
+    }
+
+    public Path getSharedRoot() {
+        return sharedRoot;
+    }
+
+    /**
+     * Resolve a relative name from the protocol ("dir/file.txt") inside the shared directory.
+     * Returns null for anything that could escape it: absolute paths, "." or ".." segments,
+     * backslashes, the incoming-downloads folder, or symlinks pointing outside the tree.
+     */
+    public Path resolveSharedPath(String relativeName) {
+        if (relativeName == null || relativeName.isEmpty()
+                || relativeName.indexOf('\0') >= 0 || relativeName.indexOf('\\') >= 0
+                || relativeName.startsWith("/")) {
+            return null;
+        }
+        String[] segments = relativeName.split("/", -1);
+        for (String segment : segments) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return null;
+            }
+        }
+        if (segments[0].equals(PartialFile.INCOMING_DIR)) {
+            return null;
+        }
+        Path resolved;
+        try {
+            resolved = sharedRoot.resolve(relativeName).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!resolved.startsWith(sharedRoot)) {
+            return null;
+        }
+        try {
+            // Check the nearest part that exists: a new file is created through its parents'
+            // links. A dangling link itself fails toRealPath and is rejected.
+            Path existing = resolved;
+            while (existing != null && !Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+                existing = existing.getParent();
+            }
+            if (existing == null || !existing.toRealPath().startsWith(sharedRoot.toRealPath())) {
+                return null; // Symlink leading out of the shared tree
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return resolved;
+    }
+
+    /**
+     * Get the path to the shared directory (used by PeerHandler)
+     */
+    public String getSharedDirectory() {
+        return sharedDirectory;
+    }
+
+    void registerInbound(ConnectionTuner tuner) {
+        inboundTuners.add(tuner);
     }
 
+    void unregisterInbound(ConnectionTuner tuner) {
+        inboundTuners.remove(tuner);
+    }
 
     /**
-     * Parse a comma-separated list of files
+     * Show per-connection tuning and throughput, upload slots and cache statistics.
      */
-    private List<String> parseFileList(String fileList) {
-        if (fileList == null || fileList.isEmpty()) {
-            return new ArrayList<>();
+    public void showStats() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Outgoing connections:");
+        for (PeerConnection connection : this) {
+            lines.add("  [" + connection.getId() + "] " + connection.getTuner().describe());
+        }
+        lines.add("Incoming connections:");
+        for (ConnectionTuner tuner : inboundTuners) {
+            lines.add("  " + tuner.describe());
+        }
+        for (Map.Entry<String, ParallelDownloader.Advisor> entry : streamAdvisors.entrySet()) {
+            lines.add("Parallel downloads from " + entry.getKey() + ": " + entry.getValue().describe());
+        }
+        lines.add("Remote catalog: " + catalog.size() + " distinct files indexed");
+        lines.add("Partial downloads served to others: " + partials.size());
+        lines.add("Peer scores (best first, for a 1 MB transfer):");
+        for (String line : scoreboard.describe()) {
+            lines.add("  " + line);
         }
-        // Trim whitespace around commas and filenames
-        String[] files = fileList.split("\\s*,\\s*");
-        return new ArrayList<>(Arrays.asList(files)); // Return mutable list
+        lines.add(requestAllocations.describe());
+        lines.add(downloadAllocations.describe());
+        lines.add(BufferPool.describe());
+        lines.add(String.format("Upload slots: %d/%d active, %d queued", uploadScheduler.getActiveCount(),
+                uploadScheduler.getSlotCount(), uploadScheduler.getQueueLength()));
+        lines.add(requestLanes.describe());
+        lines.add("Bandwidth buckets: " + bandwidthManager.getTrackedPeerCount() + " peers");
+        lines.add(transport.describe());
+        lines.add(String.format("File cache: %d KB used, %d hits, %d misses, %d coalesced loads, %d KB freed on eviction",
+                fileCache.getUsedBytes() / 1024, fileCache.getHitCount(), fileCache.getMissCount(),
+                fileCache.getCoalescedCount(), fileCache.getFreedBytes() / 1024));
+        view.showStats(lines);
+    }
+
+    public AllocationMeter getRequestAllocations() {
+        return requestAllocations;
+    }
+
+    public ContentStore getContentStore() {
+        return contentStore;
     }
 
     /**
-     * Get a list of files in the shared directory
+     * Get the hot-file cache (used by PeerHandler)
      */
-    public String getFileList() {
-        File dir = new File(sharedDirectory);
-        // Filter only files, ignore directories
-        File[] files = dir.listFiles((d, name) -> new File(d, name).isFile());
+    public FileCache getFileCache() {
+        return fileCache;
+    }
 
-        if (files == null || files.length == 0) {
-            return "";
-        }
+    /**
+     * Get the upload slot scheduler (used by PeerHandler)
+     */
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < files.length; i++) {
-            sb.append(files[i].getName());
-            if (i < files.length - 1) {
-                sb.append(",");
-            }
-        }
-        return sb.toString();
+    /**
+     * Get the control and bulk request lanes (used by PeerHandler)
+     */
+    public RequestLanes getRequestLanes() {
+        return requestLanes;
     }
 
     /**
-     * Get the path to the shared directory (used by PeerHandler)
+     * Get the bandwidth limits (used by PeerHandler and the GUI)
      */
-    public String getSharedDirectory() {
-        return sharedDirectory;
+    public BandwidthManager getBandwidthManager() {
+        return bandwidthManager;
     }
 
      /**
@@ -883,15 +1802,23 @@ class Peer implements Iterable<PeerConnection> {
     }
 
     // Method to remove a disconnected peer - potentially called by PeerHandler or PeerConnection
-    public synchronized void removePeerConnection(PeerConnection connection) {
+    // Not synchronized: the reaper calls this while a download may hold the Peer lock
+    public void removePeerConnection(PeerConnection connection) {
         if (connection != null) {
-            boolean removed = connectedPeers.remove(connection); // Use the list's remove method
+            boolean removed;
+            synchronized (membership) {
+                removed = connectedPeers.remove(connection); // Use the list's remove method
+                if (removed) {
+                    connection.detachCatalog(); // Its files are no longer available
+                }
+            }
             if (removed) {
-                view.showMessage("Peer disconnected: " + connection.getSocket().getInetAddress().getHostAddress());
+                bandwidthManager.peerDisconnected(connection.getSocket().getInetAddress().getHostAddress());
+                LOG.info("Peer disconnected: {}", connection.getSocket().getInetAddress().getHostAddress());
                 try {
                     connection.close(); // Ensure resources are released
                 } catch (IOException e) {
-                    view.showMessage("Error closing disconnected peer socket: " + e.getMessage());
+                    LOG.error("Error closing disconnected peer socket: {}", e.getMessage());
                 }
             }
         }
@@ -909,25 +1836,52 @@ class Peer implements Iterable<PeerConnection> {
  * Focused on handling requests from one specific peer connection.
  */
 class PeerHandler implements Runnable {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(PeerHandler.class);
     private final Socket socket; // Made final
     private final Peer peer; // Made final
-    private final ConsoleView view; // Made final
-    private BufferedReader in;
+    private final String remoteAddress; // Resolved once instead of on every log call
+    private final ConnectionTuner tuner; // Buffer and socket tuning for this connection
+    private RequestReader in; // Allocation-free request lines (see RequestReader)
     private PrintWriter out;
     private OutputStream socketOutputStream; // For sending binary file data
+    private final byte[] header = new byte[64]; // Reused for the frequent numeric reply lines
+    private final Function<String, Path> pathResolver;
+    private final RequestLanes lanes;
+    private final Map<String, SharedTreeWalker> listCursors = new LinkedHashMap<>(); // Open LIST_PAGE walks
+    private int cursorCounter;
+    private static final int MAX_LIST_PAGE = 10000;
+    private static final int MAX_OPEN_CURSORS = 4;
+    static final int MAX_BATCH_NAMES = 100000; // Per MGET request; clients split longer lists
+    private static final int MAX_PARTIAL_RANGE = 16 * 1024 * 1024; // Ranges of partial files are read into memory first
+    // Commands on the hot path, matched on the raw request bytes
+    private static final byte[] GET = RequestReader.ascii("GET");
+    private static final byte[] GETRANGE = RequestReader.ascii("GETRANGE");
+    private static final byte[] STAT = RequestReader.ascii("STAT");
+    private static final byte[] HASH = RequestReader.ascii("HASH");
+    private static final byte[] PING = RequestReader.ascii("PING");
+    private static final byte[] RANGE_PREFIX = RequestReader.ascii("RANGE ");
+    private static final byte[] STAT_PREFIX = RequestReader.ascii("STAT ");
+    private static final byte[] PONG_LINE = RequestReader.ascii("PONG\n");
+    private static final byte[] CAPS = RequestReader.ascii("CAPS");
+    // Requests newer than the original LIST/GET protocol, announced to clients that ask
+    private static final byte[] CAPS_LINE = RequestReader.ascii(
+            "CAPS LIST_PAGE PING STAT GETRANGE HASH HAVE_MAP HAVES CHUNKS MGET MGET_GLOB BUNDLE DELTA\n");
 
     public PeerHandler(Socket socket, Peer peer) {
         this.socket = socket;
         this.peer = peer;
-        this.view = peer.getView(); // Get view from Peer
+        this.pathResolver = peer::resolveSharedPath;
+        this.lanes = peer.getRequestLanes();
+        this.remoteAddress = socket.getInetAddress().getHostAddress();
+        this.tuner = new ConnectionTuner("in  " + remoteAddress + ":" + socket.getPort(), socket);
 
         try {
             // Use specific charset for consistency
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            this.in = new RequestReader(socket.getInputStream());
             this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true); // Auto-flush enabled
             this.socketOutputStream = socket.getOutputStream(); // Get raw stream for file transfer
         } catch (IOException e) {
-            view.showMessage("Error setting up handler for " + socket.getInetAddress().getHostAddress() + ": " + e.getMessage());
+            LOG.error("Error setting up handler for {}: {}", remoteAddress, e.getMessage());
             // Close socket if setup fails
             try {
                 socket.close();
@@ -938,180 +1892,809 @@ class PeerHandler implements Runnable {
     @Override
     public void run() {
          if (in == null || out == null || socketOutputStream == null) {
-             view.showMessage("Handler not initialized properly for " + socket.getInetAddress().getHostAddress() + ". Thread exiting.");
+             LOG.error("Handler not initialized properly for {}. Thread exiting.", remoteAddress);
              return; // Exit if streams aren't set up
          }
 
+        peer.registerInbound(tuner);
+        peer.getBandwidthManager().peerConnected(remoteAddress);
+        AllocationMeter allocations = peer.getRequestAllocations();
         try {
-            String request;
-            // Keep reading lines until null (connection closed) or an error occurs
-            while ((request = in.readLine()) != null) {
-                processRequest(request);
+            // Keep reading lines until the connection closes or an error occurs
+            while (true) {
+                long allocationStart = allocations.start();
+                if (!in.next()) {
+                    break;
+                }
+                dispatchRequest();
+                allocations.stop(allocationStart);
             }
         } catch (SocketException e) {
              // Common when client disconnects abruptly
-             view.showMessage("Peer " + socket.getInetAddress().getHostAddress() + " disconnected (SocketException).");
+             LOG.info("Peer {} disconnected (SocketException).", remoteAddress);
+        } catch (SocketTimeoutException e) {
+             LOG.info("Peer {} idle for {} ms; closing connection.", remoteAddress, (long) Peer.IDLE_TIMEOUT_MILLIS);
         } catch (IOException e) {
             // Other potential I/O errors
-            view.showMessage("Error handling peer " + socket.getInetAddress().getHostAddress() + ": " + e.getMessage());
+            LOG.error("Error handling peer {}: {}", remoteAddress, e.getMessage());
         } finally {
             // Cleanup resources
+            peer.unregisterInbound(tuner);
+            peer.getBandwidthManager().peerDisconnected(remoteAddress);
+            for (SharedTreeWalker walker : listCursors.values()) {
+                walker.close();
+            }
+            listCursors.clear();
             try {
                 if (in != null) in.close();
                 if (out != null) out.close();
                 if (socketOutputStream != null) socketOutputStream.close(); // Close raw stream too
                 if (socket != null && !socket.isClosed()) socket.close();
-                view.showMessage("Closed connection handler for " + (socket != null ? socket.getInetAddress().getHostAddress() : "unknown peer"));
+                LOG.info("Closed connection handler for {}", remoteAddress);
             } catch (IOException e) {
-                view.showMessage("Error closing handler resources: " + e.getMessage());
+                LOG.error("Error closing handler resources: {}", e.getMessage());
             }
             // Optionally, notify the main Peer instance to remove this connection if it was tracked
             // This part is tricky as PeerHandler doesn't directly map to a PeerConnection object easily
         }
     }
 
-
     /**
-     * Process a request from a peer
+     * Send one page of the shared tree: "LIST_PAGE <limit> [cursor]".
+     * Replies with up to {@code limit} "F <path>" lines, then "MORE <cursor>" if the walk
+     * continues or "END". The cursor is an open walk held by this connection, so paging
+     * never re-reads directories and memory stays bounded by the tree depth.
      */
-    private void processRequest(String request) {
-        view.showMessage("Received request from " + socket.getInetAddress().getHostAddress() + ": " + request);
-        if (request.equals("LIST")) {
-            // Send list of files
-            String fileList = peer.getFileList();
-            out.println(fileList); // Send the comma-separated list
-            view.showMessage("Sent file list to " + socket.getInetAddress().getHostAddress());
-        } else if (request.startsWith("GET ")) {
-            // Handle file download request
-            String fileName = request.substring(4).trim();
-            Path filePath = Paths.get(peer.getSharedDirectory(), fileName); // Use Paths
-            File file = filePath.toFile();
-
-            if (!file.exists() || !file.isFile()) {
-                out.println("FILE_NOT_FOUND"); // Send specific error message
-                view.showMessage("File not found for GET request: " + fileName);
+    private void sendListPage(String request) {
+        String[] parts = request.split(" ");
+        int limit = MAX_LIST_PAGE;
+        try {
+            if (parts.length > 1) {
+                limit = Math.max(1, Math.min(MAX_LIST_PAGE, Integer.parseInt(parts[1])));
+            }
+        } catch (NumberFormatException e) {
+            out.println("BAD_REQUEST");
+            return;
+        }
+        SharedTreeWalker walker;
+        String cursor;
+        if (parts.length > 2) {
+            cursor = parts[2];
+            walker = listCursors.remove(cursor);
+            if (walker == null) {
+                out.println("CURSOR_EXPIRED");
                 return;
             }
+        } else {
+            cursor = "c" + (++cursorCounter);
+            walker = peer.openSharedTree();
+        }
+        int sent = 0;
+        while (sent < limit && walker.hasNext()) {
+            out.print("F ");
+            out.print(walker.next());
+            out.print('\n');
+            sent++;
+        }
+        if (walker.hasNext()) {
+            // Keep a few walks open per connection; the oldest is dropped first
+            if (listCursors.size() >= MAX_OPEN_CURSORS) {
+                Iterator<SharedTreeWalker> oldest = listCursors.values().iterator();
+                oldest.next().close();
+                oldest.remove();
+            }
+            listCursors.put(cursor, walker);
+            out.println("MORE " + cursor);
+        } else {
+            walker.close();
+            out.println("END");
+        }
+    }
 
-            FileInputStream fis = null; // Declare outside try
-            try {
-                // 1. Send file size (as a string on its own line)
-                out.println(file.length());
-                view.showMessage("Sent file size (" + file.length() + ") for: " + fileName);
+    private boolean isServable(Path filePath) {
+        return filePath != null && Files.isRegularFile(filePath);
+    }
+
+    /**
+     * Wait for an upload slot; if none frees up within the queue timeout, answer
+     * "BUSY <retry after ms>" and return null, so the client is not left waiting in silence.
+     */
+    private UploadScheduler.UploadTicket acquireUploadSlot() throws InterruptedException {
+        UploadScheduler scheduler = peer.getUploadScheduler();
+        UploadScheduler.UploadTicket ticket = scheduler.acquire(remoteAddress);
+        if (ticket == null) {
+            out.println("BUSY " + scheduler.getRetryAfterMillis());
+            LOG.info("All upload slots busy; asked {} to retry later", remoteAddress);
+        }
+        return ticket;
+    }
+
+    /**
+     * Answer BAD_REQUEST to a request whose trailing lines cannot be read, then close the
+     * connection so they are never taken for requests.
+     */
+    private void rejectAndClose() {
+        out.println("BAD_REQUEST");
+        LOG.warn("Closing connection from {} after a malformed request", remoteAddress);
+        closeSocketQuietly();
+    }
+
+    private void closeSocketQuietly() {
+        try {
+            socket.close();
+        } catch (IOException e) { /* Ignore */ }
+    }
+
+    /**
+     * Send a header line and then exactly the announced number of bytes of one file.
+     * Plain GET announces just the size; batch transfers announce "FILE <size> <name>".
+     */
+    private void sendFile(Path filePath, String fileName, boolean batchHeader, UploadScheduler.UploadTicket ticket)
+            throws IOException, InterruptedException {
+        // Hot files are served from the off-heap cache instead of the disk
+        FileCache.BufferInputStream cached = peer.getFileCache().open(filePath);
+        try (InputStream fis = (cached != null) ? cached : new FileInputStream(filePath.toFile())) {
+            // 1. Send file size (as a string on its own line)
+            long fileSize = (cached != null) ? cached.size() : Files.size(filePath);
+            if (batchHeader) {
+                out.println("FILE " + fileSize + " " + fileName);
+            } else {
+                writeLine(null, fileSize);
+            }
+            LOG.debug("Sent file size for {}: {} bytes", fileName, fileSize);
 
-                // 2. Send file data (binary)
-                fis = new FileInputStream(file);
+            // 2. Send file data (binary)
+            streamBody(fis, fileSize, fileName, ticket);
+        }
+    }
 
-                byte[] buffer = new byte[8192]; // Increased buffer size
-                int bytesRead;
+    /**
+     * Copy exactly {@code length} bytes from {@code source} to the socket, paced by the upload
+     * limits and the upload slot.
+     */
+    private void streamBody(InputStream source, long length, String fileName, UploadScheduler.UploadTicket ticket)
+            throws IOException, InterruptedException {
+        long started = System.nanoTime();
+        // Pooled, and sized from measured RTT and throughput
+        byte[] buffer = BufferPool.acquire(tuner.bufferSizeFor(length));
+        int bytesRead;
+        long remaining = length;
+        BandwidthManager bandwidth = peer.getBandwidthManager();
 
-                // Use the raw output stream for binary data
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    socketOutputStream.write(buffer, 0, bytesRead);
+        try {
+            // Use the raw output stream for binary data, paced by the upload limits
+            while (remaining > 0) {
+                int chunk = (int) Math.min(remaining, bandwidth.chunkSize(remoteAddress, true, buffer.length));
+                bytesRead = source.read(buffer, 0, chunk);
+                if (bytesRead == -1) {
+                    throw new IOException("File shrank while sending: " + fileName);
                 }
-                socketOutputStream.flush(); // Ensure all data is sent
+                ticket.checkpoint(); // May pause here while this upload is choked
+                lanes.yieldToControl(); // Catalog and control requests go first
+                bandwidth.throttleUpload(remoteAddress, bytesRead);
+                socketOutputStream.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        socketOutputStream.flush(); // Ensure all data is sent
+        tuner.recordTransfer(length, System.nanoTime() - started);
+    }
+
+    /**
+     * Ranged GET used by parallel and swarm downloads: "GETRANGE <offset> <length> <name>".
+     * Replies "RANGE <length>" followed by exactly those bytes, or "FILE_NOT_FOUND" /
+     * "BAD_REQUEST". Ranges are read straight from disk: they belong to large files, which
+     * the hot-file cache would not admit anyway. While we are still downloading the file
+     * ourselves, only verified chunks are served ("RANGE_UNAVAILABLE" otherwise).
+     */
+    private void sendRange() {
+        long offset;
+        long length;
+        try {
+            offset = in.nextLong();
+            length = in.nextLong();
+        } catch (NumberFormatException e) {
+            out.println("BAD_REQUEST");
+            return;
+        }
+        String fileName = in.restName();
+        Path filePath = in.restPath(pathResolver);
+        ChunkMap chunks = peer.getPartial(fileName);
+        if (chunks != null && sendPartialRange(chunks, offset, length, fileName)) {
+            return;
+        }
+        if (!isServable(filePath)) {
+            out.println("FILE_NOT_FOUND");
+            LOG.warn("File not found for GETRANGE request: {}", fileName);
+            return;
+        }
 
-                view.showMessage("Finished sending file: " + fileName + " to " + socket.getInetAddress().getHostAddress());
+        UploadScheduler.UploadTicket ticket = null;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            if (offset < 0 || length <= 0 || offset + length > channel.size()) {
+                out.println("BAD_REQUEST");
+                return;
+            }
+            ticket = acquireUploadSlot();
+            if (ticket == null) {
+                return; // Answered BUSY
+            }
+            writeLine(RANGE_PREFIX, length);
+            streamBody(Channels.newInputStream(channel.position(offset)), length, fileName, ticket);
+            LOG.debug("Sent range of {}: {}+{}", fileName, offset, length);
+        } catch (IOException e) {
+            LOG.error("Error sending range of {}: {}", fileName, e.getMessage());
+            closeSocketQuietly();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while serving a range of {} to {}", fileName, remoteAddress);
+            Thread.currentThread().interrupt();
+            closeSocketQuietly();
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+        }
+    }
 
-            } catch (IOException e) {
-                view.showMessage("Error sending file " + fileName + ": " + e.getMessage());
-                // Client might have disconnected during transfer
-            } finally {
-                 if (fis != null) {
-                     try {
-                         fis.close();
-                     } catch (IOException e) {
-                          view.showMessage("Error closing file input stream for " + fileName + ": " + e.getMessage());
-                     }
-                 }
-                 // Do NOT close socketOutputStream here, it's managed by the main finally block
+    /**
+     * Serve a range of a download in progress. Returns false if that download has just
+     * finished, so the caller serves the committed file instead.
+     */
+    private boolean sendPartialRange(ChunkMap chunks, long offset, long length, String fileName) {
+        if (!chunks.hasRange(offset, length) || length > MAX_PARTIAL_RANGE) {
+            if (chunks.isFinished()) {
+                return false;
             }
+            out.println("RANGE_UNAVAILABLE");
+            return true;
+        }
+        byte[] data = BufferPool.acquire((int) length);
+        UploadScheduler.UploadTicket ticket = null;
+        try {
+            if (!chunks.read(offset, data, (int) length)) {
+                return false;
+            }
+            ticket = acquireUploadSlot();
+            if (ticket == null) {
+                return true; // Answered BUSY
+            }
+            writeLine(RANGE_PREFIX, length);
+            streamBody(new ByteArrayInputStream(data, 0, (int) length), length, fileName, ticket);
+            LOG.debug("Sent partial range of {}: {}+{}", fileName, offset, length);
+        } catch (IOException e) {
+            LOG.error("Error sending range of {}: {}", fileName, e.getMessage());
+            closeSocketQuietly();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while serving a range of {} to {}", fileName, remoteAddress);
+            Thread.currentThread().interrupt();
+            closeSocketQuietly();
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+            BufferPool.release(data);
+        }
+        return true;
+    }
+
+    /**
+     * Chunk availability for swarm downloads (see SwarmDownloader):
+     * <ul>
+     *   <li>"HAVE_MAP <name>": "HAVE_ALL <size> <chunkSize>" for a complete file, or
+     *       "HAVE_MAP <size> <chunkSize> <cursor> <hex bitmap>" while we download it,</li>
+     *   <li>"HAVES <cursor> <name>": "HAVES <new cursor> <i,j,..|->", the chunks verified since
+     *       {@code cursor}, waiting briefly for one; HAVE_ALL once the download finished,</li>
+     *   <li>"CHUNKS <name>": "CHUNKS <size> <chunkSize> <count>" and one hash line per chunk.</li>
+     * </ul>
+     * Anything else is answered with FILE_NOT_FOUND or BAD_REQUEST.
+     */
+    private void sendChunkInfo(String request) {
+        String fileName;
+        int cursor = 0;
+        try {
+            if (request.startsWith("HAVES ")) {
+                int space = request.indexOf(' ', 6);
+                cursor = Math.max(0, Integer.parseInt(request.substring(6, space)));
+                fileName = request.substring(space + 1);
+            } else {
+                fileName = request.substring(request.indexOf(' ') + 1);
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            out.println("BAD_REQUEST");
+            return;
+        }
+        Path filePath = pathResolver.apply(fileName);
+        ChunkMap chunks = peer.getPartial(fileName);
+        try {
+            if (chunks != null && !chunks.isFinished()) {
+                if (request.startsWith("CHUNKS ")) {
+                    sendChunkHashes(chunks.getSize(), chunks.getChunkSize(), chunks.hashes());
+                } else if (request.startsWith("HAVES ")) {
+                    cursor = Math.min(cursor, chunks.cursor());
+                    int[] gained = chunks.changesSince(cursor, SwarmDownloader.POLL_MILLIS);
+                    if (chunks.isFinished() && gained.length == 0) {
+                        sendHaveAll(filePath);
+                        return;
+                    }
+                    StringBuilder line = new StringBuilder("HAVES ").append(cursor + gained.length).append(' ');
+                    for (int i = 0; i < gained.length; i++) {
+                        line.append(i == 0 ? "" : ",").append(gained[i]);
+                    }
+                    out.println(gained.length == 0 ? line.append('-') : line);
+                } else {
+                    out.println("HAVE_MAP " + chunks.getSize() + " " + chunks.getChunkSize() + " "
+                            + chunks.cursor() + " " + chunks.encodeBitmap());
+                }
+            } else if (request.startsWith("CHUNKS ")) {
+                if (!isServable(filePath)) {
+                    out.println("FILE_NOT_FOUND");
+                    return;
+                }
+                String[] hashes = ChunkMap.hashesOf(filePath);
+                sendChunkHashes(Files.size(filePath), ChunkMap.CHUNK_BYTES, Arrays.asList(hashes));
+            } else {
+                sendHaveAll(filePath);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not describe chunks of {}: {}", fileName, e.getMessage());
+            out.println("FILE_NOT_FOUND");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            out.println("FILE_NOT_FOUND");
+        }
+    }
+
+    private void sendHaveAll(Path filePath) throws IOException {
+        if (isServable(filePath)) {
+            out.println("HAVE_ALL " + Files.size(filePath) + " " + ChunkMap.CHUNK_BYTES);
         } else {
-             view.showMessage("Received unknown request: " + request);
-             // Optionally send an error response
-             // out.println("UNKNOWN_COMMAND");
+            out.println("FILE_NOT_FOUND");
         }
     }
-}
 
+    private void sendChunkHashes(long size, long chunkSize, List<String> hashes) {
+        out.print("CHUNKS " + size + " " + chunkSize + " " + hashes.size() + "\n");
+        for (String hash : hashes) {
+            out.print(hash);
+            out.print('\n');
+        }
+        out.flush();
+    }
 
-/**
- * Represents a connection to a peer (outgoing perspective)
- * --- Design Principle: Single Responsibility Principle (SRP) ---
- * Manages the state and communication for a single outgoing connection.
- */
-class PeerConnection {
-    private final Socket socket; // Made final
-    private final BufferedReader in; // Made final
-    private final PrintWriter out; // Made final
-    private List<String> files; // Cannot be final, updated with setFiles
+    /**
+     * Batch transfer: "MGET <count>" followed by {@code count} name lines, or
+     * "MGET_GLOB <pattern>" matched against the shared tree. Files are streamed back to back,
+     * each preceded by "FILE <size> <name>" (or "MISSING <name>"), then "END <count>".
+     * One upload slot covers the whole batch, so small files don't queue one by one.
+     */
+    private void sendBatch(String request) {
+        List<String> names = null;
+        PathMatcher matcher = null;
+        String pattern = null;
+        try {
+            if (request.startsWith("MGET_GLOB ")) {
+                pattern = request.substring(10).trim();
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            } else {
+                int count = Integer.parseInt(request.substring(5).trim());
+                if (count < 0 || count > MAX_BATCH_NAMES) {
+                    rejectAndClose(); // Too many name lines to drain; they must not run as requests
+                    return;
+                }
+                // Read every name before replying, so a client still writing its list
+                // can never deadlock against our responses
+                names = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String name = in.readLine();
+                    if (name == null) {
+                        return; // Client went away mid-request
+                    }
+                    names.add(name.trim());
+                }
+            }
+        } catch (NumberFormatException e) {
+            rejectAndClose(); // Unknown number of name lines follow
+            return;
+        } catch (PatternSyntaxException e) {
+            out.println("BAD_REQUEST");
+            return;
+        } catch (IOException e) {
+            LOG.error("Error reading batch request from {}: {}", remoteAddress, e.getMessage());
+            closeSocketQuietly();
+            return;
+        }
 
-    public PeerConnection(Socket socket) throws IOException {
-        this.socket = socket;
-        // Use specific charset for consistency
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true); // Auto-flush
-        this.files = new ArrayList<>(); // Initialize empty list
+        UploadScheduler.UploadTicket ticket = null;
+        int sent = 0;
+        String current = null;
+        try {
+            ticket = acquireUploadSlot();
+            if (ticket == null) {
+                return; // Answered BUSY
+            }
+            if (matcher != null) {
+                try (SharedTreeWalker walker = peer.openSharedTree()) {
+                    while (walker.hasNext()) {
+                        current = walker.next();
+                        if (matcher.matches(Paths.get(current))) {
+                            sendFile(peer.resolveSharedPath(current), current, true, ticket);
+                            sent++;
+                        }
+                    }
+                }
+            } else {
+                for (String name : names) {
+                    current = name;
+                    Path filePath = peer.resolveSharedPath(name);
+                    if (isServable(filePath)) {
+                        sendFile(filePath, name, true, ticket);
+                        sent++;
+                    } else {
+                        out.println("MISSING " + name);
+                    }
+                }
+            }
+            out.println("END " + sent);
+            LOG.info("Finished batch of {} files to {}", sent, remoteAddress);
+        } catch (IOException e) {
+            LOG.error("Error sending batch file {}: {}", current, e.getMessage());
+            closeSocketQuietly();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while serving batch {} to {}", (pattern != null ? pattern : "request"), remoteAddress);
+            Thread.currentThread().interrupt();
+            closeSocketQuietly();
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+        }
     }
 
     /**
-     * Send a message (command) to the peer
+     * Directory transfer: "BUNDLE <raw|gzip> <dir>" ("." for the whole share).
+     * Replies "BUNDLE_START <raw|gzip>" followed by a BundleCodec stream with every file of
+     * the subtree (paths relative to the shared root, plus mtimes), or "FILE_NOT_FOUND".
      */
-    public void sendMessage(String message) {
-        if (socket.isClosed() || !socket.isConnected() || out.checkError()) {
-             System.err.println("Cannot send message, socket is closed or has error.");
-             // Optionally throw an exception or handle reconnection logic
-             return;
+    private void sendBundle(String request) {
+        String[] parts = request.split(" ", 3);
+        if (parts.length < 3 || !(parts[1].equals("raw") || parts[1].equals("gzip"))) {
+            out.println("BAD_REQUEST");
+            return;
+        }
+        boolean compress = parts[1].equals("gzip");
+        String dirName = parts[2].trim();
+        boolean wholeShare = dirName.equals(".");
+        Path dir = wholeShare ? peer.getSharedRoot() : peer.resolveSharedPath(dirName);
+        if (dir == null || !Files.isDirectory(dir)) {
+            out.println("FILE_NOT_FOUND");
+            LOG.warn("Folder not found for BUNDLE request: {}", dirName);
+            return;
+        }
+
+        UploadScheduler.UploadTicket ticket = null;
+        int files = 0;
+        byte[] buffer = null;
+        try {
+            ticket = acquireUploadSlot();
+            if (ticket == null) {
+                return; // Answered BUSY
+            }
+            final UploadScheduler.UploadTicket slot = ticket;
+            BandwidthManager bandwidth = peer.getBandwidthManager();
+            out.println("BUNDLE_START " + parts[1]);
+            BundleCodec.Writer writer = new BundleCodec.Writer(socketOutputStream, compress, length -> {
+                slot.checkpoint(); // May pause here while this upload is choked
+                lanes.yieldToControl();
+                bandwidth.throttleUpload(remoteAddress, length);
+            });
+            buffer = BufferPool.acquire(tuner.bufferSize());
+            long started = System.nanoTime();
+            long totalBytes = 0;
+            try (SharedTreeWalker walker = wholeShare ? peer.openSharedTree() : peer.openSharedTree(dirName)) {
+                while (walker.hasNext()) {
+                    String relativePath = walker.next();
+                    Path filePath = peer.resolveSharedPath(relativePath);
+                    if (!isServable(filePath)) {
+                        continue;
+                    }
+                    long size = Files.size(filePath);
+                    writer.beginFile(relativePath, Files.getLastModifiedTime(filePath).toMillis(), size);
+                    try (InputStream fis = new FileInputStream(filePath.toFile())) {
+                        long remaining = size;
+                        while (remaining > 0) {
+                            int bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (bytesRead == -1) {
+                                throw new IOException("File shrank while sending: " + relativePath);
+                            }
+                            writer.write(buffer, 0, bytesRead);
+                            remaining -= bytesRead;
+                        }
+                    }
+                    totalBytes += size;
+                    files++;
+                }
+            }
+            writer.finish();
+            tuner.recordTransfer(totalBytes, System.nanoTime() - started);
+            LOG.info("Finished sending folder {} ({} files) to {}", dirName, files, remoteAddress);
+        } catch (IOException e) {
+            LOG.error("Error sending folder {}: {}", dirName, e.getMessage());
+            closeSocketQuietly(); // The bundle stream cannot be resumed
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while serving folder {} to {}", dirName, remoteAddress);
+            Thread.currentThread().interrupt();
+            closeSocketQuietly();
+        } finally {
+            BufferPool.release(buffer);
+            if (ticket != null) {
+                ticket.close();
+            }
         }
-        out.println(message);
     }
 
     /**
-     * Receive a message (response) from the peer.
-     * Note: This is a blocking call.
+     * Delta transfer: "DELTA <blockSize> <count> <name>" followed by {@code count} block
+     * signature lines of the client's old copy. Replies "DELTA_START <size>" followed by a
+     * DeltaSync op stream, or "FILE_NOT_FOUND" / "BAD_REQUEST".
      */
-    public String receiveMessage() throws IOException {
-         if (socket.isClosed() || !socket.isConnected()) {
-             throw new SocketException("Socket is closed or not connected.");
-         }
+    private void sendDelta(String request) {
+        String[] parts = request.split(" ", 4);
+        int blockSize;
+        int count;
         try {
-            return in.readLine(); // Can return null if stream ends
-        } catch (SocketException e) {
-             System.err.println("SocketException while receiving message: " + e.getMessage() + " (Peer likely disconnected)");
-             close(); // Close connection on error
-             throw e; // Re-throw
+            blockSize = Integer.parseInt(parts[1]);
+            count = Integer.parseInt(parts[2]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            rejectAndClose(); // Unknown number of signature lines follow
+            return;
+        }
+        if (parts.length < 4 || blockSize < DeltaSync.MIN_BLOCK || blockSize > DeltaSync.MAX_BLOCK
+                || count < 0 || count > DeltaSync.MAX_BLOCKS) {
+            rejectAndClose(); // The signature lines must not run as requests
+            return;
+        }
+        String fileName = parts[3].trim();
+        // Read every signature before replying, as for MGET
+        List<String> lines = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                String line = in.readLine();
+                if (line == null) {
+                    return; // Client went away mid-request
+                }
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading delta request from {}: {}", remoteAddress, e.getMessage());
+            closeSocketQuietly();
+            return;
+        }
+        DeltaSync.Signatures signatures;
+        try {
+            signatures = new DeltaSync.Signatures(blockSize, lines);
+        } catch (IllegalArgumentException e) {
+            out.println("BAD_REQUEST");
+            return;
+        }
+        lines = null; // Only the parsed form is needed from here on
+
+        Path filePath = peer.resolveSharedPath(fileName);
+        if (!isServable(filePath)) {
+            out.println("FILE_NOT_FOUND");
+            LOG.warn("File not found for DELTA request: {}", fileName);
+            return;
+        }
+
+        UploadScheduler.UploadTicket ticket = null;
+        try {
+            ticket = acquireUploadSlot();
+            if (ticket == null) {
+                return; // Answered BUSY
+            }
+            final UploadScheduler.UploadTicket slot = ticket;
+            BandwidthManager bandwidth = peer.getBandwidthManager();
+            FileCache.BufferInputStream cached = peer.getFileCache().open(filePath);
+            DataOutputStream ops = new DataOutputStream(new BufferedOutputStream(socketOutputStream, 64 * 1024));
+            long literalBytes;
+            try (InputStream source = (cached != null) ? cached : new FileInputStream(filePath.toFile())) {
+                long fileSize = (cached != null) ? cached.size() : Files.size(filePath);
+                out.println("DELTA_START " + fileSize);
+                literalBytes = DeltaSync.writeDelta(source, fileSize, signatures, ops, length -> {
+                    slot.checkpoint(); // May pause here while this upload is choked
+                    lanes.yieldToControl();
+                    bandwidth.throttleUpload(remoteAddress, length);
+                });
+            }
+            LOG.info("Finished delta of {} to {}: {} literal bytes", fileName, remoteAddress, literalBytes);
+        } catch (IOException e) {
+            LOG.error("Error sending delta for {}: {}", fileName, e.getMessage());
+            closeSocketQuietly(); // The op stream cannot be resumed
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while serving delta of {} to {}", fileName, remoteAddress);
+            Thread.currentThread().interrupt();
+            closeSocketQuietly();
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+        }
+    }
+
+    /**
+     * Handle the request line currently held by {@code in}. Transfers and the small, frequent
+     * requests are parsed straight from the line's bytes; the rest go through
+     * {@link #processRequest(String)}.
+     */
+    private void dispatchRequest() throws IOException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Received request from {}: {}", remoteAddress, in.text());
+        }
+        if (in.isCommand(GET)) {
+            // Handle file download request
+            String fileName = in.restName();
+            Path filePath = in.restPath(pathResolver); // Rejects paths escaping the shared tree
+
+            if (!isServable(filePath)) {
+                out.println("FILE_NOT_FOUND"); // Send specific error message
+                if (!fileName.equals(PeerConnection.CAPS_PROBE)) {
+                    LOG.warn("File not found for GET request: {}", fileName);
+                }
+                return;
+            }
+
+            UploadScheduler.UploadTicket ticket = null;
+            try {
+                // 0. Wait for an upload slot; the client sees a slower size reply, or BUSY
+                ticket = acquireUploadSlot();
+                if (ticket == null) {
+                    return; // Answered BUSY
+                }
+                sendFile(filePath, fileName, false, ticket);
+                LOG.info("Finished sending file: {} to {}", fileName, remoteAddress);
+            } catch (IOException e) {
+                LOG.error("Error sending file {}: {}", fileName, e.getMessage());
+                // Client might have disconnected during transfer; the stream is out of sync either way
+                closeSocketQuietly();
+            } catch (InterruptedException e) {
+                LOG.warn("Interrupted while serving {} to {}", fileName, remoteAddress);
+                Thread.currentThread().interrupt();
+                closeSocketQuietly();
+            } finally {
+                 if (ticket != null) {
+                     ticket.close(); // Free the upload slot for the next peer
+                 }
+                 // Do NOT close socketOutputStream here, it's managed by the main finally block
+            }
+        } else if (in.isCommand(GETRANGE)) {
+            sendRange();
+        } else if (in.isCommand(PING)) {
+            // Heartbeat; reading the request already reset the idle timeout. The client
+            // includes its RTT estimate, which this side cannot measure by itself.
+            if (in.hasMore()) {
+                try {
+                    tuner.recordRtt(in.nextLong() * 1000);
+                } catch (NumberFormatException e) {
+                    // Ignore the hint
+                }
+            }
+            socketOutputStream.write(PONG_LINE);
+        } else if (in.isCommand(CAPS)) {
+            socketOutputStream.write(CAPS_LINE); // Answered in order, ahead of the probe that follows
+        } else if (in.isCommand(STAT)) {
+            lanes.runControl(this::sendStat);
+        } else if (in.isCommand(HASH)) {
+            // Content hash for dedupe: "HASH <size> <sha256>", FILE_NOT_FOUND, or NO_HASH if the
+            // file is not indexed yet (it is hashed in the background, not on this thread)
+            String fileName = in.restName();
+            Path filePath = in.restPath(pathResolver);
+            if (!isServable(filePath)) {
+                out.println("FILE_NOT_FOUND");
+                return;
+            }
+            try {
+                long size = Files.size(filePath);
+                String hash = peer.getContentStore().indexedHashOf(filePath);
+                out.println((hash != null) ? "HASH " + size + " " + hash : "NO_HASH");
+            } catch (IOException e) {
+                LOG.warn("Could not hash {}: {}", fileName, e.getMessage());
+                out.println("FILE_NOT_FOUND");
+            }
+        } else {
+            processRequest(in.text());
         }
     }
 
     /**
-     * Get the socket connection
+     * File size only (used to plan a parallel download): "STAT <size>" or FILE_NOT_FOUND.
      */
-    public Socket getSocket() {
-        return socket;
+    private void sendStat() {
+        Path filePath = in.restPath(pathResolver);
+        try {
+            if (isServable(filePath)) {
+                writeLine(STAT_PREFIX, Files.size(filePath));
+            } else {
+                out.println("FILE_NOT_FOUND");
+            }
+        } catch (IOException e) {
+            out.println("FILE_NOT_FOUND");
+        }
     }
 
     /**
-     * Get the list of available files from this peer
+     * Write "{@code prefix}{@code value}\n" straight to the socket without building a String.
+     * Only used once everything queued in {@code out} has been flushed (it auto-flushes on
+     * println), so the two never reorder.
      */
-    public synchronized List<String> getFiles() { // Added synchronized
-        return files;
+    private void writeLine(byte[] prefix, long value) throws IOException {
+        int position = 0;
+        if (prefix != null) {
+            System.arraycopy(prefix, 0, header, 0, prefix.length);
+            position = prefix.length;
+        }
+        if (value == 0) {
+            header[position++] = '0';
+        } else {
+            int digitsStart = position;
+            for (long rest = value; rest > 0; rest /= 10) {
+                header[position++] = (byte) ('0' + rest % 10);
+            }
+            for (int i = digitsStart, j = position - 1; i < j; i++, j--) {
+                byte swap = header[i];
+                header[i] = header[j];
+                header[j] = swap;
+            }
+        }
+        header[position++] = '\n';
+        socketOutputStream.write(header, 0, position);
     }
 
     /**
-     * Set the list of available files from this peer
+     * Process a request from a peer
      */
-    public synchronized void setFiles(List<String> files) { // Added synchronized
-        this.files = files;
+    private void processRequest(String request) throws IOException {
+        if (request.equals("LIST") || request.equals("LIST_PAGE") || request.startsWith("LIST_PAGE ")
+                || request.startsWith("HAVE_MAP ")) {
+            lanes.runControl(() -> processControlRequest(request));
+        } else if (request.startsWith("MGET ") || request.startsWith("MGET_GLOB ")) {
+            sendBatch(request);
+        } else if (request.startsWith("BUNDLE ")) {
+            sendBundle(request);
+        } else if (request.startsWith("DELTA ")) {
+            sendDelta(request);
+        } else if (request.startsWith("HAVES ") || request.startsWith("CHUNKS ")) {
+            // Long-polled, or hashing whole files: stays on the connection thread
+            sendChunkInfo(request);
+        } else {
+             LOG.warn("Received unknown request: {}", request);
+             // Optionally send an error response
+             // out.println("UNKNOWN_COMMAND");
+        }
     }
 
-     /**
-     * Close the connection and its streams
+    /**
+     * Catalog and chunk-map requests, run on the control lane.
      */
-    public void close() throws IOException {
-        // Close streams first, then socket
-        if (in != null) try { in.close(); } catch (IOException e) { /* ignore */ }
-        if (out != null) try { out.close(); } catch (Exception e) { /* ignore */ } // PrintWriter close doesn't throw IOException
-        if (socket != null && !socket.isClosed()) try { socket.close(); } catch (IOException e) { /* ignore */ }
-        System.out.println("PeerConnection closed for " + (socket != null ? socket.getInetAddress().getHostAddress() : "unknown peer"));
-    }
-}
\ No newline at end of file
+    private void processControlRequest(String request) {
+        if (request.equals("LIST")) {
+            // Send list of files (legacy single-line form), streamed while walking the tree
+            try (SharedTreeWalker walker = peer.openSharedTree()) {
+                boolean first = true;
+                while (walker.hasNext()) {
+                    if (!first) {
+                        out.print(',');
+                    }
+                    out.print(walker.next());
+                    first = false;
+                }
+            }
+            out.println(); // Terminate (and flush) the comma-separated list
+            LOG.debug("Sent file list to {}", remoteAddress);
+        } else if (request.startsWith("LIST_PAGE")) {
+            sendListPage(request);
+        } else {
+            sendChunkInfo(request);
+        }
+    }
+}
@@ -5,6 +5,8 @@ import java.awt.*;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.swing.*;
 
 public class P2PGui extends JFrame {
@@ -24,6 +26,23 @@ public class P2PGui extends JFrame {
     private JButton listLocalButton;
     private JButton listKnownButton;
     private JButton historyButton;
+    private JButton analyticsButton;
+    private JButton downloadFolderButton;
+    private JButton deltaSyncButton;
+    private JButton statsButton;
+    private JButton cancelButton;
+    private final java.util.List<CompletableFuture<String>> pendingDownloads =
+            new CopyOnWriteArrayList<>(); // Single-file downloads the Cancel button stops
+    private JTextField streamsField;
+    private JTextField searchField;
+    private JButton searchButton;
+    private JCheckBox compressBox;
+    private JCheckBox patternBox; // File name field holds a glob pattern
+    private JTextField globalUpField;
+    private JTextField globalDownField;
+    private JTextField peerUpField;
+    private JTextField peerDownField;
+    private JButton applyLimitsButton;
 
     public P2PGui() {
         super("P2P File Sharing Client");
@@ -74,11 +93,12 @@ public class P2PGui extends JFrame {
         gbc.gridx = 5; gbc.gridy = 1; inputPanel.add(connectButton, gbc);
 
         // Row 2: Download
-        gbc.gridx = 0; gbc.gridy = 2; inputPanel.add(new JLabel("Peer Index:"), gbc);
+        gbc.gridx = 0; gbc.gridy = 2; inputPanel.add(new JLabel("Peer ID:"), gbc);
         peerIndexField = new JTextField(3);
+        peerIndexField.setToolTipText("Leave blank to download a single file from the best-scoring peer");
         gbc.gridx = 1; gbc.gridy = 2; inputPanel.add(peerIndexField, gbc);
 
-        gbc.gridx = 2; gbc.gridy = 2; inputPanel.add(new JLabel("File Name:"), gbc);
+        gbc.gridx = 2; gbc.gridy = 2; inputPanel.add(new JLabel("File Name(s) / Glob:"), gbc);
         fileNameField = new JTextField(15);
         gbc.gridx = 3; gbc.gridy = 2; gbc.gridwidth = 2; gbc.fill = GridBagConstraints.HORIZONTAL; gbc.weightx = 1.0;
         inputPanel.add(fileNameField, gbc);
@@ -94,17 +114,66 @@ public class P2PGui extends JFrame {
         listLocalButton = new JButton("List Local Files");
         listKnownButton = new JButton("List Known Peers (DB)");
         historyButton = new JButton("View History");
+        analyticsButton = new JButton("Analytics");
+        downloadFolderButton = new JButton("Download Folder");
+        compressBox = new JCheckBox("Compress");
+        patternBox = new JCheckBox("Glob pattern");
+        downloadFolderButton.setEnabled(false);
+        deltaSyncButton = new JButton("Sync Changes");
+        deltaSyncButton.setEnabled(false);
+        statsButton = new JButton("Stats");
+        statsButton.setEnabled(false);
+        cancelButton = new JButton("Cancel Downloads");
+        cancelButton.setEnabled(false);
         listRemoteButton.setEnabled(false);
         listLocalButton.setEnabled(false);
         listKnownButton.setEnabled(false);
         historyButton.setEnabled(false);
+        analyticsButton.setEnabled(false);
+        actionPanel.add(new JLabel("Streams:"));
+        streamsField = new JTextField(2); // Parallel streams per download; blank = automatic
+        actionPanel.add(streamsField);
+        actionPanel.add(patternBox);
         actionPanel.add(listRemoteButton);
         actionPanel.add(listLocalButton);
         actionPanel.add(listKnownButton);
         actionPanel.add(historyButton);
+        actionPanel.add(analyticsButton);
+        actionPanel.add(downloadFolderButton);
+        actionPanel.add(compressBox);
+        actionPanel.add(deltaSyncButton);
+        actionPanel.add(statsButton);
+        actionPanel.add(cancelButton);
+        searchField = new JTextField(10); // text, prefix* or *.ext
+        searchButton = new JButton("Search");
+        searchButton.setEnabled(false);
+        actionPanel.add(searchField);
+        actionPanel.add(searchButton);
 
         gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 6; gbc.fill = GridBagConstraints.HORIZONTAL;
         inputPanel.add(actionPanel, gbc);
+        gbc.gridwidth = 1; gbc.fill = GridBagConstraints.NONE; // Reset
+
+        // Row 4: Bandwidth limits (KB/s, 0 = unlimited)
+        JPanel limitsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        globalUpField = new JTextField("0", 5);
+        globalDownField = new JTextField("0", 5);
+        peerUpField = new JTextField("0", 5);
+        peerDownField = new JTextField("0", 5);
+        applyLimitsButton = new JButton("Apply Limits");
+        applyLimitsButton.setEnabled(false);
+        limitsPanel.add(new JLabel("Upload KB/s:"));
+        limitsPanel.add(globalUpField);
+        limitsPanel.add(new JLabel("Download KB/s:"));
+        limitsPanel.add(globalDownField);
+        limitsPanel.add(new JLabel("Per-peer Up KB/s:"));
+        limitsPanel.add(peerUpField);
+        limitsPanel.add(new JLabel("Per-peer Down KB/s:"));
+        limitsPanel.add(peerDownField);
+        limitsPanel.add(applyLimitsButton);
+
+        gbc.gridx = 0; gbc.gridy = 4; gbc.gridwidth = 6; gbc.fill = GridBagConstraints.HORIZONTAL;
+        inputPanel.add(limitsPanel, gbc);
 
 
         // --- Output Area ---
@@ -128,11 +197,19 @@ public class P2PGui extends JFrame {
         listLocalButton.addActionListener(e -> listLocalFiles());
         listKnownButton.addActionListener(e -> listKnownPeers());
         historyButton.addActionListener(e -> viewHistory());
+        analyticsButton.addActionListener(e -> viewAnalytics());
+        downloadFolderButton.addActionListener(e -> downloadFolder());
+        deltaSyncButton.addActionListener(e -> syncChangedFile());
+        statsButton.addActionListener(e -> showStats());
+        cancelButton.addActionListener(e -> cancelDownloads());
+        searchButton.addActionListener(e -> searchFiles());
+        searchField.addActionListener(e -> searchFiles()); // Enter searches too
+        applyLimitsButton.addActionListener(e -> applyBandwidthLimits());
     }
 
-    private void runInBackground(Runnable task) {
-        // Run backend tasks in a separate thread to avoid blocking the GUI
-        new Thread(task).start();
+    private void runInBackground(String operation, Runnable task) {
+        // Run backend tasks on the Peer's async pool to avoid blocking the GUI
+        controller.getAsyncPeer().run(operation, task);
     }
 
     private void startPeerServer() {
@@ -140,61 +217,45 @@ public class P2PGui extends JFrame {
             int port = Integer.parseInt(portField.getText().trim());
             String sharedDir = sharedDirField.getText().trim();
 
-            // Initialize Peer within the controller (this needs modification in PeerController)
-            // For now, we assume PeerController.start() can be adapted or we manually init
-            // This is a simplification - ideally PeerController would take config differently
             System.out.println("Attempting to start server on port " + port + " with dir " + sharedDir);
-            System.out.println("NOTE: GUI uses PeerController singleton. Ensure it's not started elsewhere.");
-
-            // We need a way to initialize the Peer instance within the singleton controller
-            // This is a limitation of the current structure when driven by GUI
-            // A possible workaround (hacky):
-            try {
-                java.lang.reflect.Field peerField = PeerController.class.getDeclaredField("peer");
-                peerField.setAccessible(true);
-                if (peerField.get(controller) == null) {
-                     java.lang.reflect.Field viewField = PeerController.class.getDeclaredField("view");
-                     viewField.setAccessible(true);
-                     Object consoleView = viewField.get(controller); // Keep the original view for now
-
-                     java.lang.reflect.Field persistenceField = PeerController.class.getDeclaredField("persistenceService");
-                     persistenceField.setAccessible(true);
-                     Object persistenceService = persistenceField.get(controller);
-
-                     // Create the Peer instance manually - requires ConsoleView and PersistenceService
-                     // This highlights the need for better dependency injection or factory
-                     Peer peer = new Peer(port, sharedDir, (ConsoleView)consoleView, (PersistenceService)persistenceService);
-                     peerField.set(controller, peer);
-
-                     // Start server in background
-                     runInBackground(peer::startServer);
-
-                     // Initialize commands (also needs reflection or refactoring)
-                     // This part is complex to replicate via reflection.
-                     // For this basic GUI, we'll call peer methods directly where possible.
-                     System.out.println("Server thread started. Commands might not be fully initialized in controller.");
-
-                     // Enable buttons
-                     startButton.setEnabled(false);
-                     portField.setEnabled(false);
-                     sharedDirField.setEnabled(false);
-                     connectButton.setEnabled(true);
-                     listRemoteButton.setEnabled(true);
-                     downloadButton.setEnabled(true);
-                     listLocalButton.setEnabled(true);
-                     listKnownButton.setEnabled(true);
-                     historyButton.setEnabled(true);
-
-                } else {
-                     System.out.println("Server already seems to be initialized.");
-                }
-
-            } catch (Exception ex) {
-                 System.err.println("Error initializing Peer via reflection: " + ex.getMessage());
-                 ex.printStackTrace(System.err);
+            if (controller.getPeer() == null) {
+                controller.initialize(port, sharedDir); // Starts the server in the background
+                controller.getAsyncPeer().addListener(new AsyncPeer.Listener() {
+                    @Override
+                    public void downloadFinished(String fileName, String status) {
+                        if (!status.startsWith("Completed")) {
+                            System.err.println("Download of " + fileName + ": " + status);
+                        }
+                    }
+
+                    @Override
+                    public void failed(String operation, Throwable error) {
+                        System.err.println(operation + " failed: " + error.getMessage());
+                    }
+                });
+                System.out.println("Server thread started.");
+                showBandwidthLimits(controller.getPeer().getBandwidthManager());
+
+                // Enable buttons
+                startButton.setEnabled(false);
+                portField.setEnabled(false);
+                sharedDirField.setEnabled(false);
+                connectButton.setEnabled(true);
+                listRemoteButton.setEnabled(true);
+                downloadButton.setEnabled(true);
+                listLocalButton.setEnabled(true);
+                listKnownButton.setEnabled(true);
+                historyButton.setEnabled(true);
+                analyticsButton.setEnabled(true);
+                downloadFolderButton.setEnabled(true);
+                deltaSyncButton.setEnabled(true);
+                statsButton.setEnabled(true);
+                cancelButton.setEnabled(true);
+                searchButton.setEnabled(true);
+                applyLimitsButton.setEnabled(true);
+            } else {
+                System.out.println("Server already seems to be initialized.");
             }
-
-
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Invalid port number.", "Error", JOptionPane.ERROR_MESSAGE);
         } catch (Exception ex) {
@@ -211,9 +272,9 @@ public class P2PGui extends JFrame {
                 return;
             }
             // Use the Peer instance from the controller
-            Peer peer = getPeerInstance();
+            Peer peer = controller.getPeer();
             if (peer != null) {
-                runInBackground(() -> peer.connectToPeer(ip, port));
+                controller.getAsyncPeer().connect(ip, port); // Failures are reported by the listener
             } else {
                  System.err.println("Peer instance not available in controller.");
             }
@@ -223,15 +284,66 @@ public class P2PGui extends JFrame {
     }
 
     private void listRemoteFiles() {
-         Peer peer = getPeerInstance();
+         Peer peer = controller.getPeer();
          if (peer != null) {
-             runInBackground(peer::listAvailableFiles); // Assumes listAvailableFiles prints to console/view
+             runInBackground("list remote files", peer::listAvailableFiles); // Assumes listAvailableFiles prints to console/view
          } else {
               System.err.println("Peer instance not available in controller.");
          }
     }
 
     private void downloadFile() {
+         try {
+            String indexText = peerIndexField.getText().trim();
+            int index = indexText.isEmpty() ? -1 : Integer.parseInt(indexText); // Blank: best-scoring source
+            String fileName = fileNameField.getText().trim();
+             if (fileName.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "File name cannot be empty.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            Peer peer = controller.getPeer();
+            if (peer != null) {
+                // Several comma-separated names or a glob go out as one batch request
+                if (patternBox.isSelected()) {
+                    runInBackground("download " + fileName, () -> peer.downloadMatching(index, fileName));
+                } else if (fileName.contains(",")) {
+                    runInBackground("download " + fileName, () -> peer.downloadFiles(index, BatchDownloadCommand.parseNames(fileName)));
+                } else {
+                    String streamsText = streamsField.getText().trim();
+                    int streams = streamsText.isEmpty() ? 0 : Integer.parseInt(streamsText);
+                    CompletableFuture<String> download = controller.getAsyncPeer().download(index, fileName, streams);
+                    pendingDownloads.add(download);
+                    download.whenComplete((status, error) -> pendingDownloads.remove(download));
+                }
+            } else {
+                 System.err.println("Peer instance not available in controller.");
+            }
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid peer ID or stream count.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void downloadFolder() {
+         try {
+            int index = Integer.parseInt(peerIndexField.getText().trim());
+            String folder = fileNameField.getText().trim(); // The file name field doubles as the folder name
+             if (folder.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "Folder name cannot be empty ('.' for everything).", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            boolean compress = compressBox.isSelected();
+            Peer peer = controller.getPeer();
+            if (peer != null) {
+                runInBackground("download folder " + folder, () -> peer.downloadBundle(index, folder, compress));
+            } else {
+                 System.err.println("Peer instance not available in controller.");
+            }
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid peer ID.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void syncChangedFile() {
          try {
             int index = Integer.parseInt(peerIndexField.getText().trim());
             String fileName = fileNameField.getText().trim();
@@ -239,21 +351,43 @@ public class P2PGui extends JFrame {
                 JOptionPane.showMessageDialog(this, "File name cannot be empty.", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
-            Peer peer = getPeerInstance();
+            Peer peer = controller.getPeer();
             if (peer != null) {
-                runInBackground(() -> peer.downloadFile(index, fileName));
+                runInBackground("sync " + fileName, () -> peer.downloadDelta(index, fileName));
             } else {
                  System.err.println("Peer instance not available in controller.");
             }
         } catch (NumberFormatException ex) {
-            JOptionPane.showMessageDialog(this, "Invalid peer index.", "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(this, "Invalid peer ID.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void cancelDownloads() {
+        for (CompletableFuture<String> download : pendingDownloads) {
+            download.cancel(true); // Interrupts the transfer, or drops it if still queued
+        }
+    }
+
+    private void showStats() {
+        Peer peer = controller.getPeer();
+        if (peer != null) {
+            peer.showStats(); // Output is redirected to the text area
+        }
+    }
+
+    private void searchFiles() {
+        String query = searchField.getText().trim();
+        Peer peer = controller.getPeer();
+        if (peer != null && !query.isEmpty()) {
+            runInBackground("search " + query, () -> peer.searchFiles(query)); // Results go to the output area
         }
     }
 
     private void listLocalFiles() {
-         Peer peer = getPeerInstance();
+         Peer peer = controller.getPeer();
          if (peer != null) {
-             runInBackground(peer::listLocalFiles); // Assumes listLocalFiles prints to console/view
+             controller.getAsyncPeer().listLocalFiles().thenAccept(files ->
+                     controller.getView().showLocalFiles(peer.getSharedRoot(), files.iterator()));
          } else {
               System.err.println("Peer instance not available in controller.");
          }
@@ -261,9 +395,9 @@ public class P2PGui extends JFrame {
 
     private void listKnownPeers() {
         // This uses the PersistenceService directly, which the controller holds
-        PersistenceService ps = getPersistenceServiceInstance();
+        PersistenceService ps = controller.getPersistenceService();
          if (ps != null) {
-             runInBackground(() -> {
+             runInBackground("list known peers", () -> {
                  java.util.List<String> peers = ps.loadPeers();
                  // Need a view to display this properly. Redirecting ConsoleView output for now.
                  ConsoleView tempView = new ConsoleView(); // Temporary view to format output
@@ -275,9 +409,9 @@ public class P2PGui extends JFrame {
     }
 
      private void viewHistory() {
-        PersistenceService ps = getPersistenceServiceInstance();
+        PersistenceService ps = controller.getPersistenceService();
          if (ps != null) {
-             runInBackground(() -> {
+             runInBackground("view history", () -> {
                  java.util.List<DownloadRecord> history = ps.getDownloadHistory();
                  // Need a view to display this properly. Redirecting ConsoleView output for now.
                   ConsoleView tempView = new ConsoleView(); // Temporary view to format output
@@ -288,31 +422,46 @@ public class P2PGui extends JFrame {
          }
     }
 
-    // Helper to get Peer instance via reflection (use with caution)
-    private Peer getPeerInstance() {
-        try {
-            java.lang.reflect.Field peerField = PeerController.class.getDeclaredField("peer");
-            peerField.setAccessible(true);
-            return (Peer) peerField.get(controller);
-        } catch (Exception e) {
-            System.err.println("Could not get Peer instance via reflection: " + e.getMessage());
-            return null;
+    private void viewAnalytics() {
+        PersistenceService ps = controller.getPersistenceService();
+        if (ps != null) {
+            // Output is redirected to the text area
+            runInBackground("view analytics", () -> new ShowTransferAnalyticsCommand(ps, controller.getView()).execute());
         }
     }
 
-    // Helper to get PersistenceService instance via reflection (use with caution)
-     private PersistenceService getPersistenceServiceInstance() {
+    // Start the limit fields from the configured limits, rounded up so a small limit does not show as 0 (unlimited)
+    private void showBandwidthLimits(BandwidthManager bandwidth) {
+        globalUpField.setText(String.valueOf((bandwidth.getGlobalUploadLimit() + 1023) / 1024));
+        globalDownField.setText(String.valueOf((bandwidth.getGlobalDownloadLimit() + 1023) / 1024));
+        peerUpField.setText(String.valueOf((bandwidth.getDefaultPeerUploadLimit() + 1023) / 1024));
+        peerDownField.setText(String.valueOf((bandwidth.getDefaultPeerDownloadLimit() + 1023) / 1024));
+    }
+
+    private void applyBandwidthLimits() {
         try {
-            java.lang.reflect.Field persistenceField = PeerController.class.getDeclaredField("persistenceService");
-            persistenceField.setAccessible(true);
-            return (PersistenceService) persistenceField.get(controller);
-        } catch (Exception e) {
-            System.err.println("Could not get PersistenceService instance via reflection: " + e.getMessage());
-            return null;
+            long globalUp = Long.parseLong(globalUpField.getText().trim()) * 1024;
+            long globalDown = Long.parseLong(globalDownField.getText().trim()) * 1024;
+            long peerUp = Long.parseLong(peerUpField.getText().trim()) * 1024;
+            long peerDown = Long.parseLong(peerDownField.getText().trim()) * 1024;
+            if (globalUp < 0 || globalDown < 0 || peerUp < 0 || peerDown < 0) {
+                JOptionPane.showMessageDialog(this, "Limits cannot be negative.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            Peer peer = controller.getPeer();
+            if (peer != null) {
+                // Takes effect immediately, including for transfers already running
+                BandwidthManager bandwidth = peer.getBandwidthManager();
+                bandwidth.setGlobalLimits(globalUp, globalDown);
+                bandwidth.setDefaultPeerLimits(peerUp, peerDown);
+            } else {
+                 System.err.println("Peer instance not available in controller.");
+            }
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid bandwidth limit (KB/s).", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-
     // --- Stream Redirection ---
     private void updateTextArea(final String text) {
         SwingUtilities.invokeLater(() -> {
@@ -0,0 +1,314 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads one file over several TCP connections to the same peer.
+ * A single stream on a long, fat link is limited by its window (bandwidth-delay product);
+ * N streams each fetch disjoint byte ranges with GETRANGE and write them at their offsets
+ * into the same PartialFile, which accepts concurrent positional writes.
+ * The file is split into fixed-size chunks on a shared work queue, so faster streams simply
+ * take more chunks. A stream that fails puts its chunk back and stops; the others finish
+ * the file, rewriting the part of the chunk that already arrived (bytes count once a chunk
+ * is complete, see {@link #received}). A chunk the peer refuses for now ("BUSY" or
+ * "RANGE_UNAVAILABLE") goes to the back of the queue and is asked for again after a pause; a
+ * stream refused {@code MAX_REFUSALS} times in a row gives up, keeping its connection.
+ * Interrupting the caller cancels every stream; run() returns only once they have stopped.
+ * Stream 0 reuses the caller's connection and thread;
+ * the others are opened for the transfer, run on a shared pool and are closed afterwards.
+ * Settings: -Dp2p.parallel.minBytes, -Dp2p.parallel.maxStreams, -Dp2p.parallel.chunkBytes.
+ */
+class ParallelDownloader {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ParallelDownloader.class);
+    static final long MIN_PARALLEL_BYTES = P2PConfig.getLong("p2p.parallel.minBytes", 16L * 1024 * 1024);
+    static final int MAX_STREAMS = Math.max(1, P2PConfig.getInt("p2p.parallel.maxStreams", 8));
+    private static final long CHUNK_BYTES = Math.max(64 * 1024, P2PConfig.getLong("p2p.parallel.chunkBytes", 4L * 1024 * 1024));
+    static final int MAX_REFUSALS = 10; // Temporary refusals in a row before a stream gives up
+    private static final long RETRY_MILLIS = 200; // Pause after RANGE_UNAVAILABLE, or BUSY without a hint
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    /**
+     * Opens an extra connection to the peer (not registered in the peer list).
+     */
+    interface ConnectionFactory {
+        PeerConnection open() throws IOException;
+    }
+
+    private final PeerConnection primary;
+    private final ConnectionFactory factory;
+    private final String fileName;
+    private final PartialFile partial;
+    private final BandwidthManager bandwidthManager;
+    private final UploadScheduler.Credit credit;
+    private final String peerIp;
+    private final ConsoleView view;
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService STREAMS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "range-stream-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConcurrentLinkedDeque<long[]> chunks = new ConcurrentLinkedDeque<>(); // {offset, length}
+    private final AtomicLong received = new AtomicLong(); // Bytes of completed chunks only
+    private volatile IOException failure;
+    private volatile boolean cancelled; // The caller was interrupted; every stream stops
+
+    ParallelDownloader(PeerConnection primary, ConnectionFactory factory, String fileName, PartialFile partial,
+                       BandwidthManager bandwidthManager, UploadScheduler.Credit credit, String peerIp, ConsoleView view) {
+        this.primary = primary;
+        this.factory = factory;
+        this.fileName = fileName;
+        this.partial = partial;
+        this.bandwidthManager = bandwidthManager;
+        this.credit = credit;
+        this.peerIp = peerIp;
+        this.view = view;
+        long size = partial.getSize();
+        for (long offset = 0; offset < size; offset += CHUNK_BYTES) {
+            chunks.add(new long[] {offset, Math.min(CHUNK_BYTES, size - offset)});
+        }
+    }
+
+    /**
+     * Fetch the whole file with up to {@code streams} connections. Returns the number of bytes
+     * received; throws if the file could not be completed.
+     */
+    long run(int streams) throws IOException {
+        List<Future<?>> workers = new ArrayList<>();
+        List<PeerConnection> extra = new ArrayList<>();
+        try {
+            int wanted = (int) Math.min(streams - 1L, chunks.size() - 1L);
+            for (int i = 0; i < wanted; i++) {
+                PeerConnection connection;
+                try {
+                    connection = factory.open();
+                } catch (IOException e) {
+                    LOG.warn("Could only open {} of {} streams: {}", i + 1, streams, e.getMessage());
+                    break;
+                }
+                extra.add(connection);
+                workers.add(STREAMS.submit(() -> work(connection, false)));
+            }
+            work(primary, true); // Stream 0 runs on the caller's thread and reports progress
+            boolean interrupted = Thread.currentThread().isInterrupted();
+            if (interrupted) {
+                cancel(extra);
+            }
+            // Waited for even when cancelled: the caller releases the file once this returns
+            for (Future<?> worker : workers) {
+                while (true) {
+                    try {
+                        worker.get();
+                        break;
+                    } catch (ExecutionException e) {
+                        failure = new IOException("Download stream crashed: " + e.getCause(), e.getCause());
+                        LOG.error("Download stream for {} crashed: {}", fileName, e.getCause());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        cancel(extra);
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download cancelled");
+            }
+            if (!chunks.isEmpty() && !primary.isClosed()) {
+                work(primary, true); // Chunks handed back by streams that failed after stream 0 finished
+            }
+            if (!chunks.isEmpty() && failure != null) {
+                // Every stream gave up; whatever is left cannot be fetched
+                throw failure;
+            }
+        } finally {
+            for (PeerConnection connection : extra) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Ignore; the transfer result is what matters
+                }
+            }
+        }
+        return received.get();
+    }
+
+    /**
+     * Stop every stream: they check the flag between reads, and closing the extra connections
+     * wakes any stream blocked in one.
+     */
+    private void cancel(List<PeerConnection> extra) {
+        cancelled = true;
+        for (PeerConnection connection : extra) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Ignore; it is being abandoned
+            }
+        }
+    }
+
+    private void work(PeerConnection connection, boolean showProgress) {
+        byte[] buffer = BufferPool.acquire(connection.getTuner().bufferSizeFor(CHUNK_BYTES));
+        int refusals = 0;
+        try {
+            long[] chunk;
+            while (!cancelled && (chunk = chunks.poll()) != null) {
+                try {
+                    long retryAfter = fetchRange(connection, chunk[0], chunk[1], buffer, showProgress);
+                    if (retryAfter < 0) {
+                        refusals = 0;
+                        continue;
+                    }
+                    chunks.addLast(chunk); // Other chunks first; this one is asked for again later
+                    if (++refusals > MAX_REFUSALS) {
+                        failure = new IOException("Peer kept refusing ranges of " + fileName);
+                        LOG.warn("Download stream for {} gave up after {} refusals", fileName, (long) refusals);
+                        return;
+                    }
+                    Thread.sleep(retryAfter);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new InterruptedIOException("Download stream interrupted");
+                    return;
+                } catch (IOException e) {
+                    chunks.addFirst(chunk); // Let another stream take it
+                    failure = e;
+                    if (e instanceof InterruptedIOException || e instanceof ClosedChannelException
+                            || Thread.currentThread().isInterrupted()) {
+                        // Interrupted in a read or the bandwidth limiter, or in a file write, which
+                        // closes the file under the other streams too
+                        cancelled = true;
+                    } else if (!cancelled) { // Cancelling closes the connections under the streams
+                        LOG.warn("Download stream for {} failed: {}", fileName, e.getMessage());
+                    }
+                    try {
+                        // Its position in the response stream is unknown; the reaper drops a closed primary
+                        connection.close();
+                    } catch (IOException ignored) {
+                        // Already broken
+                    }
+                    return;
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Fetch one range into the file. Returns -1 once it is written, or how many milliseconds
+     * to wait before asking again if the peer refused it for now.
+     */
+    private long fetchRange(PeerConnection connection, long offset, long length, byte[] buffer, boolean showProgress)
+            throws IOException {
+        long started = System.nanoTime();
+        connection.sendMessage("GETRANGE " + offset + " " + length + " " + fileName);
+        String response = connection.receiveMessage();
+        long retryAfter = retryDelay(response);
+        if (retryAfter >= 0) {
+            return retryAfter;
+        }
+        if (response == null || !response.equals("RANGE " + length)) {
+            throw new IOException("Unexpected range response: " + response);
+        }
+        InputStream in = connection.getInputStream();
+        long done = 0;
+        while (done < length) {
+            if (cancelled || Thread.currentThread().isInterrupted()) {
+                cancelled = true;
+                throw new InterruptedIOException("Download cancelled");
+            }
+            int chunk = bandwidthManager.chunkSize(peerIp, false, buffer.length);
+            int bytesRead = in.read(buffer, 0, (int) Math.min(chunk, length - done));
+            if (bytesRead == -1) {
+                throw new IOException("Peer closed the stream in the middle of a range");
+            }
+            bandwidthManager.throttleDownload(peerIp, bytesRead);
+            partial.write(offset + done, buffer, 0, bytesRead);
+            credit.add(bytesRead);
+            done += bytesRead;
+            if (showProgress) {
+                view.showDownloadProgress(received.get() + done, partial.getSize());
+            }
+        }
+        received.addAndGet(length); // A chunk that failed halfway is fetched again in full
+        connection.getTuner().recordTransfer(length, System.nanoTime() - started);
+        return -1;
+    }
+
+    /**
+     * How long to wait before asking again after a GETRANGE {@code response}, or -1 if it is
+     * not a temporary refusal: "BUSY <retry after ms>" (no free upload slot) or
+     * "RANGE_UNAVAILABLE" (a peer still downloading the file does not have those bytes yet).
+     */
+    static long retryDelay(String response) {
+        if ("RANGE_UNAVAILABLE".equals(response)) {
+            return RETRY_MILLIS;
+        }
+        if (response == null || !response.startsWith("BUSY")) {
+            return -1;
+        }
+        try {
+            return Math.min(MAX_RETRY_MILLIS, Math.max(RETRY_MILLIS, Long.parseLong(response.substring(4).trim())));
+        } catch (NumberFormatException e) {
+            return RETRY_MILLIS;
+        }
+    }
+
+    /**
+     * Picks the stream count per peer from observed throughput: start with one stream and
+     * double while doubling still buys a clear gain, backing off when it stops paying.
+     */
+    static final class Advisor {
+        private static final double GAIN = 1.15; // Required improvement to keep more streams
+        private static final double ALPHA = 0.5;
+        private final double[] throughput = new double[MAX_STREAMS + 1]; // Bytes/s per stream count
+        private int current = 1;
+
+        synchronized int choose() {
+            return current;
+        }
+
+        synchronized void record(int streams, long bytes, long nanos) {
+            if (streams < 1 || streams > MAX_STREAMS || nanos <= 0) {
+                return;
+            }
+            double sample = bytes / (nanos / 1e9);
+            throughput[streams] = (throughput[streams] == 0) ? sample : (1 - ALPHA) * throughput[streams] + ALPHA * sample;
+            if (streams != current) {
+                return; // An explicit per-transfer choice; remember it but keep the plan
+            }
+            int fewer = Math.max(1, streams / 2);
+            int more = Math.min(MAX_STREAMS, streams * 2);
+            if (fewer < streams && throughput[fewer] > 0 && throughput[streams] < throughput[fewer] * GAIN) {
+                current = fewer; // The extra streams did not pay off
+            } else if (more > streams && (throughput[more] == 0 || throughput[more] > throughput[streams] * GAIN)) {
+                current = more; // Untried, or known to be better: go up
+            }
+        }
+
+        synchronized String describe() {
+            StringBuilder sb = new StringBuilder("streams=").append(current);
+            for (int n = 1; n <= MAX_STREAMS; n++) {
+                if (throughput[n] > 0) {
+                    sb.append(String.format("  %dx=%.2f MB/s", n, throughput[n] / (1024 * 1024)));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.p2pfilesharing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A download in progress.
+ * Data is written with positional FileChannel writes into a preallocated temporary file in
+ * the hidden {@value #INCOMING_DIR} folder of the shared directory, so several writer threads
+ * can fill different parts of the same file concurrently, and nothing half-written is ever
+ * visible to getFileList(). {@link #commit()} verifies the file and atomically moves it into
+ * place. Only parts already verified are re-served to other peers while the download runs
+ * (see ChunkMap and {@link #read}).
+ * The fsync policy is chosen with -Dp2p.download.fsync (none, complete, interval) and
+ * -Dp2p.download.fsyncBytes for the interval policy. Unless it is none, the target's
+ * directory is fsynced after the move as well, so the rename itself survives a crash.
+ * Temporary files left behind by a crash are removed by {@link #sweepStale} at startup.
+ */
+class PartialFile implements Closeable {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(PartialFile.class);
+    static final String INCOMING_DIR = ".p2p-incoming";
+
+    enum FsyncPolicy { NONE, COMPLETE, INTERVAL }
+
+    private static final FsyncPolicy FSYNC_POLICY = parsePolicy(P2PConfig.getString("p2p.download.fsync", "complete"));
+    private static final long FSYNC_INTERVAL_BYTES = P2PConfig.getLong("p2p.download.fsyncBytes", 64L * 1024 * 1024);
+
+    private final Path target;
+    private final Path tempFile;
+    private final long size;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // Written ranges, merged (start -> end), and the size of their union: a range written
+    // again (a chunk refetched after a failed stream) must not count twice
+    private final TreeMap<Long, Long> written = new TreeMap<>();
+    private volatile long bytesWritten;
+    private final AtomicLong unsyncedBytes = new AtomicLong();
+    private volatile boolean closed;
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock(); // Readers vs. close()
+
+    /**
+     * Create the temporary file for {@code target} (a path inside {@code sharedDirectory})
+     * and preallocate {@code size} bytes.
+     */
+    PartialFile(Path sharedDirectory, Path target, long size) throws IOException {
+        this.target = target;
+        this.size = size;
+        Path incoming = sharedDirectory.resolve(INCOMING_DIR);
+        Files.createDirectories(incoming);
+        this.tempFile = incoming.resolve(UUID.randomUUID() + ".part");
+        this.file = new RandomAccessFile(tempFile.toFile(), "rw");
+        this.channel = file.getChannel();
+        try {
+            file.setLength(size); // Preallocate so positional writes never extend the file
+        } catch (IOException e) {
+            close();
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the temporary files of downloads that were cut off by a crash or kill. Call at
+     * startup, before any download of this node can have started; returns the number removed.
+     */
+    static int sweepStale(Path sharedDirectory) {
+        Path incoming = sharedDirectory.resolve(INCOMING_DIR);
+        int removed = 0;
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(incoming, "*.part")) {
+            for (Path part : stale) {
+                try {
+                    if (Files.deleteIfExists(part)) {
+                        removed++;
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Could not delete stale partial file {}: {}", part, e.getMessage());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return 0; // Nothing was ever downloaded here
+        } catch (IOException e) {
+            LOG.warn("Could not sweep {}: {}", incoming, e.getMessage());
+        }
+        if (removed > 0) {
+            LOG.info("Removed {} stale partial files from {}", (long) removed, incoming);
+        }
+        return removed;
+    }
+
+    private static FsyncPolicy parsePolicy(String value) {
+        try {
+            return FsyncPolicy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown fsync policy '{}', using COMPLETE.", value);
+            return FsyncPolicy.COMPLETE;
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Distinct bytes written so far; rewriting a range does not add to it.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Write {@code src} at {@code position}. Safe to call from several threads for
+     * non-overlapping ranges.
+     */
+    public void write(long position, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (position < 0 || position + length > size) {
+            throw new IOException("Write outside of file bounds: " + position + "+" + length + " > " + size);
+        }
+        long pos = position;
+        while (src.hasRemaining()) {
+            pos += channel.write(src, pos);
+        }
+        if (length > 0) {
+            recordWritten(position, position + length);
+        }
+        if (FSYNC_POLICY == FsyncPolicy.INTERVAL && unsyncedBytes.addAndGet(length) >= FSYNC_INTERVAL_BYTES) {
+            unsyncedBytes.set(0);
+            channel.force(false);
+        }
+    }
+
+    private void recordWritten(long start, long end) {
+        synchronized (written) {
+            Map.Entry<Long, Long> before = written.floorEntry(start);
+            long mergedStart = (before != null && before.getValue() >= start) ? before.getKey() : start;
+            long mergedEnd = end;
+            long total = bytesWritten;
+            // Absorb every range that overlaps or touches [mergedStart, end]
+            for (Iterator<Map.Entry<Long, Long>> it = written.subMap(mergedStart, true, end, true).entrySet().iterator();
+                 it.hasNext(); ) {
+                Map.Entry<Long, Long> range = it.next();
+                mergedEnd = Math.max(mergedEnd, range.getValue());
+                total -= range.getValue() - range.getKey();
+                it.remove();
+            }
+            written.put(mergedStart, mergedEnd);
+            bytesWritten = total + (mergedEnd - mergedStart);
+        }
+    }
+
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        write(position, ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * Read {@code length} bytes at {@code position} into {@code buffer}. Returns false if the
+     * download has already been committed or aborted.
+     */
+    public boolean read(long position, byte[] buffer, int length) throws IOException {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            ByteBuffer dst = ByteBuffer.wrap(buffer, 0, length);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position()) < 0) {
+                    throw new IOException("Read past the end of " + tempFile);
+                }
+            }
+            return true;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * SHA-256 (hex) of the temporary file's contents, read back from disk. Used when parts
+     * arrived out of order and could not be hashed while streaming.
+     */
+    public String contentHash() throws IOException {
+        MessageDigest digest = ContentStore.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += n;
+        }
+        return ContentStore.toHex(digest.digest());
+    }
+
+    /**
+     * Verify that the whole file was received, flush it according to the fsync policy and
+     * atomically move it to its final location (replacing any older copy).
+     */
+    public Path commit() throws IOException {
+        if (bytesWritten != size) {
+            throw new IOException("Incomplete download: expected " + size + " bytes, wrote " + bytesWritten);
+        }
+        if (FSYNC_POLICY != FsyncPolicy.NONE) {
+            channel.force(true);
+        }
+        close();
+        Path parent = target.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try {
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOG.warn("Atomic move not supported for {}, falling back to a plain move", target);
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (FSYNC_POLICY != FsyncPolicy.NONE && parent != null) {
+            syncDirectory(parent);
+        }
+        return target;
+    }
+
+    /**
+     * Flush a directory's entries (e.g. a rename into it) to disk. Not every platform can
+     * open a directory for this (Windows cannot); there it is skipped.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            LOG.debug("Could not fsync directory {}: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Discard the download and its temporary file.
+     */
+    public void abort() {
+        try {
+            close();
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            LOG.error("Could not delete partial file {}: {}", tempFile, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                channel.close();
+                file.close();
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.example.p2pfilesharing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Represents a connection to a peer (outgoing perspective)
+ * --- Design Principle: Single Responsibility Principle (SRP) ---
+ * Manages the state and communication for a single outgoing connection.
+ */
+class PeerConnection {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(PeerConnection.class);
+    // No peer serves the incoming-downloads folder, so every version answers FILE_NOT_FOUND
+    static final String CAPS_PROBE = PartialFile.INCOMING_DIR + "/caps";
+    private final Socket socket; // Made final
+    // Responses mix text lines and raw file bytes, so both are read from this one buffered
+    // stream (a BufferedReader would swallow file data it read ahead of the size line)
+    private final BufferedInputStream in; // Made final
+    private final PrintWriter out; // Made final
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(128);
+    private List<String> files; // Cannot be final, updated with setFiles
+    private CatalogIndex catalog; // Kept in step with files while attached
+    // Held for a whole request/response exchange, so heartbeats never interleave with one
+    private final ReentrantLock exchangeLock = new ReentrantLock();
+    private volatile long lastActivity = System.currentTimeMillis();
+    private final ConnectionTuner tuner;
+    private volatile Set<String> capabilities = Collections.emptySet(); // Newer requests the peer understands
+    private volatile int id = -1; // Assigned by the Peer once the connection is listed
+
+    public PeerConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.tuner = new ConnectionTuner("out " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort(), socket);
+        // Use specific charset for consistency
+        this.in = new BufferedInputStream(new CloseOnTimeoutInputStream(socket), 65536);
+        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true); // Auto-flush
+        this.files = new ArrayList<>(); // Initialize empty list
+    }
+
+    /**
+     * Send a message (command) to the peer
+     */
+    public void sendMessage(String message) {
+        if (socket.isClosed() || !socket.isConnected() || out.checkError()) {
+             LOG.warn("Cannot send message, socket is closed or has error.");
+             // Optionally throw an exception or handle reconnection logic
+             return;
+        }
+        out.println(message);
+    }
+
+    /**
+     * Send several lines with a single flush (used for batch requests)
+     */
+    public void sendMessages(List<String> messages) {
+        if (socket.isClosed() || !socket.isConnected() || out.checkError()) {
+             LOG.warn("Cannot send message, socket is closed or has error.");
+             return;
+        }
+        for (String message : messages) {
+            out.print(message);
+            out.print('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Receive a message (response) from the peer.
+     * Note: This is a blocking call.
+     */
+    public String receiveMessage() throws IOException {
+         if (socket.isClosed() || !socket.isConnected()) {
+             throw new SocketException("Socket is closed or not connected.");
+         }
+        try {
+            return readLine(); // Can return null if stream ends
+        } catch (SocketException e) {
+             LOG.warn("SocketException while receiving message: {} (Peer likely disconnected)", e.getMessage());
+             close(); // Close connection on error
+             throw e; // Re-throw
+        }
+    }
+
+    /**
+     * Read one UTF-8 line terminated by \n (a trailing \r is dropped), or null at end of stream.
+     */
+    private String readLine() throws IOException {
+        lineBuffer.reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            lineBuffer.write(b);
+        }
+        if (b == -1 && lineBuffer.size() == 0) {
+            return null;
+        }
+        String line = lineBuffer.toString(StandardCharsets.UTF_8);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    /**
+     * Stream for binary payloads that follow a response line
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public void beginExchange() {
+        exchangeLock.lock();
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public boolean tryBeginExchange() {
+        return exchangeLock.tryLock();
+    }
+
+    public void endExchange() {
+        lastActivity = System.currentTimeMillis();
+        exchangeLock.unlock();
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public ConnectionTuner getTuner() {
+        return tuner;
+    }
+
+    /**
+     * The ID users address this peer by (see Peer#findPeer), or -1 for unlisted connections
+     * such as the extra streams of a parallel download.
+     */
+    public int getId() {
+        return id;
+    }
+
+    void assignId(int id) {
+        this.id = id;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /**
+     * Learn which newer requests the peer understands, in one round trip that every
+     * version answers: "CAPS" followed by a GET that cannot match a file. Peers that know
+     * CAPS answer "CAPS <request>..." before the GET's FILE_NOT_FOUND; older peers ignore
+     * the unknown request and answer only the GET. Also takes the first RTT sample.
+     * The caller must hold the exchange.
+     */
+    void negotiateCapabilities() throws IOException {
+        long sent = System.nanoTime();
+        sendMessages(Arrays.asList("CAPS", "GET " + CAPS_PROBE));
+        String line = readLine();
+        Set<String> supported = Collections.emptySet();
+        if (line != null && (line.equals("CAPS") || line.startsWith("CAPS "))) {
+            supported = new HashSet<>(Arrays.asList(line.substring(4).trim().split(" +")));
+            line = readLine();
+        }
+        if (!"FILE_NOT_FOUND".equals(line)) {
+            throw new IOException("Unexpected reply to capability probe: " + line);
+        }
+        tuner.recordRtt(System.nanoTime() - sent);
+        capabilities = supported;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Whether the peer announced {@code request} (e.g. "LIST_PAGE") when capabilities were
+     * negotiated. False for peers that predate negotiation.
+     */
+    public boolean supports(String request) {
+        return capabilities.contains(request);
+    }
+
+    /**
+     * Heartbeat round trip (PING/PONG) with its own short timeout, which also samples the
+     * RTT. Peers that predate PING get the capability probe's GET instead, which every
+     * version answers. The caller must hold the exchange; returns false if the peer did not
+     * answer in time.
+     */
+    boolean ping(int timeoutMillis) {
+        try {
+            int previous = socket.getSoTimeout();
+            socket.setSoTimeout(timeoutMillis);
+            try {
+                long sent = System.nanoTime();
+                long rttMicros = tuner.getRttMicros();
+                boolean legacy = !supports("PING");
+                if (legacy) {
+                    sendMessage("GET " + CAPS_PROBE);
+                } else {
+                    sendMessage(rttMicros >= 0 ? "PING " + rttMicros : "PING");
+                }
+                if (!(legacy ? "FILE_NOT_FOUND" : "PONG").equals(readLine())) {
+                    return false;
+                }
+                tuner.recordRtt(System.nanoTime() - sent);
+            } finally {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(previous);
+                }
+            }
+            lastActivity = System.currentTimeMillis();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Socket input that closes the socket when a read times out: after a timeout the
+     * position in the response stream is unknown, so the connection cannot be reused.
+     */
+    private static final class CloseOnTimeoutInputStream extends FilterInputStream {
+        private final Socket socket;
+
+        CloseOnTimeoutInputStream(Socket socket) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (SocketTimeoutException e) {
+                closeAfterTimeout();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (SocketTimeoutException e) {
+                closeAfterTimeout();
+                throw e;
+            }
+        }
+
+        private void closeAfterTimeout() {
+            LOG.warn("Read from {} timed out; closing the connection.", socket.getInetAddress().getHostAddress());
+            try {
+                socket.close();
+            } catch (IOException e) { /* Ignore */ }
+        }
+    }
+
+    /**
+     * Get the socket connection
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Get the list of available files from this peer
+     */
+    public synchronized List<String> getFiles() { // Added synchronized
+        return files;
+    }
+
+    /**
+     * Set the list of available files from this peer
+     */
+    public synchronized void setFiles(List<String> files) { // Added synchronized
+        List<String> previous = this.files;
+        this.files = files;
+        if (catalog != null) {
+            catalog.update(this, previous, files); // Only the difference is re-indexed
+        }
+    }
+
+    /**
+     * Publish this peer's files (now and on every later setFiles) in {@code catalog}.
+     */
+    public synchronized void attachCatalog(CatalogIndex catalog) {
+        if (this.catalog == null) {
+            this.catalog = catalog;
+            catalog.update(this, null, files);
+        }
+    }
+
+    /**
+     * Withdraw this peer's files from the catalog it was attached to.
+     */
+    public synchronized void detachCatalog() {
+        if (catalog != null) {
+            catalog.update(this, files, null);
+            catalog = null;
+        }
+    }
+
+     /**
+     * Close the connection and its streams
+     */
+    public void close() throws IOException {
+        // Close streams first, then socket
+        if (in != null) try { in.close(); } catch (IOException e) { /* ignore */ }
+        if (out != null) try { out.close(); } catch (Exception e) { /* ignore */ } // PrintWriter close doesn't throw IOException
+        if (socket != null && !socket.isClosed()) try { socket.close(); } catch (IOException e) { /* ignore */ }
+        LOG.info("PeerConnection closed for {}", (socket != null ? socket.getInetAddress().getHostAddress() : "unknown peer"));
+    }
+}
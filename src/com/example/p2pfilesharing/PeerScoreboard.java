@@ -0,0 +1,226 @@
+package com.example.p2pfilesharing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers how well each peer has served us and ranks download sources by it.
+ * Per peer ("ip:port") it keeps:
+ * <ul>
+ *   <li>RTT and achieved download throughput as moving averages, from heartbeats and real transfers,</li>
+ *   <li>successful and failed transfers, and reachable and unreachable connection attempts, as
+ *       counters that decay with a configurable half-life, so old behaviour fades out.</li>
+ * </ul>
+ * The score estimates how quickly a transfer of a given size will succeed:
+ * {@code reliability * availability / (rtt + size / throughput)}, where reliability and
+ * availability are Laplace-smoothed ratios of the decayed counters. A peer without
+ * measurements borrows the best values seen on any peer, so new peers get a chance.
+ * Stats are loaded from and written back to the known_peers table; {@link #flush} writes only
+ * the peers that changed.
+ * Settings: -Dp2p.score.halfLifeHours.
+ */
+class PeerScoreboard {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(PeerScoreboard.class);
+    private static final double HALF_LIFE_MILLIS = Math.max(0.01, P2PConfig.getLong("p2p.score.halfLifeHours", 24)) * 3600_000.0;
+    private static final double ALPHA = 0.3; // Weight of the newest sample in the moving averages
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024; // Smaller transfers measure latency, not bandwidth
+    private static final double DEFAULT_RTT_MICROS = 10_000;
+
+    private final PersistenceService persistenceService;
+    private final Map<String, PeerStats> peers = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    PeerScoreboard(PersistenceService persistenceService) {
+        this.persistenceService = persistenceService;
+        for (PeerStats stats : persistenceService.loadPeerStats()) {
+            peers.put(stats.key(), stats);
+        }
+        if (!peers.isEmpty()) {
+            LOG.info("Loaded scores for {} known peers", (Object) peers.size());
+        }
+    }
+
+    public void recordRtt(String ip, int port, long rttMicros) {
+        if (rttMicros < 0) {
+            return;
+        }
+        update(ip, port, stats -> stats.rttMicros = (stats.rttMicros < 0) ? rttMicros : (1 - ALPHA) * stats.rttMicros + ALPHA * rttMicros);
+    }
+
+    /**
+     * A completed, verified download of {@code bytes} that took {@code nanos}.
+     */
+    public void recordTransfer(String ip, int port, long bytes, long nanos) {
+        update(ip, port, stats -> {
+            stats.successes++;
+            if (bytes >= MIN_SAMPLE_BYTES && nanos > 0) {
+                double sample = bytes / (nanos / 1e9);
+                stats.throughput = (stats.throughput < 0) ? sample : (1 - ALPHA) * stats.throughput + ALPHA * sample;
+            }
+        });
+    }
+
+    /**
+     * A download that broke off or delivered bad data.
+     */
+    public void recordFailure(String ip, int port) {
+        update(ip, port, stats -> stats.failures++);
+    }
+
+    /**
+     * Outcome of a connection attempt or heartbeat.
+     */
+    public void recordReachable(String ip, int port, boolean ok) {
+        update(ip, port, stats -> {
+            if (ok) {
+                stats.reachable++;
+            } else {
+                stats.unreachable++;
+            }
+        });
+    }
+
+    private interface Change {
+        void apply(PeerStats stats);
+    }
+
+    private void update(String ip, int port, Change change) {
+        PeerStats stats = peers.computeIfAbsent(ip + ":" + port, key -> new PeerStats(ip, port));
+        synchronized (stats) {
+            decay(stats, System.currentTimeMillis());
+            change.apply(stats);
+        }
+        dirty.add(stats.key());
+    }
+
+    private static void decay(PeerStats stats, long now) {
+        if (stats.updatedAt > 0 && now > stats.updatedAt) {
+            double factor = Math.pow(0.5, (now - stats.updatedAt) / HALF_LIFE_MILLIS);
+            stats.successes *= factor;
+            stats.failures *= factor;
+            stats.reachable *= factor;
+            stats.unreachable *= factor;
+        }
+        stats.updatedAt = now;
+    }
+
+    /**
+     * Higher is better: the expected rate of successful transfers of {@code sizeHint} bytes
+     * (-1 if unknown; latency then dominates) from the peer.
+     */
+    public double score(String ip, int port, long sizeHint) {
+        double bestRtt = -1;
+        double bestThroughput = -1;
+        for (PeerStats other : peers.values()) {
+            synchronized (other) {
+                if (other.rttMicros >= 0 && (bestRtt < 0 || other.rttMicros < bestRtt)) {
+                    bestRtt = other.rttMicros;
+                }
+                bestThroughput = Math.max(bestThroughput, other.throughput);
+            }
+        }
+        PeerStats stats = peers.get(ip + ":" + port);
+        double rtt = -1;
+        double throughput = -1;
+        double reliability = 0.5; // Prior of the smoothed ratios
+        double availability = 0.5;
+        if (stats != null) {
+            synchronized (stats) {
+                // Decay as of now without touching the stored counters
+                double factor = (stats.updatedAt > 0)
+                        ? Math.pow(0.5, Math.max(0, System.currentTimeMillis() - stats.updatedAt) / HALF_LIFE_MILLIS) : 1;
+                reliability = (stats.successes * factor + 1) / ((stats.successes + stats.failures) * factor + 2);
+                availability = (stats.reachable * factor + 1) / ((stats.reachable + stats.unreachable) * factor + 2);
+                rtt = stats.rttMicros;
+                throughput = stats.throughput;
+            }
+        }
+        if (rtt < 0) {
+            rtt = (bestRtt >= 0) ? bestRtt : DEFAULT_RTT_MICROS;
+        }
+        if (throughput <= 0) {
+            throughput = bestThroughput;
+        }
+        double seconds = rtt / 1e6;
+        if (sizeHint > 0 && throughput > 0) {
+            seconds += sizeHint / throughput;
+        }
+        return reliability * availability / Math.max(seconds, 1e-6);
+    }
+
+    /**
+     * The best-scoring of {@code candidates} for a transfer of {@code sizeHint} bytes, or null if there are none.
+     */
+    public PeerConnection best(Collection<PeerConnection> candidates, long sizeHint) {
+        PeerConnection best = null;
+        double bestScore = -1;
+        for (PeerConnection candidate : candidates) {
+            if (candidate.isClosed()) {
+                continue;
+            }
+            double score = score(candidate.getSocket().getInetAddress().getHostAddress(), candidate.getSocket().getPort(), sizeHint);
+            if (score > bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Persist the peers that changed since the last flush.
+     */
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        List<PeerStats> changed = new ArrayList<>();
+        for (String key : dirty) {
+            dirty.remove(key);
+            PeerStats stats = peers.get(key);
+            if (stats == null) {
+                continue;
+            }
+            synchronized (stats) {
+                PeerStats copy = new PeerStats(stats.ip, stats.port);
+                copy.rttMicros = stats.rttMicros;
+                copy.throughput = stats.throughput;
+                copy.successes = stats.successes;
+                copy.failures = stats.failures;
+                copy.reachable = stats.reachable;
+                copy.unreachable = stats.unreachable;
+                copy.updatedAt = stats.updatedAt;
+                changed.add(copy);
+            }
+        }
+        persistenceService.savePeerStats(changed);
+    }
+
+    /**
+     * One line per peer for the stats output, best first (for a 1 MB transfer).
+     */
+    public List<String> describe() {
+        Map<PeerStats, Double> scores = new HashMap<>();
+        for (PeerStats stats : peers.values()) {
+            scores.put(stats, score(stats.ip, stats.port, 1024 * 1024));
+        }
+        List<PeerStats> all = new ArrayList<>(scores.keySet());
+        all.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        List<String> lines = new ArrayList<>();
+        for (PeerStats stats : all) {
+            synchronized (stats) {
+                lines.add(String.format("%s  score=%.1f  rtt=%s  throughput=%s  transfers=%.1f ok/%.1f failed  reachable=%.1f/%.1f",
+                        stats.key(), scores.get(stats),
+                        (stats.rttMicros < 0) ? "n/a" : String.format("%.2f ms", stats.rttMicros / 1e3),
+                        (stats.throughput < 0) ? "n/a" : String.format("%.2f MB/s", stats.throughput / (1024 * 1024)),
+                        stats.successes, stats.failures, stats.reachable, stats.reachable + stats.unreachable));
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.p2pfilesharing;
+
+// --- Simple Record for the measured quality of a peer (see PeerScoreboard) ---
+class PeerStats {
+    final String ip;
+    final int port;
+    double rttMicros = -1; // Moving averages; -1 until measured
+    double throughput = -1; // Bytes/s
+    double successes; // Decaying counters (see PeerScoreboard)
+    double failures;
+    double reachable;
+    double unreachable;
+    long updatedAt; // Epoch millis of the last decay step
+
+    PeerStats(String ip, int port) {
+        this.ip = ip;
+        this.port = port;
+    }
+
+    String key() {
+        return ip + ":" + port;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.p2pfilesharing;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+// --- Basic Persistence Service ---
+// --- Design Principle: Single Responsibility Principle (SRP) ---
+// Handles loading/saving peer data and download history.
+// --- Design Pattern: Repository (Conceptual) ---
+// Mediates between the domain (PeerController, Commands) and data mapping layers.
+// It provides a collection-like interface for accessing domain data (known peers, download history)
+// while abstracting the underlying data storage mechanism.
+// --- Design Pattern: Strategy ---
+// The storage is chosen when the node starts (-Dp2p.persistence): the SQLite database
+// (SqlitePersistence, the default), memory only (InMemoryPersistence) or an append-only
+// log file replayed into memory at startup (AppendLogPersistence).
+interface PersistenceService {
+    /**
+     * The implementation selected by -Dp2p.persistence: "sqlite" (-Dp2p.db.url), "memory"
+     * or "log" (-Dp2p.persistence.log, -Dp2p.persistence.log.sync); both in-memory ones keep the
+     * newest -Dp2p.persistence.historyLimit history entries.
+     */
+    static PersistenceService create() {
+        int historyLimit = P2PConfig.getInt("p2p.persistence.historyLimit", 100_000);
+        String kind = P2PConfig.getString("p2p.persistence", "sqlite").trim().toLowerCase(Locale.ROOT);
+        switch (kind) {
+            case "sqlite":
+                return new SqlitePersistence(P2PConfig.getString("p2p.db.url", "jdbc:sqlite:p2p_data.db"));
+            case "memory":
+                return new InMemoryPersistence(historyLimit);
+            case "log":
+                return new AppendLogPersistence(Paths.get(P2PConfig.getString("p2p.persistence.log", "p2p_data.log")),
+                        P2PConfig.getBoolean("p2p.persistence.log.sync", false), historyLimit);
+            default:
+                throw new IllegalArgumentException("Unknown -Dp2p.persistence: " + kind + " (sqlite, memory or log)");
+        }
+    }
+
+    List<String> loadPeers(); // "ip:port"
+
+    void savePeer(String ip, int port);
+
+    List<PeerStats> loadPeerStats();
+
+    // Saves several peers' stats at once (the scoreboard flushes them periodically)
+    void savePeerStats(List<PeerStats> stats);
+
+    default void recordDownload(String fileName, String peerIp, int peerPort, long fileSize, String status) {
+        recordDownload(fileName, peerIp, peerPort, fileSize, status, -1);
+    }
+
+    default void recordDownload(String fileName, String peerIp, int peerPort, long fileSize, String status,
+                                long durationNanos) {
+        recordDownload(fileName, peerIp, peerPort, fileSize, status, durationNanos, -1);
+    }
+
+    /**
+     * Record a download attempt and add it to the hourly and daily rollups.
+     * {@code durationNanos} is the transfer time, or -1 if unknown (the transfer then does not
+     * count towards mean throughput). {@code transferredBytes} is what crossed the network if
+     * that was not the whole file (a delta sync), else -1; see {@link TransferRollup#bytesMoved}.
+     */
+    void recordDownload(String fileName, String peerIp, int peerPort, long fileSize, String status, long durationNanos,
+                        long transferredBytes);
+
+    /**
+     * Rollups of {@code period} from bucket {@code sinceEpochSeconds} on, oldest first;
+     * for one peer, or for all peers if {@code peerIp} is null.
+     */
+    List<TransferRollup> getTransferRollups(RollupPeriod period, String peerIp, int peerPort, long sinceEpochSeconds);
+
+    /**
+     * Totals per peer from the day of {@code sinceEpochSeconds} on, most bytes first.
+     */
+    List<TransferRollup> getPeerTransferTotals(long sinceEpochSeconds);
+
+    List<ContentHashRecord> loadContentHashes();
+
+    // Saves several hashes at once (the indexer writes them in batches)
+    void saveContentHashes(List<ContentHashRecord> records);
+
+    void deleteContentHash(String path);
+
+    List<DownloadRecord> getDownloadHistory(); // Most recent first
+}
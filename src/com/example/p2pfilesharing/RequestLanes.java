@@ -0,0 +1,157 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Two execution lanes for the serving side, so catalog and control requests are answered
+ * quickly even while every upload slot is streaming.
+ * <ul>
+ *   <li>Control lane: a few high-priority threads that run the short metadata requests
+ *       (LIST, LIST_PAGE, STAT, HAVE_MAP). They never run bulk work. When all of them are
+ *       busy the connection's own thread runs the request, still as control work.</li>
+ *   <li>Bulk lane: the connection threads streaming file data (GET, GETRANGE, MGET, BUNDLE,
+ *       DELTA). Between chunks they call {@link #yieldToControl()}, which pauses them while
+ *       any control request is running. Yielding stops once the control lane has been busy
+ *       for the configured time without a break, so a control request stuck writing to a
+ *       slow client, or a steady stream of them, cannot stall uploads.</li>
+ * </ul>
+ * Yielding is what gives control work the CPU, disk and socket first; thread priorities
+ * alone are ignored by most schedulers.
+ * Settings: -Dp2p.lanes (on by default), -Dp2p.lanes.controlThreads, -Dp2p.lanes.maxYieldMillis.
+ */
+class RequestLanes {
+    static final boolean ENABLED = P2PConfig.getBoolean("p2p.lanes", true);
+    private static final int CONTROL_THREADS = Math.max(1, P2PConfig.getInt("p2p.lanes.controlThreads", 2));
+    private static final long MAX_YIELD_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(0, P2PConfig.getLong("p2p.lanes.maxYieldMillis", 50)));
+
+    /**
+     * A control request; may write to the connection.
+     */
+    interface ControlTask {
+        void run() throws IOException;
+    }
+
+    private final ThreadPoolExecutor controlLane;
+    private final AtomicInteger controlActive = new AtomicInteger();
+    private volatile long busySince; // System.nanoTime() when controlActive last rose from zero
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition controlIdle = lock.newCondition();
+    private final AtomicLong controlRequests = new AtomicLong();
+    private final AtomicLong controlNanos = new AtomicLong();
+    private final AtomicLong maxControlNanos = new AtomicLong();
+    private final AtomicLong yields = new AtomicLong();
+    private final AtomicLong yieldNanos = new AtomicLong();
+
+    RequestLanes() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        // No queue: a request that finds every control thread busy runs on its caller
+        this.controlLane = new ThreadPoolExecutor(CONTROL_THREADS, CONTROL_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "control-lane-" + threadCounter.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MAX_PRIORITY);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        controlLane.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a control request on the control lane and wait for it to finish.
+     */
+    public void runControl(ControlTask task) throws IOException {
+        if (!ENABLED) {
+            task.run();
+            return;
+        }
+        Future<?> done = controlLane.submit(() -> {
+            runCounted(task);
+            return null;
+        });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            done.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the control lane");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void runCounted(ControlTask task) throws IOException {
+        long started = System.nanoTime();
+        if (controlActive.incrementAndGet() == 1) {
+            busySince = started;
+        }
+        try {
+            task.run();
+        } finally {
+            long elapsed = System.nanoTime() - started;
+            controlRequests.incrementAndGet();
+            controlNanos.addAndGet(elapsed);
+            maxControlNanos.accumulateAndGet(elapsed, Math::max);
+            if (controlActive.decrementAndGet() == 0) {
+                lock.lock();
+                try {
+                    controlIdle.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by bulk work between chunks: wait while control requests are running, but only
+     * until the control lane has been busy for the maximum yield time in a row.
+     */
+    public void yieldToControl() throws InterruptedException {
+        if (controlActive.get() == 0) {
+            return; // The common case: a single volatile read
+        }
+        long started = System.nanoTime();
+        long remaining = MAX_YIELD_NANOS - (started - busySince);
+        if (remaining <= 0) {
+            return; // Busy that long: a slow client or a flood of requests; uploads go on
+        }
+        lock.lock();
+        try {
+            while (controlActive.get() > 0 && remaining > 0) {
+                remaining = controlIdle.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+        yields.incrementAndGet();
+        yieldNanos.addAndGet(System.nanoTime() - started);
+    }
+
+    /**
+     * One line for the stats output.
+     */
+    public String describe() {
+        long requests = controlRequests.get();
+        return String.format("Request lanes%s: %d control requests (avg %.2f ms, max %.2f ms), bulk yielded %d times for %d ms",
+                ENABLED ? "" : " (disabled)", requests,
+                (requests == 0) ? 0.0 : controlNanos.get() / 1e6 / requests, maxControlNanos.get() / 1e6,
+                yields.get(), TimeUnit.NANOSECONDS.toMillis(yieldNanos.get()));
+    }
+}
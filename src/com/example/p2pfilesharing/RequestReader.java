@@ -0,0 +1,203 @@
+package com.example.p2pfilesharing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Request line reader for the serving side.
+ * Replaces BufferedReader.readLine(), which creates a String per request (plus substrings for
+ * the arguments). Lines are kept as bytes in a reused array; commands are matched and numbers
+ * parsed in place, and file names go through a small per-connection cache, so a peer asking
+ * for the same files again and again costs no String or Path allocation.
+ * Lines end with '\n' (a preceding '\r' is dropped); like the rest of the protocol they are
+ * UTF-8.
+ */
+class RequestReader implements Closeable {
+    private static final int MAX_LINE = 64 * 1024; // Longer requests are refused
+    private static final int NAME_SLOTS = 256; // Power of two
+    // Resolved paths are re-checked after this long, so a symlink swapped in under the
+    // shared tree is noticed (resolveSharedPath checks where links lead)
+    private static final long PATH_TTL_NANOS = 1_000_000_000L;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[256];
+    private int length;
+    private int cursor; // Parse position within the line
+
+    // Name cache: direct-mapped by a hash of the name bytes
+    private final byte[][] nameKeys = new byte[NAME_SLOTS][];
+    private final String[] names = new String[NAME_SLOTS];
+    private final Path[] paths = new Path[NAME_SLOTS];
+    private final long[] resolvedAt = new long[NAME_SLOTS];
+    private final boolean[] resolved = new boolean[NAME_SLOTS];
+
+    RequestReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next line. Returns false at end of stream.
+     */
+    boolean next() throws IOException {
+        length = 0;
+        cursor = 0;
+        while (true) {
+            if (position == limit) {
+                int n = in.read(buffer, 0, buffer.length);
+                position = 0;
+                limit = Math.max(0, n);
+                if (n <= 0) {
+                    return length > 0; // A last line without newline still counts
+                }
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            append(start, position - start);
+            if (position < limit) {
+                position++; // Consume the '\n'
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void append(int from, int count) throws IOException {
+        if (length + count > line.length) {
+            if (length + count > MAX_LINE) {
+                throw new IOException("Request line longer than " + MAX_LINE + " bytes");
+            }
+            line = Arrays.copyOf(line, Math.min(MAX_LINE, Math.max(line.length * 2, length + count)));
+        }
+        System.arraycopy(buffer, from, line, length, count);
+        length += count;
+    }
+
+    /**
+     * Next line as a String, or null at end of stream (BufferedReader.readLine() semantics).
+     */
+    String readLine() throws IOException {
+        return next() ? text() : null;
+    }
+
+    /**
+     * The current line as a String (allocates; for the less frequent requests and logging).
+     */
+    String text() {
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * True if the line is {@code command} alone or followed by a space; the arguments are
+     * then parsed from after the command.
+     */
+    boolean isCommand(byte[] command) {
+        if (length < command.length || (length > command.length && line[command.length] != ' ')) {
+            return false;
+        }
+        for (int i = 0; i < command.length; i++) {
+            if (line[i] != command[i]) {
+                return false;
+            }
+        }
+        cursor = command.length;
+        return true;
+    }
+
+    /**
+     * True if another argument follows.
+     */
+    boolean hasMore() {
+        skipBlanks();
+        return cursor < length;
+    }
+
+    /**
+     * Parse the next space-separated argument as a non-negative number.
+     */
+    long nextLong() {
+        skipBlanks();
+        long value = 0;
+        int start = cursor;
+        while (cursor < length && line[cursor] >= '0' && line[cursor] <= '9') {
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                throw new NumberFormatException("Number too large");
+            }
+            value = value * 10 + (line[cursor++] - '0');
+        }
+        if (cursor == start || (cursor < length && line[cursor] != ' ')) {
+            throw new NumberFormatException("Not a number at position " + start);
+        }
+        return value;
+    }
+
+    /**
+     * The rest of the line, trimmed, as a name (cached per connection).
+     */
+    String restName() {
+        return names[restSlot()];
+    }
+
+    /**
+     * The rest of the line resolved with {@code resolver} (which may return null); cached per
+     * connection for a short while.
+     */
+    Path restPath(Function<String, Path> resolver) {
+        int slot = restSlot();
+        long now = System.nanoTime();
+        if (!resolved[slot] || now - resolvedAt[slot] > PATH_TTL_NANOS) {
+            paths[slot] = resolver.apply(names[slot]);
+            resolvedAt[slot] = now;
+            resolved[slot] = true;
+        }
+        return paths[slot];
+    }
+
+    private int restSlot() {
+        skipBlanks();
+        int from = cursor;
+        int to = length;
+        while (to > from && (line[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + line[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (NAME_SLOTS - 1);
+        byte[] key = nameKeys[slot];
+        if (key == null || !Arrays.equals(key, 0, key.length, line, from, to)) {
+            nameKeys[slot] = Arrays.copyOfRange(line, from, to);
+            names[slot] = new String(line, from, to - from, StandardCharsets.UTF_8);
+            paths[slot] = null;
+            resolved[slot] = false;
+        }
+        return slot;
+    }
+
+    private void skipBlanks() {
+        while (cursor < length && (line[cursor] & 0xFF) <= ' ') {
+            cursor++;
+        }
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.p2pfilesharing;
+
+// --- Granularity of the transfer rollup tables (see PersistenceService#recordDownload) ---
+enum RollupPeriod {
+    // Hourly detail is only kept for recent history; the daily rollups cover the rest
+    HOUR(3600, "transfer_rollup_hourly", Math.max(1, P2PConfig.getLong("p2p.rollup.hourlyRetentionDays", 90)) * 86400),
+    DAY(86400, "transfer_rollup_daily", 0);
+
+    final long seconds;
+    final String table;
+    final long retentionSeconds; // 0: kept forever
+
+    RollupPeriod(long seconds, String table, long retentionSeconds) {
+        this.seconds = seconds;
+        this.table = table;
+        this.retentionSeconds = retentionSeconds;
+    }
+
+    /**
+     * Start (epoch seconds, UTC) of the bucket holding {@code epochSeconds}.
+     */
+    long bucketOf(long epochSeconds) {
+        return Math.floorDiv(epochSeconds, seconds) * seconds;
+    }
+}
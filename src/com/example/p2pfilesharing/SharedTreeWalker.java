@@ -0,0 +1,136 @@
+package com.example.p2pfilesharing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily walks the shared directory tree and yields the relative path ("dir/sub/file.txt",
+ * always '/'-separated) of every shared file.
+ * --- Design Pattern: Iterator ---
+ * Only one open DirectoryStream per directory level is held at a time, so memory is
+ * bounded by the tree depth rather than the number of files, and the first result is
+ * available as soon as the first file is found.
+ * Skips the hidden incoming-downloads folder, directory symlinks (no loops) and names that
+ * cannot be sent over the line-based protocol.
+ */
+class SharedTreeWalker implements Iterator<String>, Closeable {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(SharedTreeWalker.class);
+
+    private final Path root;
+    private final Deque<Level> stack = new ArrayDeque<>();
+    private String next;
+    private boolean closed;
+
+    // One directory being read, with the relative prefix of its entries
+    private static final class Level {
+        final DirectoryStream<Path> stream;
+        final Iterator<Path> entries;
+        final String prefix;
+
+        Level(DirectoryStream<Path> stream, String prefix) {
+            this.stream = stream;
+            this.entries = stream.iterator();
+            this.prefix = prefix;
+        }
+    }
+
+    SharedTreeWalker(Path root) {
+        this.root = root;
+        push(root, "");
+    }
+
+    /**
+     * Walk only the subtree {@code root/subdirectory}; paths are still relative to {@code root}.
+     */
+    SharedTreeWalker(Path root, String subdirectory) {
+        this.root = root;
+        push(root.resolve(subdirectory), subdirectory + "/");
+    }
+
+    private void push(Path dir, String prefix) {
+        try {
+            stack.push(new Level(Files.newDirectoryStream(dir), prefix));
+        } catch (IOException e) {
+            LOG.warn("Cannot read shared directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more shared files.");
+        }
+        String result = next;
+        next = null;
+        return result;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    private String advance() {
+        while (!stack.isEmpty()) {
+            Level level = stack.peek();
+            Path entry;
+            try {
+                if (!level.entries.hasNext()) {
+                    stack.pop();
+                    closeQuietly(level);
+                    continue;
+                }
+                entry = level.entries.next();
+            } catch (RuntimeException e) { // DirectoryIteratorException
+                LOG.warn("Error while listing {}: {}", level.prefix, e.getMessage());
+                stack.pop();
+                closeQuietly(level);
+                continue;
+            }
+            String name = entry.getFileName().toString();
+            if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+                continue; // Cannot be represented in the line protocol
+            }
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                if (level.prefix.isEmpty() && name.equals(PartialFile.INCOMING_DIR)) {
+                    continue; // Downloads in progress are not shared
+                }
+                push(entry, level.prefix + name + "/");
+            } else if (Files.isRegularFile(entry)) {
+                return level.prefix + name;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        while (!stack.isEmpty()) {
+            closeQuietly(stack.pop());
+        }
+    }
+
+    private static void closeQuietly(Level level) {
+        try {
+            level.stream.close();
+        } catch (IOException e) {
+            // Nothing useful to do
+        }
+    }
+}
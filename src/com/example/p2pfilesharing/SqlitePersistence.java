@@ -0,0 +1,444 @@
+package com.example.p2pfilesharing;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// --- Design Pattern: Repository (Conceptual) ---
+// The SQLite implementation: one database file, one short-lived JDBC connection per call.
+class SqlitePersistence implements PersistenceService {
+    private final String dbUrl; // e.g. jdbc:sqlite:p2p_data.db
+
+    public SqlitePersistence(String dbUrl) {
+        this.dbUrl = dbUrl;
+        initializeDatabase();
+    }
+
+    private void initializeDatabase() {
+        String createKnownPeersSQL = "CREATE TABLE IF NOT EXISTS known_peers (" +
+                                   "ip_address TEXT NOT NULL, " +
+                                   "port INTEGER NOT NULL, " +
+                                   "last_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                                   "PRIMARY KEY (ip_address, port)" +
+                                   ");";
+        // New table for download history
+        String createDownloadHistorySQL = "CREATE TABLE IF NOT EXISTS download_history (" +
+                                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                        "file_name TEXT NOT NULL, " +
+                                        "peer_ip TEXT NOT NULL, " +
+                                        "peer_port INTEGER NOT NULL, " +
+                                        "file_size INTEGER, " +
+                                        "status TEXT, " + // e.g., 'Completed', 'Failed'
+                                        "download_timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                                        ");";
+        // Content hashes of local files, valid while size and mtime are unchanged
+        String createContentHashesSQL = "CREATE TABLE IF NOT EXISTS content_hashes (" +
+                                      "path TEXT PRIMARY KEY, " +
+                                      "size INTEGER NOT NULL, " +
+                                      "mtime INTEGER NOT NULL, " +
+                                      "sha256 TEXT NOT NULL" +
+                                      ");";
+        String createContentHashIndexSQL = "CREATE INDEX IF NOT EXISTS idx_content_hashes_sha256 ON content_hashes(sha256);";
+        // Transfer rollups per peer and hour/day, kept up to date by recordDownload
+        List<String> createRollupSQL = new ArrayList<>();
+        for (RollupPeriod period : RollupPeriod.values()) {
+            createRollupSQL.add("CREATE TABLE IF NOT EXISTS " + period.table + " (" +
+                                      "bucket INTEGER NOT NULL, " + // Epoch seconds (UTC) the bucket starts at
+                                      "peer_ip TEXT NOT NULL, " +
+                                      "peer_port INTEGER NOT NULL, " +
+                                      "transfers INTEGER NOT NULL DEFAULT 0, " +
+                                      "successes INTEGER NOT NULL DEFAULT 0, " +
+                                      "bytes INTEGER NOT NULL DEFAULT 0, " +
+                                      "timed_bytes INTEGER NOT NULL DEFAULT 0, " +
+                                      "duration_nanos INTEGER NOT NULL DEFAULT 0, " +
+                                      "PRIMARY KEY (bucket, peer_ip, peer_port)" +
+                                      ");");
+            createRollupSQL.add("CREATE INDEX IF NOT EXISTS idx_" + period.table + "_peer ON " +
+                                      period.table + "(peer_ip, peer_port, bucket);");
+        }
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(createKnownPeersSQL);
+            stmt.execute(createDownloadHistorySQL); // Execute creation for the new table
+            stmt.execute(createContentHashesSQL);
+            stmt.execute(createContentHashIndexSQL);
+            // Peer quality columns, added to databases created before they existed
+            addMissingColumns(stmt, "known_peers", "rtt_micros REAL", "throughput REAL", "successes REAL",
+                    "failures REAL", "reachable REAL", "unreachable REAL", "stats_updated INTEGER");
+            addMissingColumns(stmt, "download_history", "duration_nanos INTEGER", "transferred_bytes INTEGER");
+            for (String sql : createRollupSQL) {
+                stmt.execute(sql);
+            }
+            backfillRollups(stmt);
+            for (RollupPeriod period : RollupPeriod.values()) {
+                if (period.retentionSeconds > 0) {
+                    long cutoff = System.currentTimeMillis() / 1000 - period.retentionSeconds;
+                    stmt.execute("DELETE FROM " + period.table + " WHERE bucket < " + cutoff);
+                }
+            }
+            System.out.println("Database initialized/checked."); // Use view in real app
+        } catch (SQLException e) {
+            System.err.println("Error initializing database: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add each of {@code columns} ("name TYPE") the table does not have yet. The schema is
+     * read first, so a failing ALTER TABLE is a real error rather than an existing column.
+     */
+    private static void addMissingColumns(Statement stmt, String table, String... columns) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                existing.add(rs.getString("name").toLowerCase(Locale.ROOT));
+            }
+        }
+        for (String column : columns) {
+            String name = column.substring(0, column.indexOf(' '));
+            if (!existing.contains(name)) {
+                stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column);
+            }
+        }
+    }
+
+    @Override
+    public List<String> loadPeers() {
+        List<String> peers = new ArrayList<>();
+        String sql = "SELECT ip_address, port FROM known_peers";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            while (rs.next()) {
+                String ip = rs.getString("ip_address");
+                int port = rs.getInt("port");
+                peers.add(ip + ":" + port);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading known peers from DB: " + e.getMessage());
+        }
+        return peers;
+    }
+
+    @Override
+    public void savePeer(String ip, int port) {
+        String sql = "INSERT OR IGNORE INTO known_peers(ip_address, port, last_seen) VALUES(?, ?, CURRENT_TIMESTAMP)";
+        // Update last_seen if already exists (SQLite specific)
+        String updateSql = "UPDATE known_peers SET last_seen = CURRENT_TIMESTAMP WHERE ip_address = ? AND port = ?";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             PreparedStatement insertStmt = conn.prepareStatement(sql);
+             PreparedStatement updateStmt = conn.prepareStatement(updateSql)) {
+
+            insertStmt.setString(1, ip);
+            insertStmt.setInt(2, port);
+            int rowsAffected = insertStmt.executeUpdate();
+
+            if (rowsAffected == 0) { // If insert didn't happen (peer exists), update last_seen
+                updateStmt.setString(1, ip);
+                updateStmt.setInt(2, port);
+                updateStmt.executeUpdate();
+            }
+
+        } catch (SQLException e) {
+             System.err.println("Error saving/updating known peer to DB: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<PeerStats> loadPeerStats() {
+        List<PeerStats> stats = new ArrayList<>();
+        String sql = "SELECT ip_address, port, rtt_micros, throughput, successes, failures, reachable, unreachable, stats_updated " +
+                     "FROM known_peers WHERE stats_updated IS NOT NULL";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            while (rs.next()) {
+                PeerStats peer = new PeerStats(rs.getString("ip_address"), rs.getInt("port"));
+                peer.rttMicros = rs.getDouble("rtt_micros");
+                peer.throughput = rs.getDouble("throughput");
+                peer.successes = rs.getDouble("successes");
+                peer.failures = rs.getDouble("failures");
+                peer.reachable = rs.getDouble("reachable");
+                peer.unreachable = rs.getDouble("unreachable");
+                peer.updatedAt = rs.getLong("stats_updated");
+                stats.add(peer);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading peer stats from DB: " + e.getMessage());
+        }
+        return stats;
+    }
+
+    // Saves several peers' stats in one transaction (the scoreboard flushes them periodically)
+    @Override
+    public void savePeerStats(List<PeerStats> stats) {
+        if (stats.isEmpty()) {
+            return;
+        }
+        String insertSql = "INSERT OR IGNORE INTO known_peers(ip_address, port, last_seen) VALUES(?, ?, CURRENT_TIMESTAMP)";
+        String updateSql = "UPDATE known_peers SET rtt_micros = ?, throughput = ?, successes = ?, failures = ?, " +
+                           "reachable = ?, unreachable = ?, stats_updated = ? WHERE ip_address = ? AND port = ?";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             PreparedStatement insertStmt = conn.prepareStatement(insertSql);
+             PreparedStatement updateStmt = conn.prepareStatement(updateSql)) {
+            conn.setAutoCommit(false);
+            for (PeerStats peer : stats) {
+                insertStmt.setString(1, peer.ip);
+                insertStmt.setInt(2, peer.port);
+                insertStmt.addBatch();
+                updateStmt.setDouble(1, peer.rttMicros);
+                updateStmt.setDouble(2, peer.throughput);
+                updateStmt.setDouble(3, peer.successes);
+                updateStmt.setDouble(4, peer.failures);
+                updateStmt.setDouble(5, peer.reachable);
+                updateStmt.setDouble(6, peer.unreachable);
+                updateStmt.setLong(7, peer.updatedAt);
+                updateStmt.setString(8, peer.ip);
+                updateStmt.setInt(9, peer.port);
+                updateStmt.addBatch();
+            }
+            insertStmt.executeBatch();
+            updateStmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            System.err.println("Error saving peer stats to DB: " + e.getMessage());
+        }
+    }
+
+    // Records the download attempt and updates the rollups in one transaction
+    @Override
+    public void recordDownload(String fileName, String peerIp, int peerPort, long fileSize, String status, long durationNanos,
+                               long transferredBytes) {
+        String sql = "INSERT INTO download_history(file_name, peer_ip, peer_port, file_size, status, duration_nanos, transferred_bytes, download_timestamp) VALUES(?, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)";
+        boolean success = TransferRollup.isSuccess(status);
+        long bytes = TransferRollup.bytesMoved(status, fileSize, transferredBytes);
+        long timed = (durationNanos > 0) ? durationNanos : 0;
+        long now = System.currentTimeMillis() / 1000;
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            pstmt.setString(1, fileName);
+            pstmt.setString(2, peerIp);
+            pstmt.setInt(3, peerPort);
+            pstmt.setLong(4, fileSize);
+            pstmt.setString(5, status);
+            if (durationNanos >= 0) {
+                pstmt.setLong(6, durationNanos);
+            } else {
+                pstmt.setNull(6, Types.INTEGER);
+            }
+            if (transferredBytes >= 0) {
+                pstmt.setLong(7, transferredBytes);
+            } else {
+                pstmt.setNull(7, Types.INTEGER);
+            }
+            pstmt.executeUpdate();
+            for (RollupPeriod period : RollupPeriod.values()) {
+                // Create the bucket row if needed, then add to it (works on any SQLite version)
+                try (PreparedStatement insertStmt = conn.prepareStatement("INSERT OR IGNORE INTO " + period.table +
+                             "(bucket, peer_ip, peer_port) VALUES(?, ?, ?)");
+                     PreparedStatement updateStmt = conn.prepareStatement("UPDATE " + period.table +
+                             " SET transfers = transfers + 1, successes = successes + ?, bytes = bytes + ?, " +
+                             "timed_bytes = timed_bytes + ?, duration_nanos = duration_nanos + ? " +
+                             "WHERE bucket = ? AND peer_ip = ? AND peer_port = ?")) {
+                    long bucket = period.bucketOf(now);
+                    insertStmt.setLong(1, bucket);
+                    insertStmt.setString(2, peerIp);
+                    insertStmt.setInt(3, peerPort);
+                    insertStmt.executeUpdate();
+                    updateStmt.setInt(1, success ? 1 : 0);
+                    updateStmt.setLong(2, bytes);
+                    updateStmt.setLong(3, (timed > 0) ? bytes : 0);
+                    updateStmt.setLong(4, (bytes > 0) ? timed : 0);
+                    updateStmt.setLong(5, bucket);
+                    updateStmt.setString(6, peerIp);
+                    updateStmt.setInt(7, peerPort);
+                    updateStmt.executeUpdate();
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+             System.err.println("Error recording download history to DB: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Build the rollups from download_history when they are empty, e.g. in a database that
+     * predates them. Rows without a duration count everywhere except in throughput.
+     */
+    private void backfillRollups(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT " +
+                "(SELECT COUNT(*) FROM " + RollupPeriod.DAY.table + ") = 0 AND EXISTS (SELECT 1 FROM download_history)")) {
+            if (!rs.next() || !rs.getBoolean(1)) {
+                return;
+            }
+        }
+        String bytes = TransferRollup.bytesMovedSql();
+        String timed = "(" + bytes + " > 0 AND duration_nanos > 0)";
+        for (RollupPeriod period : RollupPeriod.values()) {
+            stmt.execute("INSERT OR REPLACE INTO " + period.table +
+                    "(bucket, peer_ip, peer_port, transfers, successes, bytes, timed_bytes, duration_nanos) " +
+                    "SELECT CAST(strftime('%s', download_timestamp) AS INTEGER) / " + period.seconds + " * " + period.seconds +
+                    ", peer_ip, peer_port, COUNT(*), SUM(status LIKE '" + TransferRollup.SUCCESS_PREFIX + "%'), SUM(" + bytes + "), " +
+                    "SUM(CASE WHEN " + timed + " THEN " + bytes + " ELSE 0 END), " +
+                    "SUM(CASE WHEN " + timed + " THEN duration_nanos ELSE 0 END) " +
+                    "FROM download_history WHERE download_timestamp IS NOT NULL GROUP BY 1, 2, 3");
+        }
+        System.out.println("Transfer rollups built from download history.");
+    }
+
+    @Override
+    public List<TransferRollup> getTransferRollups(RollupPeriod period, String peerIp, int peerPort, long sinceEpochSeconds) {
+        List<TransferRollup> rollups = new ArrayList<>();
+        String sql = "SELECT bucket, peer_ip, peer_port, transfers, successes, bytes, timed_bytes, duration_nanos FROM " +
+                     period.table + " WHERE bucket >= ?" + ((peerIp != null) ? " AND peer_ip = ? AND peer_port = ?" : "") +
+                     " ORDER BY bucket, peer_ip, peer_port";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, period.bucketOf(sinceEpochSeconds));
+            if (peerIp != null) {
+                pstmt.setString(2, peerIp);
+                pstmt.setInt(3, peerPort);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    rollups.add(new TransferRollup(rs.getString("peer_ip"), rs.getInt("peer_port"), rs.getLong("bucket"),
+                            rs.getLong("transfers"), rs.getLong("successes"), rs.getLong("bytes"),
+                            rs.getLong("timed_bytes"), rs.getLong("duration_nanos")));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading transfer rollups from DB: " + e.getMessage());
+        }
+        return rollups;
+    }
+
+    // Sums the daily rollups, so the cost grows with days and peers, not with transfers
+    @Override
+    public List<TransferRollup> getPeerTransferTotals(long sinceEpochSeconds) {
+        List<TransferRollup> totals = new ArrayList<>();
+        String sql = "SELECT peer_ip, peer_port, SUM(transfers) AS transfers, SUM(successes) AS successes, " +
+                     "SUM(bytes) AS bytes, SUM(timed_bytes) AS timed_bytes, SUM(duration_nanos) AS duration_nanos FROM " +
+                     RollupPeriod.DAY.table + " WHERE bucket >= ? GROUP BY peer_ip, peer_port ORDER BY bytes DESC";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, RollupPeriod.DAY.bucketOf(sinceEpochSeconds));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    totals.add(new TransferRollup(rs.getString("peer_ip"), rs.getInt("peer_port"), -1,
+                            rs.getLong("transfers"), rs.getLong("successes"), rs.getLong("bytes"),
+                            rs.getLong("timed_bytes"), rs.getLong("duration_nanos")));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading transfer totals from DB: " + e.getMessage());
+        }
+        return totals;
+    }
+
+    @Override
+    public List<ContentHashRecord> loadContentHashes() {
+        List<ContentHashRecord> hashes = new ArrayList<>();
+        String sql = "SELECT path, size, mtime, sha256 FROM content_hashes";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            while (rs.next()) {
+                hashes.add(new ContentHashRecord(rs.getString("path"), rs.getLong("size"),
+                        rs.getLong("mtime"), rs.getString("sha256")));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading content hashes from DB: " + e.getMessage());
+        }
+        return hashes;
+    }
+
+    // Saves several hashes in one transaction (the indexer writes them in batches)
+    @Override
+    public void saveContentHashes(List<ContentHashRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        String sql = "INSERT OR REPLACE INTO content_hashes(path, size, mtime, sha256) VALUES(?, ?, ?, ?)";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            for (ContentHashRecord record : records) {
+                pstmt.setString(1, record.path);
+                pstmt.setLong(2, record.size);
+                pstmt.setLong(3, record.mtime);
+                pstmt.setString(4, record.sha256);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            System.err.println("Error saving content hashes to DB: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void deleteContentHash(String path) {
+        String sql = "DELETE FROM content_hashes WHERE path = ?";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, path);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Error deleting content hash from DB: " + e.getMessage());
+        }
+    }
+
+    // New method to get download history
+    @Override
+    public List<DownloadRecord> getDownloadHistory() {
+        List<DownloadRecord> history = new ArrayList<>();
+        // Order by most recent first
+        String sql = "SELECT file_name, peer_ip, peer_port, file_size, status, download_timestamp FROM download_history ORDER BY download_timestamp DESC";
+
+        try (Connection conn = DriverManager.getConnection(dbUrl);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            while (rs.next()) {
+                String fileName = rs.getString("file_name");
+                String peerIp = rs.getString("peer_ip");
+                int peerPort = rs.getInt("peer_port");
+                long fileSize = rs.getLong("file_size");
+                String status = rs.getString("status");
+                // Retrieve timestamp and convert to LocalDateTime
+                Timestamp timestamp = rs.getTimestamp("download_timestamp");
+                LocalDateTime localDateTime = (timestamp != null) ? timestamp.toLocalDateTime() : null;
+
+                history.add(new DownloadRecord(fileName, peerIp, peerPort, fileSize, status, localDateTime));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading download history from DB: " + e.getMessage());
+        }
+        return history;
+    }
+}
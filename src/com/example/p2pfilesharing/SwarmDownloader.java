@@ -0,0 +1,650 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads one large file from every connected peer that holds it, including peers that are
+ * still downloading it themselves (see ChunkMap), so a new file spreads through the swarm in
+ * parallel instead of one hop at a time.
+ * <ol>
+ *   <li>Probe: "HAVE_MAP <name>" to each candidate; complete holders answer HAVE_ALL, peers
+ *       with a download in progress answer with their bitmap and a cursor.</li>
+ *   <li>"CHUNKS <name>" fetches the per-chunk hashes, preferably from a complete holder.</li>
+ *   <li>One worker per source claims the rarest chunk it can get (ties broken at random, so
+ *       downloaders starting together fetch different chunks and can trade them), fetches it
+ *       with GETRANGE, checks it against its hash and only then writes it and marks it held,
+ *       which makes it available to others right away.</li>
+ *   <li>A partial source that has nothing more for us is polled with "HAVES <cursor> <name>",
+ *       which returns only the chunks it gained since the last poll (waiting briefly for one).</li>
+ *   <li>Peers that did not have the file are probed again now and then: they may have started
+ *       downloading it since, and join as sources.</li>
+ * </ol>
+ * A source that sends bad chunks repeatedly is dropped; one whose connection fails has its
+ * chunk handed back to the others. The whole-file hash is still checked by the caller.
+ * Settings: -Dp2p.swarm (false disables), -Dp2p.swarm.minBytes, -Dp2p.swarm.maxSources,
+ * -Dp2p.swarm.pollMillis, -Dp2p.swarm.stallMillis.
+ */
+class SwarmDownloader {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(SwarmDownloader.class);
+    static final boolean ENABLED = P2PConfig.getBoolean("p2p.swarm", true);
+    static final long MIN_SWARM_BYTES = P2PConfig.getLong("p2p.swarm.minBytes", 8L * 1024 * 1024);
+    static final long POLL_MILLIS = Math.max(10, P2PConfig.getLong("p2p.swarm.pollMillis", 1000));
+    private static final int MAX_SOURCES = Math.max(1, P2PConfig.getInt("p2p.swarm.maxSources", 8));
+    private static final long STALL_MILLIS = P2PConfig.getLong("p2p.swarm.stallMillis", 30_000);
+    private static final int MAX_BAD_CHUNKS = 3;
+
+    private static final class Source {
+        final PeerConnection connection;
+        final String ip;
+        final int port;
+        final boolean complete;
+        final long chunkSize; // Only meaningful for partial sources
+        BitSet have; // Partial sources only
+        boolean extraStream; // A further connection to a peer that already is a source
+        int cursor;
+        int badChunks;
+        int refusals; // BUSY or RANGE_UNAVAILABLE answers in a row
+        boolean dropped;
+
+        Source(PeerConnection connection, boolean complete, long chunkSize, BitSet have, int cursor) {
+            this.connection = connection;
+            this.ip = connection.getSocket().getInetAddress().getHostAddress();
+            this.port = connection.getSocket().getPort();
+            this.complete = complete;
+            this.chunkSize = chunkSize;
+            this.have = have;
+            this.cursor = cursor;
+        }
+
+        boolean has(int chunk) {
+            return complete || have.get(chunk);
+        }
+
+        String label() {
+            return ip + ":" + port;
+        }
+    }
+
+    private final String fileName;
+    private final long size;
+    private final BandwidthManager bandwidthManager;
+    private final UploadScheduler uploadScheduler;
+    private final PeerScoreboard scoreboard;
+    private final ConsoleView view;
+    private final List<Source> sources = new ArrayList<>();
+    private final List<PeerConnection> exchanges = new ArrayList<>(); // Held until close()
+    private final List<PeerConnection> pending = new ArrayList<>(); // Candidates without the file (yet)
+    private final List<PeerConnection> extraConnections = new ArrayList<>(); // Closed in close()
+    private PeerConnection primary;
+    private final List<Thread> workers = new ArrayList<>();
+    private String[] hashes;
+    private long chunkSize;
+    private ChunkMap local;
+    private PartialFile partial;
+    private BitSet claimed; // In flight or held
+    private int[] availability; // Number of sources holding each chunk
+    private final AtomicLong received = new AtomicLong();
+    private volatile long lastProgress;
+
+    SwarmDownloader(String fileName, long size, BandwidthManager bandwidthManager, UploadScheduler uploadScheduler,
+                    PeerScoreboard scoreboard, ConsoleView view) {
+        this.fileName = fileName;
+        this.size = size;
+        this.bandwidthManager = bandwidthManager;
+        this.uploadScheduler = uploadScheduler;
+        this.scoreboard = scoreboard;
+        this.view = view;
+    }
+
+    /**
+     * Ask {@code primary} and the other candidates which chunks they hold and fetch the chunk
+     * hashes. Returns false if the file cannot be swarmed (the caller downloads it normally).
+     * Only peers that announced the swarm requests are asked, all at once: the requests go out
+     * before the first reply is read, so probing costs one round trip rather than one per
+     * peer. Candidates busy with another exchange are left to {@link #probeLate}.
+     * Each source's exchange is held until {@link #close}.
+     */
+    boolean probe(PeerConnection primary, List<PeerConnection> candidates) {
+        this.primary = primary;
+        List<PeerConnection> asked = new ArrayList<>();
+        if (canServe(primary)) {
+            primary.beginExchange();
+            asked.add(primary);
+        }
+        for (PeerConnection candidate : candidates) {
+            if (candidate == primary || candidate.isClosed() || !canServe(candidate)
+                    || asked.size() + pending.size() >= MAX_SOURCES) {
+                continue;
+            }
+            if (candidate.tryBeginExchange()) {
+                asked.add(candidate);
+            } else {
+                pending.add(candidate);
+            }
+        }
+        for (PeerConnection connection : asked) {
+            connection.sendMessage("HAVE_MAP " + fileName);
+        }
+        for (PeerConnection connection : asked) {
+            Source source;
+            try {
+                source = parseHaveMap(connection, connection.receiveMessage());
+            } catch (IOException e) {
+                LOG.debug("Could not probe {} for {}: {}", connection.getSocket().getInetAddress().getHostAddress(),
+                        fileName, e.getMessage());
+                connection.endExchange();
+                closeOutOfStep(connection);
+                continue;
+            }
+            if (source != null) {
+                sources.add(source);
+                exchanges.add(connection);
+            } else {
+                connection.endExchange();
+                if (connection != primary) {
+                    pending.add(connection);
+                }
+            }
+        }
+        // Chunk hashes: a complete holder's are authoritative; a partial holder passes on its own
+        for (int pass = 0; pass < 2 && hashes == null; pass++) {
+            for (Source source : sources) {
+                if (source.complete == (pass == 0) && fetchHashes(source)) {
+                    break;
+                }
+            }
+        }
+        if (hashes == null) {
+            return false;
+        }
+        // Partial holders can only serve whole chunks of the same layout
+        sources.removeIf(source -> !source.complete && source.chunkSize != chunkSize);
+        return !sources.isEmpty();
+    }
+
+    /**
+     * True if the peer announced what a swarm source must answer (older peers would not reply).
+     */
+    private static boolean canServe(PeerConnection connection) {
+        return connection.supports("HAVE_MAP") && connection.supports("CHUNKS") && connection.supports("GETRANGE");
+    }
+
+    /**
+     * The source a HAVE_MAP reply describes, or null if the peer does not have this version of
+     * the file. A reply that cannot be parsed throws: the connection is out of step.
+     */
+    private Source parseHaveMap(PeerConnection connection, String response) throws IOException {
+        if (response == null) {
+            throw new IOException("Peer disconnected");
+        }
+        if (response.equals("FILE_NOT_FOUND") || response.equals("BAD_REQUEST")) {
+            return null;
+        }
+        String[] parts = response.split(" ");
+        try {
+            if (parts[0].equals("HAVE_ALL") && parts.length == 3) {
+                Source source = new Source(connection, true, Long.parseLong(parts[2]), null, 0);
+                return (Long.parseLong(parts[1]) == size) ? source : null;
+            }
+            if (parts[0].equals("HAVE_MAP") && parts.length == 5) {
+                Source source = new Source(connection, false, Long.parseLong(parts[2]),
+                        ChunkMap.decodeBitmap(parts[4]), Integer.parseInt(parts[3]));
+                return (Long.parseLong(parts[1]) == size) ? source : null;
+            }
+        } catch (RuntimeException e) {
+            // Bad number or bitmap; reported below
+        }
+        throw new IOException("Unexpected HAVE_MAP reply: " + response);
+    }
+
+    /**
+     * Fetch the chunk hashes from {@code source}. Every hash line the reply announces is read
+     * before the reply is checked, so the connection stays in step; one that cannot be read
+     * is closed.
+     */
+    private boolean fetchHashes(Source source) {
+        try {
+            source.connection.sendMessage("CHUNKS " + fileName);
+            String response = source.connection.receiveMessage();
+            if (response == null) {
+                throw new IOException("Peer disconnected");
+            }
+            if (response.equals("FILE_NOT_FOUND") || response.equals("BAD_REQUEST")) {
+                return false;
+            }
+            String[] parts = response.split(" ");
+            if (parts.length != 4 || !parts[0].equals("CHUNKS")) {
+                throw new IOException("Unexpected CHUNKS reply: " + response);
+            }
+            long remoteSize = Long.parseLong(parts[1]);
+            long layout = Long.parseLong(parts[2]);
+            int count = Integer.parseInt(parts[3]);
+            if (count < 0) {
+                throw new IOException("Invalid hash count: " + response);
+            }
+            boolean usable = remoteSize == size && layout > 0 && count == ChunkMap.chunkCount(size, layout);
+            String[] list = usable ? new String[count] : null;
+            for (int i = 0; i < count; i++) {
+                String hash = source.connection.receiveMessage();
+                if (hash == null) {
+                    throw new IOException("Peer disconnected while sending chunk hashes");
+                }
+                if (usable) {
+                    list[i] = hash;
+                }
+            }
+            if (remoteSize != size) {
+                return false; // Another version of the file
+            }
+            if (!usable) {
+                LOG.warn("Inconsistent chunk layout of {} from {}: {}", fileName, source.label(), response);
+                source.dropped = true;
+                return false;
+            }
+            chunkSize = layout;
+            hashes = list;
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn("Could not get chunk hashes of {} from {}: {}", fileName, source.label(), e.getMessage());
+            source.dropped = true;
+            closeOutOfStep(source.connection);
+            return false;
+        }
+    }
+
+    // Its position in the response stream is unknown; the reaper removes it
+    private static void closeOutOfStep(PeerConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // Already broken
+        }
+    }
+
+    /**
+     * The map of verified chunks for {@code partial}; register it so other peers can fetch
+     * from this download while it runs.
+     */
+    ChunkMap start(PartialFile partial) {
+        this.partial = partial;
+        this.local = new ChunkMap(size, chunkSize, hashes, partial);
+        this.claimed = new BitSet(hashes.length);
+        this.availability = new int[hashes.length];
+        sources.removeIf(source -> source.dropped);
+        for (Source source : sources) {
+            for (int chunk = 0; chunk < hashes.length; chunk++) {
+                if (source.has(chunk)) {
+                    availability[chunk]++;
+                }
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Open {@code extra} more connections to the primary peer if it holds the whole file, as
+     * the stream advisor recommends for that peer (see ParallelDownloader): on a long, fat link
+     * one connection cannot fill the pipe.
+     */
+    void addStreams(ParallelDownloader.ConnectionFactory factory, int extra) {
+        if (sources.isEmpty() || sources.get(0).connection != primary || !sources.get(0).complete) {
+            return;
+        }
+        for (int i = 0; i < extra; i++) {
+            try {
+                PeerConnection connection = factory.open();
+                extraConnections.add(connection);
+                Source stream = new Source(connection, true, chunkSize, null, 0);
+                stream.extraStream = true;
+                sources.add(stream);
+            } catch (IOException e) {
+                LOG.warn("Could only open {} of {} extra streams: {}", (long) i, (long) extra, e.getMessage());
+                break;
+            }
+        }
+    }
+
+    /**
+     * True if all sources are connections to a single peer.
+     */
+    boolean isSinglePeer() {
+        return sources.stream().filter(source -> !source.extraStream).count() == 1;
+    }
+
+    /**
+     * Fetch chunks until the file is complete, every source has gone, or nothing arrived for
+     * the stall timeout. Returns the number of bytes received and verified.
+     */
+    long run() {
+        LOG.info("Downloading {} over {} source connections ({} chunks)", fileName, (long) sources.size(), (long) hashes.length);
+        lastProgress = System.currentTimeMillis();
+        for (Source source : sources) {
+            startWorker(source);
+        }
+        try {
+            while (!local.isComplete() && workers.stream().anyMatch(Thread::isAlive)) {
+                synchronized (this) {
+                    wait(POLL_MILLIS);
+                }
+                if (!local.isComplete()) {
+                    probeLate();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Cancelled: stop the workers, which check for it between reads
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+        // Joined even when cancelled: the caller releases the connections and the file next
+        boolean interrupted = Thread.interrupted();
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    worker.interrupt();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return received.get();
+    }
+
+    private void startWorker(Source source) {
+        Thread worker = new Thread(() -> work(source), "swarm-" + fileName + "-" + source.label());
+        worker.setDaemon(true);
+        workers.add(worker);
+        worker.start();
+    }
+
+    /**
+     * Probe the candidates that did not have the file, skipping any that are busy.
+     */
+    private void probeLate() {
+        for (Iterator<PeerConnection> it = pending.iterator(); it.hasNext(); ) {
+            PeerConnection connection = it.next();
+            if (connection.isClosed()) {
+                it.remove();
+                continue;
+            }
+            if (!connection.tryBeginExchange()) {
+                continue;
+            }
+            Source source;
+            try {
+                connection.sendMessage("HAVE_MAP " + fileName);
+                source = parseHaveMap(connection, connection.receiveMessage());
+            } catch (IOException e) {
+                it.remove();
+                connection.endExchange();
+                closeOutOfStep(connection);
+                continue;
+            }
+            if (source == null || (!source.complete && source.chunkSize != chunkSize)) {
+                connection.endExchange();
+                continue;
+            }
+            it.remove();
+            exchanges.add(connection);
+            synchronized (this) {
+                sources.add(source);
+                for (int chunk = 0; chunk < availability.length; chunk++) {
+                    if (source.has(chunk)) {
+                        availability[chunk]++;
+                    }
+                }
+            }
+            LOG.info("{} joined as a source for {}", source.label(), fileName);
+            startWorker(source);
+        }
+    }
+
+    private void work(Source source) {
+        byte[] buffer = BufferPool.acquire((int) chunkSize);
+        UploadScheduler.Credit credit = uploadScheduler.creditFor(source.ip);
+        try {
+            while (!local.isComplete() && !source.dropped && !Thread.currentThread().isInterrupted()) {
+                if (System.currentTimeMillis() - lastProgress > STALL_MILLIS) {
+                    LOG.warn("No progress on {} for {} ms; giving up on the remaining chunks.", fileName, STALL_MILLIS);
+                    return;
+                }
+                int chunk = claim(source);
+                if (chunk >= 0) {
+                    fetch(source, chunk, buffer, credit);
+                } else if (source.complete) {
+                    awaitRelease(); // Everything left is in flight elsewhere; a chunk may come back
+                } else {
+                    poll(source);
+                }
+            }
+        } catch (InterruptedIOException e) {
+            drop(source);
+            try {
+                source.connection.close(); // Stopped in the middle of a chunk
+            } catch (IOException ignored) {
+                // Already broken
+            }
+        } catch (IOException e) {
+            LOG.warn("Swarm source {} for {} failed: {}", source.label(), fileName, e.getMessage());
+            drop(source);
+            scoreboard.recordFailure(source.ip, source.port);
+            closeOutOfStep(source.connection);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * The rarest unclaimed chunk {@code source} holds, or -1. The scan starts at a random
+     * chunk so ties go to different chunks on different downloaders.
+     */
+    private synchronized int claim(Source source) {
+        int count = hashes.length;
+        int start = ThreadLocalRandom.current().nextInt(count);
+        int best = -1;
+        for (int n = 0; n < count; n++) {
+            int chunk = (start + n) % count;
+            if (!claimed.get(chunk) && source.has(chunk)
+                    && (best < 0 || availability[chunk] < availability[best])) {
+                best = chunk;
+                if (availability[chunk] <= 1) {
+                    break; // Cannot get rarer
+                }
+            }
+        }
+        if (best >= 0) {
+            claimed.set(best);
+        }
+        return best;
+    }
+
+    private synchronized void release(int chunk) {
+        claimed.clear(chunk);
+        notifyAll();
+    }
+
+    private synchronized void awaitRelease() throws InterruptedException {
+        wait(POLL_MILLIS);
+    }
+
+    private synchronized void drop(Source source) {
+        source.dropped = true;
+        if (source.extraStream) {
+            notifyAll();
+            return;
+        }
+        for (int chunk = 0; chunk < availability.length; chunk++) {
+            if (source.has(chunk)) {
+                availability[chunk]--;
+            }
+        }
+        notifyAll();
+    }
+
+    private void fetch(Source source, int chunk, byte[] buffer, UploadScheduler.Credit credit)
+            throws IOException, InterruptedException {
+        long offset = local.offsetOf(chunk);
+        int length = local.lengthOf(chunk);
+        PeerConnection connection = source.connection;
+        connection.sendMessage("GETRANGE " + offset + " " + length + " " + fileName);
+        String response = connection.receiveMessage();
+        if ("RANGE_UNAVAILABLE".equals(response) && !source.complete) {
+            synchronized (this) {
+                source.have.clear(chunk); // Its download restarted or ended; ask again later
+                availability[chunk]--;
+            }
+            release(chunk);
+            return;
+        }
+        long retryAfter = ParallelDownloader.retryDelay(response);
+        if (retryAfter >= 0) {
+            // No free upload slot (or a race with its download finishing): the connection is
+            // fine, so hand the chunk to the others and ask again after the pause
+            release(chunk);
+            if (++source.refusals > ParallelDownloader.MAX_REFUSALS) {
+                LOG.warn("Dropping swarm source {}: it keeps refusing chunks of {}", source.label(), fileName);
+                drop(source);
+                return;
+            }
+            Thread.sleep(retryAfter);
+            return;
+        }
+        source.refusals = 0;
+        if (response == null || !response.equals("RANGE " + length)) {
+            release(chunk);
+            throw new IOException("Unexpected range response: " + response);
+        }
+        long started = System.nanoTime();
+        InputStream in = connection.getInputStream();
+        int done = 0;
+        try {
+            while (done < length) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Swarm download cancelled");
+                }
+                int bytesRead = in.read(buffer, done, Math.min(bandwidthManager.chunkSize(source.ip, false, length), length - done));
+                if (bytesRead == -1) {
+                    throw new IOException("Peer closed the stream in the middle of a chunk");
+                }
+                bandwidthManager.throttleDownload(source.ip, bytesRead);
+                credit.add(bytesRead);
+                done += bytesRead;
+            }
+        } catch (IOException e) {
+            release(chunk);
+            throw e;
+        }
+        connection.getTuner().recordTransfer(length, System.nanoTime() - started);
+        if (!local.verify(chunk, buffer, length)) {
+            release(chunk);
+            scoreboard.recordFailure(source.ip, source.port);
+            if (++source.badChunks >= MAX_BAD_CHUNKS) {
+                LOG.warn("Dropping swarm source {}: {} chunks of {} failed verification", source.label(),
+                        (long) source.badChunks, fileName);
+                drop(source);
+            }
+            return;
+        }
+        try {
+            partial.write(offset, buffer, 0, length);
+        } catch (IOException e) {
+            release(chunk);
+            throw new IOException("Could not write chunk: " + e.getMessage(), e);
+        }
+        local.markHave(chunk); // Servable to others from now on
+        lastProgress = System.currentTimeMillis();
+        view.showDownloadProgress(received.addAndGet(length), size);
+        if (local.isComplete()) {
+            synchronized (this) {
+                notifyAll(); // Let idle workers finish
+            }
+        }
+    }
+
+    /**
+     * Learn which chunks a partial source gained since the last look ("HAVES"), waiting a
+     * little on the serving side if there are none yet.
+     */
+    private void poll(Source source) throws IOException {
+        source.connection.sendMessage("HAVES " + source.cursor + " " + fileName);
+        String response = source.connection.receiveMessage();
+        if (response == null) {
+            throw new IOException("Peer disconnected");
+        }
+        String[] parts = response.split(" ");
+        if (parts[0].equals("HAVES") && parts.length == 3) {
+            int cursor;
+            int[] indexes;
+            try {
+                cursor = Integer.parseInt(parts[1]);
+                String[] list = parts[2].equals("-") ? new String[0] : parts[2].split(",");
+                indexes = new int[list.length];
+                for (int i = 0; i < list.length; i++) {
+                    indexes[i] = Integer.parseInt(list[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed HAVES response: " + response); // Dropped like a broken source
+            }
+            synchronized (this) {
+                int gained = 0;
+                for (int chunk : indexes) {
+                    if (chunk >= 0 && chunk < availability.length && !source.have.get(chunk)) {
+                        source.have.set(chunk);
+                        availability[chunk]++;
+                        gained++;
+                    }
+                }
+                source.cursor = cursor;
+                LOG.debug("Swarm source {} gained {} chunks of {}", source.label(), (long) gained, fileName);
+            }
+        } else if (parts[0].equals("HAVE_ALL")) {
+            synchronized (this) {
+                // Its download finished; from now on it can serve any chunk
+                BitSet all = new BitSet();
+                all.set(0, availability.length);
+                all.andNot(source.have);
+                for (int chunk = all.nextSetBit(0); chunk >= 0; chunk = all.nextSetBit(chunk + 1)) {
+                    availability[chunk]++;
+                }
+                source.have = new BitSet();
+                source.have.set(0, availability.length);
+            }
+        } else {
+            LOG.debug("Swarm source {} no longer has {}", source.label(), fileName);
+            drop(source);
+        }
+    }
+
+    /**
+     * Release the sources' connections for other requests.
+     */
+    void close() {
+        for (PeerConnection connection : exchanges) {
+            connection.endExchange();
+        }
+        exchanges.clear();
+        for (PeerConnection connection : extraConnections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Ignore; the transfer result is what matters
+            }
+        }
+        extraConnections.clear();
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.p2pfilesharing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket used to shape transfer bandwidth.
+ * Tokens are bytes. The bucket refills continuously at {@code rate} bytes per second up to
+ * {@code burst} bytes. Callers reserve tokens up front and sleep off any deficit, so a
+ * bucket can go briefly negative: this keeps the wait proportional to the bytes actually
+ * requested and gives a smooth, non-bursty stream instead of "send 1 s worth, pause".
+ * A rate of 0 means unlimited and costs one volatile read per call.
+ */
+final class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long BURST_MILLIS = 50; // Allowed burst expressed as time at full rate
+    private static final long MIN_BURST_BYTES = 4096;
+
+    private volatile long rate; // bytes per second, 0 = unlimited
+    private long burst;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(long bytesPerSecond) {
+        this.lastRefill = System.nanoTime();
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill(System.nanoTime());
+        this.rate = Math.max(0, bytesPerSecond);
+        this.burst = Math.max(MIN_BURST_BYTES, rate * BURST_MILLIS / 1000);
+        this.tokens = Math.min(tokens, burst);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isUnlimited() {
+        return rate == 0;
+    }
+
+    /**
+     * Reserve {@code bytes} tokens and return how long (in nanoseconds) the caller has to
+     * wait before the reservation is covered. Does not block.
+     */
+    public long reserve(int bytes) {
+        if (rate == 0) {
+            return 0;
+        }
+        synchronized (this) {
+            long currentRate = rate;
+            if (currentRate == 0) {
+                return 0;
+            }
+            refill(System.nanoTime());
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long) (-tokens * NANOS_PER_SECOND / currentRate);
+        }
+    }
+
+    /**
+     * Block until {@code bytes} tokens are available.
+     */
+    public void acquire(int bytes) {
+        sleepNanos(reserve(bytes));
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+        if (rate > 0 && elapsed > 0) {
+            tokens = Math.min(burst, tokens + (double) elapsed * rate / NANOS_PER_SECOND);
+        }
+    }
+
+    /**
+     * Park for the given time; returns early (keeping the interrupt flag) if interrupted.
+     */
+    static void sleepNanos(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
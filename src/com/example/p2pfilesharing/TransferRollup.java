@@ -0,0 +1,83 @@
+package com.example.p2pfilesharing;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+// --- Simple Record for aggregated transfers with one peer, over one bucket or a whole range ---
+class TransferRollup {
+    // A transfer counts as successful if its status starts with this
+    static final String SUCCESS_PREFIX = "Completed";
+    static final String DEDUPLICATED = "Completed - Deduplicated"; // Copied locally; nothing moved
+    static final String DELTA = "Completed - Delta"; // Only the new data moved
+
+    final String peerIp;
+    final int peerPort;
+    final long bucket; // Epoch seconds (UTC) the bucket starts at; -1 for totals over a range
+    final long transfers;
+    final long successes;
+    final long bytes; // Bytes moved by successful transfers (see bytesMoved)
+    final long timedBytes; // Part of bytes whose transfer time is known
+    final long durationNanos; // Transfer time of timedBytes
+
+    TransferRollup(String peerIp, int peerPort, long bucket, long transfers, long successes, long bytes,
+                   long timedBytes, long durationNanos) {
+        this.peerIp = peerIp;
+        this.peerPort = peerPort;
+        this.bucket = bucket;
+        this.transfers = transfers;
+        this.successes = successes;
+        this.bytes = bytes;
+        this.timedBytes = timedBytes;
+        this.durationNanos = durationNanos;
+    }
+
+    static boolean isSuccess(String status) {
+        return status != null && status.startsWith(SUCCESS_PREFIX);
+    }
+
+    /**
+     * Bytes a transfer moved over the network, for the byte and throughput totals: the file
+     * for a completed download, {@code transferredBytes} for a delta sync (0 if unknown), and
+     * nothing for a deduplicated or failed one. {@code transferredBytes} is -1 if not recorded.
+     */
+    static long bytesMoved(String status, long fileSize, long transferredBytes) {
+        if (!isSuccess(status) || DEDUPLICATED.equals(status)) {
+            return 0;
+        }
+        if (DELTA.equals(status)) {
+            return Math.max(0, transferredBytes);
+        }
+        return (transferredBytes >= 0) ? transferredBytes : Math.max(0, fileSize);
+    }
+
+    /**
+     * {@link #bytesMoved} as an SQL expression over download_history.
+     */
+    static String bytesMovedSql() {
+        return "CASE WHEN status = '" + DEDUPLICATED + "' THEN 0" +
+               " WHEN status = '" + DELTA + "' THEN COALESCE(transferred_bytes, 0)" +
+               " WHEN status LIKE '" + SUCCESS_PREFIX + "%' THEN COALESCE(transferred_bytes, MAX(file_size, 0))" +
+               " ELSE 0 END";
+    }
+
+    double successRate() {
+        return (transfers == 0) ? 0.0 : (double) successes / transfers;
+    }
+
+    /**
+     * Mean throughput in bytes/s over the timed transfers, or -1 if none were timed.
+     */
+    double meanThroughput() {
+        return (durationNanos <= 0) ? -1 : timedBytes / (durationNanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        String when = (bucket < 0) ? "" : "[" + DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+                .format(LocalDateTime.ofEpochSecond(bucket, 0, ZoneOffset.UTC)) + " UTC] ";
+        double throughput = meanThroughput();
+        return String.format("%s%s:%d - %d transfers, %.0f%% ok, %d bytes, %s", when, peerIp, peerPort, transfers,
+                successRate() * 100, bytes, (throughput < 0) ? "throughput n/a" : String.format("%.1f KB/s", throughput / 1024));
+    }
+}
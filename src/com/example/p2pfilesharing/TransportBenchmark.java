@@ -0,0 +1,216 @@
+package com.example.p2pfilesharing;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Measures what encryption costs over loopback: plaintext against TLS with each AEAD cipher.
+ * For every transport it reports
+ * <ul>
+ *   <li>connect: TCP connect plus handshake, full (fresh session cache) and resumed,</li>
+ *   <li>request: round trip of a small request/response on an open connection (like PING or STAT),</li>
+ *   <li>bulk: throughput of one large response streamed in transfer-sized writes.</li>
+ * </ul>
+ * Usage: {@code java com.example.p2pfilesharing.TransportBenchmark [megabytes] [requests] [connects]}.
+ * Uses the key store from -Dp2p.tls.keyStore if set, otherwise a throwaway self-signed one
+ * made with keytool.
+ */
+class TransportBenchmark {
+    private static final String[] PROTOCOLS = {"TLSv1.3"};
+    private static final int WRITE_BYTES = 256 * 1024; // A typical tuned transfer buffer
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+        int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int connects = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+
+        char[] password;
+        KeyStore keyStore;
+        String configured = P2PConfig.getString("p2p.tls.keyStore", "");
+        if (configured.isEmpty()) {
+            password = "benchmark".toCharArray();
+            keyStore = throwawayKeyStore(password);
+        } else {
+            password = P2PConfig.getString("p2p.tls.keyStorePassword", "").toCharArray();
+            keyStore = KeyStore.getInstance(P2PConfig.getString("p2p.tls.keyStoreType", "PKCS12"));
+            try (InputStream in = Files.newInputStream(new File(configured).toPath())) {
+                keyStore.load(in, password);
+            }
+        }
+
+        System.out.println("AES instructions in use: " + TransportSecurity.hasAesInstructions());
+        System.out.printf("%-32s %12s %12s %12s %12s%n", "transport", "full conn", "resumed conn", "request", "bulk");
+        report("plaintext", new TransportSecurity(null, null, null, false), null, megabytes, requests, connects);
+        for (String suite : new String[] {"TLS_AES_128_GCM_SHA256", "TLS_CHACHA20_POLY1305_SHA256"}) {
+            String[] suites = {suite};
+            SSLContext context = TransportSecurity.newContext(keyStore, password, keyStore);
+            TransportSecurity transport = new TransportSecurity(context, suites, PROTOCOLS, true);
+            report(suite, transport, () -> new TransportSecurity(TransportSecurity.newContext(keyStore, password, keyStore),
+                    suites, PROTOCOLS, true), megabytes, requests, connects);
+        }
+        AsyncLogger.flush();
+        System.exit(0);
+    }
+
+    private interface Fresh {
+        TransportSecurity create() throws GeneralSecurityException;
+    }
+
+    /**
+     * One table row. The server and the client share {@code transport}; {@code fresh} makes
+     * client transports with empty session caches, for full handshakes.
+     */
+    private static void report(String label, TransportSecurity transport, Fresh fresh, int megabytes, int requests,
+                               int connects) throws Exception {
+        try (ServerSocket server = transport.openServerSocket(0)) {
+            Thread acceptor = new Thread(() -> serve(server), "benchmark-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            int port = server.getLocalPort();
+
+            double full = connectMillis(fresh, transport, port, connects, true);
+            double resumed = connectMillis(fresh, transport, port, connects, false);
+            try (Socket socket = transport.connect("127.0.0.1", port, 10_000)) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                for (int i = 0; i < requests / 10; i++) { // Warm-up
+                    ping(in, out);
+                }
+                long started = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    ping(in, out);
+                }
+                double requestMicros = (System.nanoTime() - started) / 1e3 / requests;
+
+                long bytes = (long) megabytes * 1024 * 1024;
+                bulk(in, out, bytes / 8); // Warm-up
+                started = System.nanoTime();
+                bulk(in, out, bytes);
+                double mbPerSecond = bytes / 1048576.0 / ((System.nanoTime() - started) / 1e9);
+                System.out.printf("%-32s %9.2f ms %9.2f ms %9.1f us %7.0f MB/s%n", label,
+                        full, resumed, requestMicros, mbPerSecond);
+            }
+        }
+    }
+
+    private static double connectMillis(Fresh fresh, TransportSecurity shared, int port, int connects, boolean full)
+            throws Exception {
+        long total = 0;
+        for (int i = 0; i < connects; i++) {
+            TransportSecurity client = (full && fresh != null) ? fresh.create() : shared;
+            long started = System.nanoTime();
+            try (Socket socket = client.connect("127.0.0.1", port, 10_000)) {
+                ping(new BufferedInputStream(socket.getInputStream()), socket.getOutputStream());
+                total += System.nanoTime() - started;
+            }
+        }
+        return total / 1e6 / connects;
+    }
+
+    private static void ping(InputStream in, OutputStream out) throws IOException {
+        out.write("PING\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        readLine(in);
+    }
+
+    private static void bulk(InputStream in, OutputStream out, long bytes) throws IOException {
+        out.write(("GET " + bytes + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        byte[] buffer = new byte[WRITE_BYTES];
+        long remaining = bytes;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new IOException("Stream ended early");
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Answers "PING" with "PONG" and "GET <bytes>" with that many bytes.
+     */
+    private static void serve(ServerSocket server) {
+        while (!server.isClosed()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread handler = new Thread(() -> {
+                byte[] data = new byte[WRITE_BYTES];
+                try (Socket s = socket) {
+                    s.setTcpNoDelay(true); // As PeerHandler's ConnectionTuner does
+                    InputStream in = new BufferedInputStream(s.getInputStream());
+                    OutputStream out = s.getOutputStream();
+                    String line;
+                    while ((line = readLine(in)) != null) {
+                        if (line.startsWith("GET ")) {
+                            long remaining = Long.parseLong(line.substring(4));
+                            while (remaining > 0) {
+                                int n = (int) Math.min(data.length, remaining);
+                                out.write(data, 0, n);
+                                remaining -= n;
+                            }
+                        } else {
+                            out.write("PONG\n".getBytes(StandardCharsets.US_ASCII));
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // Client went away
+                }
+            }, "benchmark-handler");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            line.append((char) c);
+        }
+        return (c == -1 && line.length() == 0) ? null : line.toString();
+    }
+
+    private static KeyStore throwawayKeyStore(char[] password) throws IOException, GeneralSecurityException, InterruptedException {
+        Path dir = Files.createTempDirectory("p2p-tls-bench");
+        Path file = dir.resolve("bench.p12");
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool");
+        for (String arg : new String[] {"-genkeypair", "-alias", "peer", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=benchmark", "-validity", "1", "-storetype", "PKCS12", "-keystore", file.toString(),
+                "-storepass", new String(password), "-keypass", new String(password)}) {
+            command.add(arg);
+        }
+        Process keytool = new ProcessBuilder(command).redirectErrorStream(true).start();
+        keytool.getInputStream().readAllBytes();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed; set -Dp2p.tls.keyStore instead");
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)) {
+            keyStore.load(in, password);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+        return keyStore;
+    }
+}
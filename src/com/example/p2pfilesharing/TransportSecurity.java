@@ -0,0 +1,262 @@
+package com.example.p2pfilesharing;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Optional encryption of all peer connections with TLS (off by default: -Dp2p.tls=true).
+ * Both sides authenticate: each peer presents the certificate from its key store and
+ * accepts only peers whose certificates chain to its trust store (e.g. a per-site CA).
+ * Peers are addressed by IP, so host names are not checked.
+ * --- Session resumption ---
+ * One SSLContext is shared by every connection of the process, so reconnects, heartbeat
+ * replacements and the extra streams of parallel and swarm downloads resume the session
+ * negotiated earlier with the same peer instead of running a full handshake.
+ * --- Cipher choice ---
+ * Only AEAD suites are enabled. AES-GCM is preferred when the JVM uses the CPU's AES
+ * instructions (AES-NI, ARMv8 crypto), ChaCha20-Poly1305 otherwise, which is several times
+ * faster than AES in software; the server's order decides. -Dp2p.tls.ciphers overrides the list.
+ * Bulk transfers keep their buffers and pacing: TLS only sits between them and the socket.
+ * Settings: -Dp2p.tls, -Dp2p.tls.keyStore, -Dp2p.tls.keyStorePassword, -Dp2p.tls.keyStoreType,
+ * -Dp2p.tls.trustStore, -Dp2p.tls.trustStorePassword, -Dp2p.tls.clientAuth,
+ * -Dp2p.tls.ciphers, -Dp2p.tls.protocols, -Dp2p.tls.sessionTimeoutSeconds.
+ */
+class TransportSecurity {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(TransportSecurity.class);
+    static final boolean ENABLED = P2PConfig.getBoolean("p2p.tls", false);
+    private static final String[] AES_SUITES = {
+            "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"};
+    private static final String[] CHACHA_SUITES = {
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256", "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"};
+    private static volatile TransportSecurity shared;
+
+    private final SSLContext context; // Null: plaintext
+    private final String[] cipherSuites;
+    private final String[] protocols;
+    private final boolean clientAuth;
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+
+    TransportSecurity(SSLContext context, String[] cipherSuites, String[] protocols, boolean clientAuth) {
+        this.context = context;
+        this.cipherSuites = cipherSuites;
+        this.protocols = protocols;
+        this.clientAuth = clientAuth;
+        if (context != null) {
+            int timeout = P2PConfig.getInt("p2p.tls.sessionTimeoutSeconds", 24 * 3600);
+            context.getClientSessionContext().setSessionTimeout(timeout);
+            context.getServerSessionContext().setSessionTimeout(timeout);
+        }
+    }
+
+    /**
+     * The process-wide transport, built from the settings on first use. Fails if TLS is
+     * enabled but the key material cannot be loaded: it never falls back to plaintext.
+     */
+    static TransportSecurity get() {
+        TransportSecurity transport = shared;
+        if (transport == null) {
+            synchronized (TransportSecurity.class) {
+                transport = shared;
+                if (transport == null) {
+                    try {
+                        transport = ENABLED ? fromConfig() : new TransportSecurity(null, null, null, false);
+                    } catch (IOException | GeneralSecurityException e) {
+                        throw new IllegalStateException("TLS is enabled (-Dp2p.tls) but could not be set up: " + e.getMessage(), e);
+                    }
+                    shared = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    private static TransportSecurity fromConfig() throws IOException, GeneralSecurityException {
+        String keyStorePath = P2PConfig.getString("p2p.tls.keyStore", "");
+        if (keyStorePath.isEmpty()) {
+            throw new IOException("no key store (-Dp2p.tls.keyStore)");
+        }
+        String type = P2PConfig.getString("p2p.tls.keyStoreType", "PKCS12");
+        char[] keyPassword = P2PConfig.getString("p2p.tls.keyStorePassword", "").toCharArray();
+        KeyStore keyStore = load(keyStorePath, type, keyPassword);
+        String trustStorePath = P2PConfig.getString("p2p.tls.trustStore", keyStorePath);
+        KeyStore trustStore = trustStorePath.equals(keyStorePath) ? keyStore
+                : load(trustStorePath, type, P2PConfig.getString("p2p.tls.trustStorePassword", "").toCharArray());
+        SSLContext context = newContext(keyStore, keyPassword, trustStore);
+
+        String configured = P2PConfig.getString("p2p.tls.ciphers", "auto");
+        String[] suites = configured.equalsIgnoreCase("auto")
+                ? preferredCipherSuites(context) : configured.split("\\s*,\\s*");
+        String[] protocols = P2PConfig.getString("p2p.tls.protocols", "TLSv1.3,TLSv1.2").split("\\s*,\\s*");
+        TransportSecurity transport = new TransportSecurity(context, suites, protocols,
+                P2PConfig.getBoolean("p2p.tls.clientAuth", true));
+        LOG.info("TLS enabled: {}, cipher suites {}", String.join("/", protocols), String.join(",", suites));
+        return transport;
+    }
+
+    private static KeyStore load(String path, String type, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(type);
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    static SSLContext newContext(KeyStore keyStore, char[] keyPassword, KeyStore trustStore) throws GeneralSecurityException {
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, keyPassword);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), new SecureRandom());
+        return context;
+    }
+
+    /**
+     * AEAD suites supported by {@code context}, the family that is fast on this CPU first.
+     */
+    static String[] preferredCipherSuites(SSLContext context) {
+        boolean aesFirst = hasAesInstructions();
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getCipherSuites());
+        List<String> ordered = new ArrayList<>();
+        for (String suite : aesFirst ? AES_SUITES : CHACHA_SUITES) {
+            if (supported.contains(suite)) {
+                ordered.add(suite);
+            }
+        }
+        for (String suite : aesFirst ? CHACHA_SUITES : AES_SUITES) {
+            if (supported.contains(suite)) {
+                ordered.add(suite);
+            }
+        }
+        return ordered.toArray(new String[0]);
+    }
+
+    /**
+     * True if AES runs on hardware instructions. HotSpot turns UseAES on only when the CPU
+     * has them; other JVMs are judged by architecture.
+     */
+    static boolean hasAesInstructions() {
+        try {
+            HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            if (hotspot != null) {
+                return Boolean.parseBoolean(hotspot.getVMOption("UseAES").getValue());
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Could not read the UseAES flag: {}", e.getMessage());
+        }
+        String arch = System.getProperty("os.arch", "");
+        return arch.equals("amd64") || arch.equals("x86_64") || arch.equals("aarch64");
+    }
+
+    boolean isEncrypted() {
+        return context != null;
+    }
+
+    /**
+     * Listening socket for incoming peer connections. With TLS the handshake runs on the
+     * connection's own thread at its first read, so a slow peer never stalls the accept loop.
+     */
+    ServerSocket openServerSocket(int port) throws IOException {
+        // Bound only after the receive buffer is set (see ConnectionTuner)
+        ServerSocket serverSocket = (context == null) ? new ServerSocket()
+                : context.getServerSocketFactory().createServerSocket();
+        try {
+            if (serverSocket instanceof SSLServerSocket) {
+                SSLParameters parameters = parameters();
+                parameters.setNeedClientAuth(clientAuth);
+                parameters.setUseCipherSuitesOrder(true); // Our CPU's preference decides
+                ((SSLServerSocket) serverSocket).setSSLParameters(parameters);
+            }
+            ConnectionTuner.presetReceiveBuffer(serverSocket);
+            serverSocket.bind(new InetSocketAddress(port));
+            return serverSocket;
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect to a peer; with TLS the handshake (full or resumed) is done before returning,
+     * within the connect timeout.
+     */
+    Socket connect(String ip, int port, int connectTimeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            ConnectionTuner.presetReceiveBuffer(socket);
+            socket.connect(new InetSocketAddress(ip, port), connectTimeoutMillis);
+            socket.setTcpNoDelay(true); // Handshake flights are small records; see also ConnectionTuner
+            if (context == null) {
+                return socket;
+            }
+            // Created with the peer's address, so the client session cache finds earlier sessions
+            SSLSocket tls = (SSLSocket) context.getSocketFactory().createSocket(socket, ip, port, true);
+            tls.setSSLParameters(parameters());
+            tls.setSoTimeout(connectTimeoutMillis);
+            long startedMillis = System.currentTimeMillis();
+            long started = System.nanoTime();
+            tls.startHandshake();
+            recordHandshake(tls.getSession(), startedMillis, System.nanoTime() - started);
+            return tls;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private SSLParameters parameters() {
+        SSLParameters parameters = context.getDefaultSSLParameters();
+        parameters.setCipherSuites(cipherSuites);
+        parameters.setProtocols(protocols);
+        return parameters;
+    }
+
+    private void recordHandshake(SSLSession session, long startedMillis, long nanos) {
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+        // A resumed session keeps the creation time of the session it resumes
+        if (session.getCreationTime() < startedMillis) {
+            resumed.incrementAndGet();
+        }
+        LOG.debug("TLS handshake with {}: {} in {} us", session.getPeerHost(), session.getCipherSuite(), (Object) (nanos / 1000));
+    }
+
+    /**
+     * One line for the stats output.
+     */
+    String describe() {
+        if (context == null) {
+            return "Transport: plaintext (-Dp2p.tls=true to encrypt)";
+        }
+        long count = handshakes.get();
+        return String.format("Transport: TLS, preferred %s; %d outgoing handshakes (%d resumed), avg %.2f ms",
+                cipherSuites.length > 0 ? cipherSuites[0] : "-", count, resumed.get(),
+                (count == 0) ? 0.0 : handshakeNanos.get() / 1e6 / count);
+    }
+}
@@ -0,0 +1,304 @@
+package com.example.p2pfilesharing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Upload slot scheduler for the serving side.
+ * Only a fixed number of GETs stream data at the same time; the rest wait in a queue.
+ * --- Tit-for-tat ---
+ * When a slot frees up it goes to the waiting peer that has recently sent us the most data
+ * (see {@link #recordReceived}), so peers that reciprocate get served first. Every
+ * {@code optimisticEvery}-th grant ignores reciprocation and unchokes the longest waiter,
+ * which lets newcomers with nothing to offer yet bootstrap.
+ * --- Choking ---
+ * An active upload that has held its slot for longer than the rotation period is choked at
+ * its next {@link UploadTicket#checkpoint()} if someone who reciprocates at least as well is
+ * waiting, or if a waiter has been starved for two rotation periods. The choked upload goes
+ * back into the queue and resumes where it left off once it is granted a slot again.
+ * --- Bounded waits ---
+ * The client of a queued or choked upload hears nothing until data flows, so neither wait
+ * may approach its read timeout: a request still queued after the queue timeout is turned
+ * away (the handler answers BUSY), and a choked upload resumes after the choke timeout even
+ * if that briefly puts the active count above the slot count.
+ * Settings: -Dp2p.upload.slots, -Dp2p.upload.rotationMillis, -Dp2p.upload.optimisticEvery,
+ * -Dp2p.upload.queueTimeoutMillis, -Dp2p.upload.maxChokeMillis.
+ */
+class UploadScheduler {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(UploadScheduler.class);
+    private static final long CREDIT_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final int slots;
+    private final long rotationNanos;
+    private final int optimisticEvery;
+    private final long queueTimeoutNanos;
+    private final long maxChokeNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<UploadTicket> waiting = new ArrayList<>(); // Arrival order
+    private final Map<String, Credit> credits = new ConcurrentHashMap<>();
+    private int active;
+    private long grants;
+
+    public UploadScheduler() {
+        this(P2PConfig.getInt("p2p.upload.slots", 4),
+             P2PConfig.getLong("p2p.upload.rotationMillis", 30_000),
+             P2PConfig.getInt("p2p.upload.optimisticEvery", 4),
+             P2PConfig.getLong("p2p.upload.queueTimeoutMillis", 60_000),
+             P2PConfig.getLong("p2p.upload.maxChokeMillis", 30_000));
+    }
+
+    UploadScheduler(int slots, long rotationMillis, int optimisticEvery, long queueTimeoutMillis, long maxChokeMillis) {
+        this.slots = Math.max(1, slots);
+        this.rotationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, rotationMillis));
+        this.optimisticEvery = Math.max(1, optimisticEvery);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, queueTimeoutMillis));
+        this.maxChokeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxChokeMillis));
+    }
+
+    /**
+     * Exponentially decaying count of bytes a peer has uploaded to us.
+     */
+    static final class Credit {
+        private double bytes;
+        private long updated = System.nanoTime();
+
+        synchronized void add(long amount) {
+            decay(System.nanoTime());
+            bytes += amount;
+        }
+
+        synchronized double score() {
+            decay(System.nanoTime());
+            return bytes;
+        }
+
+        private void decay(long now) {
+            long elapsed = now - updated;
+            updated = now;
+            if (elapsed > 0 && bytes > 0) {
+                bytes *= Math.pow(0.5, (double) elapsed / CREDIT_HALF_LIFE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Credit record for a peer; callers on the download path keep the reference per transfer.
+     */
+    public Credit creditFor(String peerIp) {
+        return credits.computeIfAbsent(peerIp, ip -> new Credit());
+    }
+
+    /**
+     * Record that {@code peerIp} sent us {@code bytes} (it reciprocates).
+     */
+    public void recordReceived(String peerIp, long bytes) {
+        creditFor(peerIp).add(bytes);
+    }
+
+    /**
+     * Wait for an upload slot, at most the queue timeout. Returns null if none was granted
+     * in time; the caller should tell the client to retry later.
+     */
+    public UploadTicket acquire(String peerIp) throws InterruptedException {
+        UploadTicket ticket = new UploadTicket(peerIp);
+        lock.lock();
+        try {
+            ticket.enqueuedAt = System.nanoTime();
+            waiting.add(ticket);
+            dispatch();
+            long remaining = queueTimeoutNanos;
+            while (!ticket.granted) {
+                if (remaining <= 0) {
+                    waiting.remove(ticket);
+                    LOG.debug("No upload slot for {} within the queue timeout", peerIp);
+                    return null;
+                }
+                remaining = changed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            cancel(ticket);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Upload slot granted to {} after {} ms", peerIp,
+                    TimeUnit.NANOSECONDS.toMillis(ticket.grantedAt - ticket.enqueuedAt));
+        }
+        return ticket;
+    }
+
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSlotCount() {
+        return slots;
+    }
+
+    /**
+     * How long a turned-away client should wait before asking again.
+     */
+    public long getRetryAfterMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(rotationNanos);
+    }
+
+    private void cancel(UploadTicket ticket) {
+        // Called with the lock held
+        if (!waiting.remove(ticket) && ticket.granted) {
+            ticket.granted = false;
+            active--;
+            dispatch();
+        }
+    }
+
+    /**
+     * Hand free slots to waiters. Called with the lock held.
+     */
+    private void dispatch() {
+        boolean grantedAny = false;
+        while (active < slots && !waiting.isEmpty()) {
+            UploadTicket next = pickNext();
+            waiting.remove(next);
+            next.granted = true;
+            next.grantedAt = System.nanoTime();
+            next.nextCheckNanos = next.grantedAt + rotationNanos;
+            active++;
+            grants++;
+            grantedAny = true;
+        }
+        if (grantedAny) {
+            changed.signalAll();
+        }
+    }
+
+    private UploadTicket pickNext() {
+        if (grants % optimisticEvery == optimisticEvery - 1) {
+            return waiting.get(0); // Optimistic unchoke: longest waiter, regardless of credit
+        }
+        UploadTicket best = waiting.get(0);
+        double bestScore = creditFor(best.peerIp).score();
+        for (int i = 1; i < waiting.size(); i++) {
+            UploadTicket candidate = waiting.get(i);
+            double score = creditFor(candidate.peerIp).score();
+            if (score > bestScore) { // Strictly better: ties keep arrival order
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Should the holder of {@code ticket} give up its slot now? Called with the lock held.
+     */
+    private boolean shouldChoke(UploadTicket ticket, long now) {
+        if (waiting.isEmpty() || now - ticket.grantedAt < rotationNanos) {
+            return false;
+        }
+        if (now - waiting.get(0).enqueuedAt >= 2 * rotationNanos) {
+            return true; // Somebody has been starved; rotate regardless of credit
+        }
+        double own = creditFor(ticket.peerIp).score();
+        for (UploadTicket waiter : waiting) {
+            if (creditFor(waiter.peerIp).score() >= own) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A granted (or pending) upload slot.
+     */
+    final class UploadTicket implements AutoCloseable {
+        private final String peerIp;
+        private long enqueuedAt;
+        private long grantedAt;
+        private boolean granted;
+        private boolean released;
+        private long nextCheckNanos;
+
+        private UploadTicket(String peerIp) {
+            this.peerIp = peerIp;
+        }
+
+        /**
+         * Called between chunks of a transfer. Cheap until the rotation period has elapsed;
+         * after that, may block while this upload is choked.
+         */
+        public void checkpoint() throws InterruptedException {
+            long now = System.nanoTime();
+            if (now < nextCheckNanos) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (!shouldChoke(this, now)) {
+                    nextCheckNanos = now + TimeUnit.MILLISECONDS.toNanos(100);
+                    return;
+                }
+                LOG.debug("Choking upload to {} to rotate slots", peerIp);
+                granted = false;
+                active--;
+                enqueuedAt = now;
+                waiting.add(this);
+                dispatch();
+                long remaining = maxChokeNanos;
+                while (!granted) {
+                    if (remaining <= 0) {
+                        // The client is waiting mid-transfer; resume before it gives up on us
+                        waiting.remove(this);
+                        granted = true;
+                        grantedAt = System.nanoTime();
+                        active++;
+                        LOG.debug("Resuming choked upload to {} after the choke timeout", peerIp);
+                        break;
+                    }
+                    remaining = changed.awaitNanos(remaining);
+                }
+                LOG.debug("Unchoked upload to {}", peerIp);
+            } catch (InterruptedException e) {
+                cancel(this);
+                released = true;
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+            nextCheckNanos = grantedAt + rotationNanos;
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!released) {
+                    released = true;
+                    cancel(this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.p2pfilesharing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Overlaps the network and the disk while receiving one file.
+ * The receiving thread reads the socket into a bounded ring of pooled buffers; a disk-writer
+ * thread drains full buffers into the PartialFile in order (and feeds the digest, if any).
+ * The socket keeps being read while a write is in progress and the other way round, so a
+ * download runs at about min(network, disk) rather than the two rates added up as one
+ * alternating loop would. When all buffers are waiting for the disk, the receiver blocks,
+ * which in turn lets TCP flow control slow the sender down.
+ * Only used for files of at least -Dp2p.pipeline.minBytes; -Dp2p.pipeline.depth sets the
+ * number of buffers.
+ */
+class WritePipeline implements AutoCloseable {
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(WritePipeline.class);
+    static final long MIN_BYTES = P2PConfig.getLong("p2p.pipeline.minBytes", 1024 * 1024);
+    private static final int DEPTH = Math.max(2, P2PConfig.getInt("p2p.pipeline.depth", 4));
+    private static final int MIN_BUFFER = 64 * 1024; // Large enough for efficient disk writes
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "disk-writer-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Slot {
+        final byte[] data;
+        long position;
+        int length;
+        boolean last;
+
+        Slot(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    // Queued by close(): tells the writer to stop without waiting for a free buffer
+    private static final Slot STOP = new Slot(new byte[0]);
+
+    private final PartialFile target;
+    private final MessageDigest digest;
+    private final BlockingQueue<Slot> free = new ArrayBlockingQueue<>(DEPTH);
+    private final BlockingQueue<Slot> full = new ArrayBlockingQueue<>(DEPTH + 1); // Room for STOP
+    private final Object done = new Object();
+    private boolean finished; // Guarded by done
+    private volatile IOException failure;
+    private Slot current; // Being filled by the receiving thread
+    private long position;
+    private long networkWaitNanos; // Receiver blocked on the disk
+    private long diskWaitNanos; // Writer blocked on the network
+
+    WritePipeline(PartialFile target, MessageDigest digest, int bufferSize) {
+        this.target = target;
+        this.digest = digest;
+        for (int i = 0; i < DEPTH; i++) {
+            free.add(new Slot(BufferPool.acquire(Math.max(MIN_BUFFER, bufferSize))));
+        }
+        WRITERS.execute(this::drain);
+    }
+
+    /**
+     * Buffer to read the next bytes into, starting at {@link #offset()}. Blocks while every
+     * buffer is queued for the disk.
+     */
+    byte[] buffer() throws IOException {
+        if (current == null) {
+            checkFailure();
+            long started = System.nanoTime();
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the disk");
+            }
+            networkWaitNanos += System.nanoTime() - started;
+            checkFailure();
+            current.position = position;
+            current.length = 0;
+        }
+        return current.data;
+    }
+
+    int offset() {
+        return (current == null) ? 0 : current.length;
+    }
+
+    /**
+     * {@code count} bytes were read into the buffer; once it is full it goes to the writer.
+     */
+    void advance(int count) {
+        current.length += count;
+        position += count;
+        if (current.length == current.data.length) {
+            hand(current, false);
+            current = null;
+        }
+    }
+
+    /**
+     * Write out whatever is left and wait until everything is on disk.
+     */
+    void finish() throws IOException {
+        Slot last = current;
+        current = null;
+        if (last == null) {
+            last = takeFree();
+            last.position = position;
+            last.length = 0;
+        }
+        hand(last, true);
+        synchronized (done) {
+            while (!finished) {
+                try {
+                    done.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the disk");
+                }
+            }
+        }
+        checkFailure();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Pipeline done: receiver waited {} ms for the disk, writer {} ms for the network",
+                    networkWaitNanos / 1_000_000, diskWaitNanos / 1_000_000);
+        }
+    }
+
+    private Slot takeFree() throws IOException {
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+    }
+
+    private void hand(Slot slot, boolean last) {
+        slot.last = last;
+        full.add(slot); // Never blocks: there are only DEPTH slots
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                long started = System.nanoTime();
+                Slot slot = full.take();
+                diskWaitNanos += System.nanoTime() - started;
+                if (slot == STOP) {
+                    break;
+                }
+                if (failure == null && slot.length > 0) {
+                    try {
+                        target.write(slot.position, slot.data, 0, slot.length);
+                        if (digest != null) {
+                            digest.update(slot.data, 0, slot.length);
+                        }
+                    } catch (IOException e) {
+                        failure = e; // Reported to the receiver at its next buffer() or finish()
+                    }
+                }
+                boolean last = slot.last;
+                free.add(slot);
+                if (last) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Disk writer interrupted");
+        } finally {
+            synchronized (done) {
+                finished = true;
+                done.notifyAll();
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the writer (if {@link #finish()} was not reached) and return the buffers.
+     */
+    @Override
+    public void close() {
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+        full.add(STOP); // Never blocks, so the writer is always told to stop, even on interrupt
+        try {
+            synchronized (done) {
+                while (!finished) {
+                    done.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return; // The writer still stops on STOP; its buffers are left to the GC
+        }
+        Slot slot;
+        while ((slot = free.poll()) != null) {
+            BufferPool.release(slot.data);
+        }
+    }
+}